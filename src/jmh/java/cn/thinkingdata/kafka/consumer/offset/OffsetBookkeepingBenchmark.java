@@ -0,0 +1,134 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import cn.thinkingdata.kafka.cache.KafkaCache;
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import org.apache.kafka.common.TopicPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * consume线程每次poll之后的offset记录：每个partition处理完一批record，更新ProcessedOffsetTracker，
+ * 再把watermark写进缓存里的KafkaConsumerOffset。current是现在saveProcessedOffsets的写法，
+ * legacy按原来的写法每个partition分配Date、TopicPartition和Long。用-prof gc看每次poll分配的字节数：
+ * java -jar target/benchmarks.jar OffsetBookkeepingBenchmark -prof gc
+ * partition第一次放进DirtyOffsetTracker时会分配，persist线程每个周期取走之后再分配一次，不是每次poll。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OffsetBookkeepingBenchmark {
+
+    // 每次poll拿到的partition数
+    @Param({"16"})
+    public int partitions;
+
+    // 每个partition每次poll处理的record数
+    @Param({"100"})
+    public int recordsPerPartition;
+
+    private final OffsetManager offsetManager = KafkaOffsetManager.getInstance();
+    private TopicPartition[] topicPartitions;
+    private ProcessedOffsetTracker[] trackers;
+    // offset从一个不在Long缓存里的值开始，legacy的装箱一定会分配
+    private long nextOffset = 1L << 20;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        topicPartitions = new TopicPartition[partitions];
+        trackers = new ProcessedOffsetTracker[partitions];
+        for (int i = 0; i < partitions; i++) {
+            topicPartitions[i] = new TopicPartition("topic", i);
+            trackers[i] = new ProcessedOffsetTracker(nextOffset);
+            KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+            kafkaConsumerOffset.setTopic("topic");
+            kafkaConsumerOffset.setPartition(i);
+            kafkaConsumerOffset.setOffset(nextOffset);
+            kafkaConsumerOffset.setUpdate_time(new Date());
+            KafkaCache.kafkaConsumerOffsetMaps.put(topicPartitions[i], kafkaConsumerOffset);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (TopicPartition topicPartition : topicPartitions) {
+            KafkaCache.kafkaConsumerOffsetMaps.remove(topicPartition);
+        }
+        KafkaCache.dirtyOffsetTracker.drainDirty();
+    }
+
+    @Benchmark
+    public long current() {
+        long firstOffset = processRecords();
+        long count = 0L;
+        for (int i = 0; i < partitions; i++) {
+            TopicPartition topicPartition = topicPartitions[i];
+            long processedOffset = trackers[i].getWatermark();
+            KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            if (processedOffset <= kafkaConsumerOffset.getOffsetValue()) {
+                continue;
+            }
+            count += recordsPerPartition;
+            kafkaConsumerOffset.setOffsetValue(processedOffset);
+            kafkaConsumerOffset.setCountValue(count);
+            offsetManager.saveOffsetInCache(null, topicPartition, kafkaConsumerOffset);
+        }
+        return firstOffset;
+    }
+
+    @Benchmark
+    public long legacy() {
+        long firstOffset = processRecords();
+        Long count = 0L;
+        for (int i = 0; i < partitions; i++) {
+            TopicPartition topicPartition = topicPartitions[i];
+            long processedOffset = trackers[i].getWatermark();
+            KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            if (processedOffset <= kafkaConsumerOffset.getOffset()) {
+                continue;
+            }
+            Date now = new Date();
+            count += recordsPerPartition;
+            kafkaConsumerOffset.setTopic(topicPartition.topic());
+            kafkaConsumerOffset.setPartition(topicPartition.partition());
+            kafkaConsumerOffset.setOffset(processedOffset);
+            kafkaConsumerOffset.setCount(count);
+            kafkaConsumerOffset.setUpdate_time(now);
+            // 原来的saveOffsetInCache从topic和partition重新创建TopicPartition
+            offsetManager.saveOffsetInCache(null, kafkaConsumerOffset);
+        }
+        return firstOffset;
+    }
+
+    // 每个partition按顺序交给处理线程，倒着处理完，watermark在最后一条处理完时前进
+    private long processRecords() {
+        long firstOffset = nextOffset;
+        for (ProcessedOffsetTracker tracker : trackers) {
+            for (int j = 0; j < recordsPerPartition; j++) {
+                tracker.dispatch(firstOffset + j);
+            }
+            for (int j = recordsPerPartition - 1; j >= 0; j--) {
+                tracker.complete(firstOffset + j);
+            }
+        }
+        nextOffset += recordsPerPartition;
+        return firstOffset;
+    }
+
+}
@@ -0,0 +1,75 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import org.apache.kafka.common.TopicPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 每个线程一直读写自己的partition，比较PartitionLocks和原来synchronized(OffsetManager.class)那样的全局锁。
+ * 锁里的工作量用Blackhole.consumeCPU模拟，线程数用-t指定，例如8/32/64个线程：
+ * java -jar target/benchmarks.jar PartitionLocksBenchmark -t 8
+ * java -jar target/benchmarks.jar PartitionLocksBenchmark -t 32
+ * java -jar target/benchmarks.jar PartitionLocksBenchmark -t 64
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class PartitionLocksBenchmark {
+
+    private static final Object GLOBAL_LOCK = new Object();
+
+    // 锁里的工作量，大约是更新一次缓存里的offset
+    private static final long CRITICAL_SECTION_TOKENS = 50L;
+
+    @State(Scope.Benchmark)
+    public static class Partitions {
+
+        private final AtomicInteger nextPartition = new AtomicInteger();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadPartition {
+
+        private TopicPartition topicPartition;
+
+        @Setup
+        public void setUp(Partitions partitions) {
+            topicPartition = new TopicPartition("topic", partitions.nextPartition.getAndIncrement());
+        }
+    }
+
+    @Benchmark
+    public void stripedLock(ThreadPartition threadPartition) {
+        Lock lock = PartitionLocks.lock(threadPartition.topicPartition);
+        try {
+            Blackhole.consumeCPU(CRITICAL_SECTION_TOKENS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Benchmark
+    public void globalLock() {
+        synchronized (GLOBAL_LOCK) {
+            Blackhole.consumeCPU(CRITICAL_SECTION_TOKENS);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条record在consume线程和processDataWorker之间来回一次的耗时：benchmark线程放入一个对象，
+ * 另一个线程取出后放进回程队列，benchmark线程再取回来。ring是SpscRingBuffer，linked是原来的LinkedBlockingQueue。
+ * 两边都用非阻塞的offer/poll自旋，只比较队列本身，至少要有两个CPU，否则测到的是线程调度的时间。
+ * 加上-prof gc可以看到每条record分配的字节数：
+ * java -jar target/benchmarks.jar QueueHandoffBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueHandoffBenchmark {
+
+    private static final Object RECORD = new Object();
+
+    @Param({"ring", "linked"})
+    public String queue;
+
+    // 和processDataQueue一样的容量
+    @Param({"3000"})
+    public int capacity;
+
+    private Handoff outbound;
+    private Handoff inbound;
+    private Thread echoThread;
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        outbound = create(queue, capacity);
+        inbound = create(queue, capacity);
+        running = true;
+        echoThread = new Thread(() -> {
+            while (running) {
+                Object record = outbound.poll();
+                if (record != null) {
+                    while (!inbound.offer(record) && running) {
+                        // 回程队列满了就等
+                    }
+                }
+            }
+        }, "queue handoff echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        echoThread.join();
+    }
+
+    @Benchmark
+    public Object roundTrip() {
+        while (!outbound.offer(RECORD)) {
+            // 不会满，每次只有一个在路上
+        }
+        Object record;
+        while ((record = inbound.poll()) == null) {
+            // 等回程
+        }
+        return record;
+    }
+
+    private static Handoff create(String queue, int capacity) {
+        if ("ring".equals(queue)) {
+            SpscRingBuffer<Object> ringBuffer = new SpscRingBuffer<>(capacity, new BusySpinWaitStrategy());
+            return new Handoff() {
+                @Override
+                public boolean offer(Object record) {
+                    return ringBuffer.offer(record);
+                }
+
+                @Override
+                public Object poll() {
+                    return ringBuffer.poll();
+                }
+            };
+        }
+        Queue<Object> linkedBlockingQueue = new LinkedBlockingQueue<>(capacity);
+        return new Handoff() {
+            @Override
+            public boolean offer(Object record) {
+                return linkedBlockingQueue.offer(record);
+            }
+
+            @Override
+            public Object poll() {
+                return linkedBlockingQueue.poll();
+            }
+        };
+    }
+
+    private interface Handoff {
+
+        boolean offer(Object record);
+
+        Object poll();
+    }
+
+}
@@ -3,17 +3,25 @@ package cn.thinkingdata.kafka.cache;
 import cn.thinkingdata.kafka.consumer.KafkaConsumerRebalancerListener;
 import cn.thinkingdata.kafka.consumer.KafkaSubscribeConsumeThread;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import cn.thinkingdata.kafka.consumer.offset.DirtyOffsetTracker;
 import org.apache.kafka.common.TopicPartition;
 
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class KafkaCache {
 
     public static Map<TopicPartition, KafkaConsumerOffset> kafkaConsumerOffsetMaps = new ConcurrentHashMap();
-    public static List<KafkaSubscribeConsumeThread> consumeThreadList = new CopyOnWriteArrayList();
+    public static List<KafkaSubscribeConsumeThread<?, ?>> consumeThreadList = new CopyOnWriteArrayList();
     public static List<KafkaConsumerRebalancerListener> rebalancerListenerList = new CopyOnWriteArrayList();
+    // kafkaConsumerOffsetMaps里offset有变化的partition
+    public static DirtyOffsetTracker dirtyOffsetTracker = new DirtyOffsetTracker();
+    // 所有consume线程已经拉到、还没处理完的record的总字节数
+    public static AtomicLong bufferedBytes = new AtomicLong();
+    // partition被收回之后丢弃、没有处理的record数，这些record会由新的owner处理，不丢弃就会被处理两次
+    public static AtomicLong skippedRevokedRecords = new AtomicLong();
 
 }
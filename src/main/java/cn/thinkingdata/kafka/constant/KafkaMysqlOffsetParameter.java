@@ -1,5 +1,6 @@
 package cn.thinkingdata.kafka.constant;
 
+import cn.thinkingdata.kafka.consumer.queue.WaitStrategies;
 import cn.thinkingdata.kafka.util.CommonUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -29,6 +30,30 @@ public class KafkaMysqlOffsetParameter {
     public static Integer processThreadNum;
     public static Integer flushOffsetSize;
     public static Integer flushInterval;
+    // 定时刷mysql时，一条多行upsert最多包含的partition数
+    public static Integer flushBatchSize = 500;
+    // 不配置时同步写offset；配置后offset交给OffsetWriteBehind，同一个partition在一个窗口里只写一次
+    public static Long offsetCommitWindowMs;
+    public static final String OFFSET_STORE_MYSQL = "mysql";
+    public static final String OFFSET_STORE_KAFKA = "kafka";
+    // offset保存在mysql的表里，还是用commitAsync提交到kafka的__consumer_offsets
+    public static String offsetStore = OFFSET_STORE_MYSQL;
+    // 打开后offset表需要epoch字段，认领partition时epoch加1，offset只在epoch相同时写入，旧owner的写入被mysql拒绝
+    public static Boolean offsetFencing = false;
+    public static final String STORE_WRITE_POLICY_ANY = "any";
+    public static final String STORE_WRITE_POLICY_BOTH = "both";
+    public static final String STORE_WRITE_POLICY_PRIMARY_ASYNC_BACKUP = "primary-async-backup";
+    // 主存储和备用存储同时写，any：一个成功就算成功；both：两个都成功才算成功；primary-async-backup：只看主存储，备用存储在后台写
+    public static String storeWritePolicy = STORE_WRITE_POLICY_ANY;
+    // 等待备用存储读写的最长时间，超时算失败
+    public static Long storeTimeoutMs = 5000L;
+    // 排队等待写入备用存储的最大个数，满了之后不等待结果的写入直接跳过，需要等待结果的在调用线程里执行
+    public static Integer storeBackupQueueSize = 1000;
+    // stop超时之后，最多再等待这么久让consume线程和处理线程关闭
+    public static Long shutdownDrainTimeoutMs = 15000L;
+    // 静态成员，每个consume线程的group.instance.id是前缀加上线程下标，重启时在session.timeout.ms内回来不会触发rebalance
+    public static Boolean staticMembership = false;
+    public static String groupInstanceIdPrefix = hostname;
     private static String maxPartitionFetchBytes = "524288";
     private static String heartbeatInterval = "10000";
     public static String sessionTimeout = "30000";
@@ -37,6 +62,42 @@ public class KafkaMysqlOffsetParameter {
     public static Integer pollInterval = 50;
     public static Integer maxPollRecords = 1000;
     public static String partitionAssignmentStrategy;
+    // 不需要解码成String时可以用ByteArrayDeserializer、ByteBufferDeserializer或者LazyStringDeserializer
+    public static String keyDeserializer = "org.apache.kafka.common.serialization.StringDeserializer";
+    public static String valueDeserializer = "org.apache.kafka.common.serialization.StringDeserializer";
+    // 处理线程每次交给NewIDataBatchProcessor的最大record数、最大字节数，以及凑批的最长等待时间
+    public static Integer processBatchSize = 500;
+    public static Long processBatchBytes = 4194304L;
+    public static Long processBatchLingerMs = 0L;
+    // poll线程和处理线程之间环形队列的大小（向上取2的幂）和等待策略：busy-spin, yield, park
+    public static Integer processQueueCapacity = 4096;
+    public static String processQueueWaitStrategy = WaitStrategies.PARK;
+    // 处理线程总数，所有consume线程（process.thread.num个KafkaConsumer）共用，默认和process.thread.num一样；
+    // 以及record分配到处理线程的方式：partition或者key，同一个partition/key的record保持顺序
+    // 大于1时dataProcessor会被多个处理线程同时调用，需要是线程安全的
+    public static Integer processWorkerNum = 1;
+    public static String processWorkerRoute = "partition";
+    // 处理线程的类型：platform或者virtual，virtual需要jdk21及以上，处理线程主要在等io时可以把process.worker.num调到上千
+    public static String processWorkerThreadType = "platform";
+    // 每个partition最多缓冲多少条还没处理完的record，超过就只暂停这个partition；所有partition缓冲的字节数超过上限时全部暂停
+    public static Integer partitionBufferRecords = 2000;
+    // poll自动调节：throughput或者latency，不配置时poll.interval和partition.buffer.records固定不变。
+    // 调节时poll超时在poll.interval.min和poll.interval.max之间，每个partition的缓冲额度在partition.buffer.records.min和partition.buffer.records之间，
+    // poll.tuner.target.buffer.ms是每个partition缓冲多少毫秒能处理完的record，throughput默认1000，latency默认100
+    public static String pollTunerObjective;
+    public static Integer pollIntervalMin = 10;
+    public static Integer pollIntervalMax = 500;
+    public static Integer partitionBufferRecordsMin = 100;
+    public static Long pollTunerTargetBufferMs;
+    // 只能在创建KafkaConsumer时设置，不配置时throughput用65536和100，latency用kafka的默认值
+    private static String fetchMinBytes;
+    private static String fetchMaxWaitMs;
+    public static Long processBufferMaxBytes = 134217728L;
+    // 已经交给NewIDataAsyncProcessor、future还没完成的record数，每个partition和每个consume线程的上限
+    public static Integer asyncPartitionInFlightRecords = 2000;
+    public static Integer asyncThreadInFlightRecords = 10000;
+    // 一批record处理失败时是否照样推进offset，默认不推进，offset停在失败的record之前
+    public static Boolean processAdvanceOnFailure = false;
     public static Properties kafkaConf;
 
     // public static void setMaxPartitionFetchBytes(Long maxPartitionFetchBytes)
@@ -58,9 +119,19 @@ public class KafkaMysqlOffsetParameter {
         // Control maximum data on each poll, make sure this value is bigger
         // than the maximum single record size
         kafkaConf.put("max.partition.fetch.bytes", KafkaMysqlOffsetParameter.maxPartitionFetchBytes);
-        kafkaConf.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-        kafkaConf.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        kafkaConf.put("key.deserializer", KafkaMysqlOffsetParameter.keyDeserializer);
+        kafkaConf.put("value.deserializer", KafkaMysqlOffsetParameter.valueDeserializer);
         kafkaConf.put("auto.offset.reset", KafkaMysqlOffsetParameter.autoOffsetReset);
+        if (fetchMinBytes != null) {
+            kafkaConf.put("fetch.min.bytes", fetchMinBytes);
+        } else if ("throughput".equals(pollTunerObjective)) {
+            kafkaConf.put("fetch.min.bytes", "65536");
+        }
+        if (fetchMaxWaitMs != null) {
+            kafkaConf.put("fetch.max.wait.ms", fetchMaxWaitMs);
+        } else if ("throughput".equals(pollTunerObjective)) {
+            kafkaConf.put("fetch.max.wait.ms", "100");
+        }
         if (StringUtils.isNotBlank(partitionAssignmentStrategy)) {
             kafkaConf.put("partition.assignment.strategy", KafkaMysqlOffsetParameter.partitionAssignmentStrategy);
         }
@@ -118,6 +189,131 @@ public class KafkaMysqlOffsetParameter {
         if (prop.get("partition.assignment.strategy") != null) {
             partitionAssignmentStrategy = prop.get("partition.assignment.strategy");
         }
+        if (prop.get("key.deserializer") != null) {
+            keyDeserializer = prop.get("key.deserializer");
+        }
+        if (prop.get("value.deserializer") != null) {
+            valueDeserializer = prop.get("value.deserializer");
+        }
+        if (prop.get("flush.batch.size") != null) {
+            flushBatchSize = Integer.parseInt(prop.get("flush.batch.size"));
+            assert flushBatchSize > 0;
+        }
+        if (prop.get("offset.store") != null) {
+            offsetStore = prop.get("offset.store");
+            assert (offsetStore.equals(OFFSET_STORE_MYSQL) || offsetStore.equals(OFFSET_STORE_KAFKA));
+        }
+        if (prop.get("offset.fencing") != null) {
+            offsetFencing = Boolean.parseBoolean(prop.get("offset.fencing"));
+        }
+        if (prop.get("store.write.policy") != null) {
+            storeWritePolicy = prop.get("store.write.policy");
+            assert (storeWritePolicy.equals(STORE_WRITE_POLICY_ANY) || storeWritePolicy.equals(STORE_WRITE_POLICY_BOTH)
+                    || storeWritePolicy.equals(STORE_WRITE_POLICY_PRIMARY_ASYNC_BACKUP));
+        }
+        if (prop.get("store.timeout.ms") != null) {
+            storeTimeoutMs = Long.parseLong(prop.get("store.timeout.ms"));
+            assert storeTimeoutMs > 0;
+        }
+        if (prop.get("store.backup.queue.size") != null) {
+            storeBackupQueueSize = Integer.parseInt(prop.get("store.backup.queue.size"));
+            assert storeBackupQueueSize > 0;
+        }
+        if (prop.get("static.membership") != null) {
+            staticMembership = Boolean.parseBoolean(prop.get("static.membership"));
+        }
+        if (prop.get("group.instance.id.prefix") != null) {
+            groupInstanceIdPrefix = prop.get("group.instance.id.prefix");
+            assert !groupInstanceIdPrefix.isEmpty();
+        }
+        if (prop.get("shutdown.drain.timeout.ms") != null) {
+            shutdownDrainTimeoutMs = Long.parseLong(prop.get("shutdown.drain.timeout.ms"));
+            assert shutdownDrainTimeoutMs >= 0;
+        }
+        if (prop.get("offset.commit.window.ms") != null) {
+            offsetCommitWindowMs = Long.parseLong(prop.get("offset.commit.window.ms"));
+            assert offsetCommitWindowMs > 0;
+        }
+        if (prop.get("process.batch.size") != null) {
+            processBatchSize = Integer.parseInt(prop.get("process.batch.size"));
+            assert processBatchSize > 0;
+        }
+        if (prop.get("process.batch.bytes") != null) {
+            processBatchBytes = Long.parseLong(prop.get("process.batch.bytes"));
+            assert processBatchBytes > 0;
+        }
+        if (prop.get("process.batch.linger.ms") != null) {
+            processBatchLingerMs = Long.parseLong(prop.get("process.batch.linger.ms"));
+            assert processBatchLingerMs >= 0;
+        }
+        if (prop.get("process.queue.capacity") != null) {
+            processQueueCapacity = Integer.parseInt(prop.get("process.queue.capacity"));
+            assert processQueueCapacity > 0;
+        }
+        if (prop.get("process.queue.wait.strategy") != null) {
+            processQueueWaitStrategy = prop.get("process.queue.wait.strategy");
+            assert (processQueueWaitStrategy.equals(WaitStrategies.BUSY_SPIN) || processQueueWaitStrategy.equals(WaitStrategies.YIELD)
+                    || processQueueWaitStrategy.equals(WaitStrategies.PARK));
+        }
+        if (prop.get("process.worker.num") != null) {
+            processWorkerNum = Integer.parseInt(prop.get("process.worker.num"));
+            assert processWorkerNum > 0;
+        } else {
+            processWorkerNum = processThreadNum;
+        }
+        if (prop.get("process.worker.route") != null) {
+            processWorkerRoute = prop.get("process.worker.route");
+            assert (processWorkerRoute.equals("partition") || processWorkerRoute.equals("key"));
+        }
+        if (prop.get("process.worker.thread.type") != null) {
+            processWorkerThreadType = prop.get("process.worker.thread.type");
+            assert (processWorkerThreadType.equals("platform") || processWorkerThreadType.equals("virtual"));
+        }
+        if (prop.get("partition.buffer.records") != null) {
+            partitionBufferRecords = Integer.parseInt(prop.get("partition.buffer.records"));
+            assert partitionBufferRecords > 0;
+        }
+        if (prop.get("poll.tuner.objective") != null) {
+            pollTunerObjective = prop.get("poll.tuner.objective");
+            assert (pollTunerObjective.equals("throughput") || pollTunerObjective.equals("latency"));
+        }
+        if (prop.get("poll.interval.min") != null) {
+            pollIntervalMin = Integer.parseInt(prop.get("poll.interval.min"));
+            assert pollIntervalMin > 0;
+        }
+        if (prop.get("poll.interval.max") != null) {
+            pollIntervalMax = Integer.parseInt(prop.get("poll.interval.max"));
+            assert pollIntervalMax >= pollIntervalMin;
+        }
+        if (prop.get("partition.buffer.records.min") != null) {
+            partitionBufferRecordsMin = Integer.parseInt(prop.get("partition.buffer.records.min"));
+            assert partitionBufferRecordsMin > 0;
+        }
+        if (prop.get("poll.tuner.target.buffer.ms") != null) {
+            pollTunerTargetBufferMs = Long.parseLong(prop.get("poll.tuner.target.buffer.ms"));
+            assert pollTunerTargetBufferMs > 0;
+        }
+        if (prop.get("fetch.min.bytes") != null) {
+            fetchMinBytes = prop.get("fetch.min.bytes");
+        }
+        if (prop.get("fetch.max.wait.ms") != null) {
+            fetchMaxWaitMs = prop.get("fetch.max.wait.ms");
+        }
+        if (prop.get("process.buffer.max.bytes") != null) {
+            processBufferMaxBytes = Long.parseLong(prop.get("process.buffer.max.bytes"));
+            assert processBufferMaxBytes > 0;
+        }
+        if (prop.get("process.async.partition.inflight") != null) {
+            asyncPartitionInFlightRecords = Integer.parseInt(prop.get("process.async.partition.inflight"));
+            assert asyncPartitionInFlightRecords > 0;
+        }
+        if (prop.get("process.async.thread.inflight") != null) {
+            asyncThreadInFlightRecords = Integer.parseInt(prop.get("process.async.thread.inflight"));
+            assert asyncThreadInFlightRecords > 0;
+        }
+        if (prop.get("process.advance.on.failure") != null) {
+            processAdvanceOnFailure = Boolean.parseBoolean(prop.get("process.advance.on.failure"));
+        }
         createKafkaConfProp();
     }
 
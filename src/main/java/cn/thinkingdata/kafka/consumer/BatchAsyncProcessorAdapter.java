@@ -0,0 +1,34 @@
+package cn.thinkingdata.kafka.consumer;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 把同步的NewIDataBatchProcessor适配成NewIDataAsyncProcessor，processBatch返回时这批record就处理完了
+ */
+public class BatchAsyncProcessorAdapter<K, V> implements NewIDataAsyncProcessor<K, V> {
+
+    private final NewIDataBatchProcessor<K, V> batchDataProcessor;
+
+    public BatchAsyncProcessorAdapter(NewIDataBatchProcessor<K, V> batchDataProcessor) {
+        this.batchDataProcessor = batchDataProcessor;
+    }
+
+    public NewIDataBatchProcessor<K, V> getBatchDataProcessor() {
+        return batchDataProcessor;
+    }
+
+    @Override
+    public CompletableFuture<?> processBatchAsync(TopicPartition topicPartition, List<ConsumerRecord<K, V>> consumerRecords) {
+        batchDataProcessor.processBatch(topicPartition, consumerRecords);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void finishProcess() {
+        batchDataProcessor.finishProcess();
+    }
+}
@@ -0,0 +1,44 @@
+package cn.thinkingdata.kafka.consumer;
+
+import cn.thinkingdata.kafka.util.CommonUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * 把逐条处理的NewIDataLineProcessor适配成NewIDataBatchProcessor
+ */
+public class DataLineBatchProcessorAdapter implements NewIDataBatchProcessor<String, String> {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataLineBatchProcessorAdapter.class);
+
+    private final NewIDataLineProcessor dataLineProcessor;
+
+    public DataLineBatchProcessorAdapter(NewIDataLineProcessor dataLineProcessor) {
+        this.dataLineProcessor = dataLineProcessor;
+    }
+
+    public NewIDataLineProcessor getDataLineProcessor() {
+        return dataLineProcessor;
+    }
+
+    @Override
+    public void processBatch(TopicPartition topicPartition, List<ConsumerRecord<String, String>> consumerRecords) {
+        for (ConsumerRecord<String, String> consumerRecord : consumerRecords) {
+            // 和逐条处理时一样，一条出错不影响同一批次里的其他record
+            try {
+                dataLineProcessor.processData(consumerRecord);
+            } catch (Exception e) {
+                logger.error("processData error, the consumerRecord is " + consumerRecord + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            }
+        }
+    }
+
+    @Override
+    public void finishProcess() {
+        dataLineProcessor.finishProcess();
+    }
+}
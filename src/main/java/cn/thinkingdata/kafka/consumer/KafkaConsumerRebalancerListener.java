@@ -3,17 +3,22 @@ package cn.thinkingdata.kafka.consumer;
 import cn.thinkingdata.kafka.cache.KafkaCache;
 import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
-import cn.thinkingdata.kafka.consumer.offset.MysqlOffsetManager;
+import cn.thinkingdata.kafka.consumer.exception.TaKafkaCommonException;
 import cn.thinkingdata.kafka.consumer.offset.OffsetManager;
 import cn.thinkingdata.kafka.consumer.persist.MysqlOffsetPersist;
+import cn.thinkingdata.kafka.util.CommonUtils;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Re-balancer for any subscription changes.
@@ -22,11 +27,16 @@ public class KafkaConsumerRebalancerListener implements ConsumerRebalanceListene
 
     private static final Logger logger = LoggerFactory.getLogger(KafkaConsumerRebalancerListener.class);
 
-    private final OffsetManager offsetManager = MysqlOffsetManager.getInstance();
+    private final OffsetManager offsetManager = OffsetManager.getInstance();
 
-    private final KafkaConsumer<String, String> consumer;
+    private final KafkaConsumer<?, ?> consumer;
 
-    public KafkaConsumerRebalancerListener(KafkaConsumer<String, String> consumer) {
+    // kafka-clients 2.3只有eager rebalance，每次都会收回所有partition。收回时记下offset和consumer的position，
+    // 重新分配回来、期间没有被其他consumer消费过的partition不丢弃缓冲区，从原来的position接着拉取；其他的partition都丢弃
+    private final Map<TopicPartition, KafkaConsumerOffset> lastRevokedOffsets = new HashMap<>();
+    private final Map<TopicPartition, Long> lastRevokedPositions = new HashMap<>();
+
+    public KafkaConsumerRebalancerListener(KafkaConsumer<?, ?> consumer) {
         this.consumer = consumer;
     }
 
@@ -36,23 +46,44 @@ public class KafkaConsumerRebalancerListener implements ConsumerRebalanceListene
     @Override
     public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
         logger.info("start onPartitionsRevoked!");
+        KafkaSubscribeConsumeThread<?, ?> ownerConsumeThread = getConsumeThread();
+        // 上一次收回之后没有分配，保留的缓冲区不再需要
+        for (TopicPartition partition : lastRevokedPositions.keySet()) {
+            if (ownerConsumeThread != null) {
+                ownerConsumeThread.removePartitionBuffer(partition);
+            }
+        }
+        lastRevokedOffsets.clear();
+        lastRevokedPositions.clear();
+        // 先暂停收回的partition，processDataWorker留着它们的record，分配结果出来之前watermark不再前进
+        if (ownerConsumeThread != null) {
+            for (TopicPartition partition : partitions) {
+                ownerConsumeThread.suspendPartitionBuffer(partition);
+            }
+        }
+        // 先记下所有收回的partition的offset，再一次性保存
+        List<KafkaConsumerOffset> revokedOffsets = new ArrayList<>();
         for (TopicPartition partition : partitions) {
             KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(partition);
             if (kafkaConsumerOffset != null) {
-                kafkaConsumerOffset.setOffset(consumer.position(partition));
-                KafkaCache.kafkaConsumerOffsetMaps.put(partition, kafkaConsumerOffset);
-                MysqlOffsetPersist.getInstance().flush(kafkaConsumerOffset);
-                //删除kafkaConsumerOffsetSet里的kafkaConsumerOffset
-                for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
-                    if (consumeThread.consumer.equals(consumer)) {
-                        logger.debug("consumeThread.kafkaConsumerOffsetSet remove kafkaConsumerOffset, the kafkaConsumerOffset is " + kafkaConsumerOffset);
-                        consumeThread.kafkaConsumerOffsetSet.remove(kafkaConsumerOffset);
-                    }
+                // 只保存已经处理完的offset，而不是consumer的position
+                Long safeOffset = ownerConsumeThread == null ? consumer.position(partition) : ownerConsumeThread.getSafeOffset(partition);
+                if (safeOffset != null && safeOffset > kafkaConsumerOffset.getOffset()) {
+                    kafkaConsumerOffset.setOffset(safeOffset);
                 }
+                revokedOffsets.add(kafkaConsumerOffset);
+                lastRevokedOffsets.put(partition, kafkaConsumerOffset);
             }
+            if (ownerConsumeThread != null) {
+                rememberPosition(ownerConsumeThread, partition);
+            }
+        }
+        if (!revokedOffsets.isEmpty()) {
+            // 配置了offset.commit.window.ms时和其他consumer的offset一起写入，rebalance要等写入完成
+            MysqlOffsetPersist.getInstance().revokeAsync(revokedOffsets).join();
         }
-        //有特殊的情况，就是两个线程同时拥有一个partition，这时，需要手动清空kafkaConsumerOffsetSet
-        for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
+        // 收回的offset已经保存，直接清空kafkaConsumerOffsetSet，两个线程同时拥有一个partition的特殊情况也一起处理
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
             if (consumeThread.consumer.equals(consumer)) {
                 consumeThread.kafkaConsumerOffsetSet.clear();
                 if (consumeThread.assignedPartitions != null) {
@@ -69,10 +100,69 @@ public class KafkaConsumerRebalancerListener implements ConsumerRebalanceListene
     public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
         logger.info("start onPartitionsAssigned!");
         Date now = new Date();
+        KafkaSubscribeConsumeThread<?, ?> ownerConsumeThread = getConsumeThread();
+        // 真正移走的partition，丢弃还没交给processDataWorker的record
+        for (TopicPartition partition : lastRevokedPositions.keySet()) {
+            if (!partitions.contains(partition) && ownerConsumeThread != null) {
+                ownerConsumeThread.removePartitionBuffer(partition);
+            }
+        }
+        // 每个topic一次读取所有partition的offset和epoch，分配回来的partition也要读，确认收回之后没有被其他consumer拿走过
+        Map<String, List<Integer>> partitionsPerTopic = new HashMap<>();
         for (TopicPartition partition : partitions) {
-            consumer.seek(partition, offsetManager.readOffsetFromCache(partition.topic(), partition.partition()).getOffset());
-            TopicPartition topicPartition = new TopicPartition(partition.topic(), partition.partition());
-            KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            partitionsPerTopic.computeIfAbsent(partition.topic(), k -> new ArrayList<>()).add(partition.partition());
+        }
+        Map<TopicPartition, KafkaConsumerOffset> assignedOffsets = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : partitionsPerTopic.entrySet()) {
+            for (Map.Entry<Integer, KafkaConsumerOffset> offsetEntry : offsetManager.readOffsetsFromCache(entry.getKey(), entry.getValue()).entrySet()) {
+                assignedOffsets.put(new TopicPartition(entry.getKey(), offsetEntry.getKey()), offsetEntry.getValue());
+            }
+        }
+        // epoch没变、存储里的offset也没有超过收回时的offset，才能用收回时的offset和position接着处理
+        Map<TopicPartition, KafkaConsumerOffset> keptOffsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            KafkaConsumerOffset revokedOffset = lastRevokedOffsets.get(partition);
+            KafkaConsumerOffset storedOffset = assignedOffsets.get(partition);
+            if (revokedOffset == null || storedOffset == null || !lastRevokedPositions.containsKey(partition)) {
+                continue;
+            }
+            if (ownerConsumeThread != null && ownerConsumeThread.isPartitionBufferFailed(partition)) {
+                logger.info("the partition has failed records, process it again from the stored offset " + storedOffset);
+                continue;
+            }
+            if (revokedOffset.isFenced()
+                    || storedOffset.getEpoch().longValue() != revokedOffset.getEpoch().longValue()
+                    || storedOffset.getOffsetValue() > revokedOffset.getOffsetValue()) {
+                logger.info("the partition is consumed by another consumer after revoked, the stored offset is " + storedOffset
+                        + ", the revoked offset is " + revokedOffset);
+                continue;
+            }
+            KafkaCache.kafkaConsumerOffsetMaps.put(partition, revokedOffset);
+            assignedOffsets.put(partition, revokedOffset);
+            keptOffsets.put(partition, revokedOffset);
+        }
+        logger.info("the kept partitions size is " + keptOffsets.size() + ", the moved in partitions size is " + (partitions.size() - keptOffsets.size())
+                + ", the moved out partitions size is " + (lastRevokedPositions.size() - keptOffsets.size()));
+        List<KafkaConsumerOffset> ownerOffsets = new ArrayList<>();
+        for (TopicPartition partition : partitions) {
+            KafkaConsumerOffset kafkaConsumerOffset = assignedOffsets.get(partition);
+            if (kafkaConsumerOffset == null) {
+                // 和逐个读取时一样，读不到offset就不能继续
+                throw new TaKafkaCommonException("can not read offset from mysql and backup store, the partition is " + partition);
+            }
+            if (keptOffsets.containsKey(partition)) {
+                // 缓冲区和正在处理的record都保留，从收回时的position接着拉取
+                consumer.seek(partition, lastRevokedPositions.get(partition));
+                if (ownerConsumeThread != null) {
+                    ownerConsumeThread.resumePartitionBuffer(partition);
+                }
+            } else {
+                Long offset = kafkaConsumerOffset.getOffset();
+                consumer.seek(partition, offset);
+                if (ownerConsumeThread != null) {
+                    ownerConsumeThread.resetPartitionBuffer(partition, offset);
+                }
+            }
             // 设定owner
             kafkaConsumerOffset.setOwner(KafkaMysqlOffsetParameter.kafkaClusterName
                     + "-"
@@ -88,13 +178,46 @@ public class KafkaConsumerRebalancerListener implements ConsumerRebalanceListene
                     + "-"
                     + consumer.toString().substring(
                     consumer.toString().lastIndexOf("@") + 1));
-            MysqlOffsetPersist.getInstance().updateOwner(kafkaConsumerOffset);
-            for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
-                if (consumeThread.consumer.equals(consumer)) {
-                    consumeThread.assignedPartitions = partitions;
-                }
+            ownerOffsets.add(kafkaConsumerOffset);
+        }
+        if (!ownerOffsets.isEmpty()) {
+            MysqlOffsetPersist.getInstance().updateOwners(ownerOffsets);
+        }
+        // persist线程从这里开始为每个partition安排心跳，没有新数据的partition也会定时保存
+        for (TopicPartition partition : partitions) {
+            KafkaCache.dirtyOffsetTracker.markDirty(partition);
+        }
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
+            if (consumeThread.consumer.equals(consumer)) {
+                consumeThread.assignedPartitions = partitions;
+            }
+        }
+        lastRevokedOffsets.clear();
+        lastRevokedPositions.clear();
+        logger.info("finish onPartitionsAssigned! the skipped records of revoked partitions is " + KafkaCache.skippedRevokedRecords.get());
+    }
+
+    // 拿不到position的partition不能接着拉取，直接丢弃缓冲区
+    private void rememberPosition(KafkaSubscribeConsumeThread<?, ?> ownerConsumeThread, TopicPartition partition) {
+        if (!lastRevokedOffsets.containsKey(partition)) {
+            ownerConsumeThread.removePartitionBuffer(partition);
+            return;
+        }
+        try {
+            lastRevokedPositions.put(partition, consumer.position(partition));
+        } catch (Exception e) {
+            logger.error("can not get the position of the revoked partition " + partition + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            lastRevokedOffsets.remove(partition);
+            ownerConsumeThread.removePartitionBuffer(partition);
+        }
+    }
+
+    private KafkaSubscribeConsumeThread<?, ?> getConsumeThread() {
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
+            if (consumeThread.consumer.equals(consumer)) {
+                return consumeThread;
             }
         }
-        logger.info("finish onPartitionsAssigned!");
+        return null;
     }
 }
\ No newline at end of file
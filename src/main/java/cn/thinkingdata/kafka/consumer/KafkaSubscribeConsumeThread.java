@@ -2,11 +2,13 @@ package cn.thinkingdata.kafka.consumer;
 
 import cn.thinkingdata.kafka.cache.KafkaCache;
 import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.assignor.PartitionLoadStats;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
-import cn.thinkingdata.kafka.consumer.offset.MysqlOffsetManager;
 import cn.thinkingdata.kafka.consumer.offset.OffsetManager;
 import cn.thinkingdata.kafka.consumer.persist.MysqlOffsetPersist;
+import cn.thinkingdata.kafka.consumer.queue.PartitionBuffer;
 import cn.thinkingdata.kafka.util.CommonUtils;
+import cn.thinkingdata.kafka.util.ThreadFactoryUtil;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
@@ -19,60 +21,80 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-public class KafkaSubscribeConsumeThread implements Runnable {
+public class KafkaSubscribeConsumeThread<K, V> implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(KafkaSubscribeConsumeThread.class);
-    private final NewIDataLineProcessor dataProcessor;
-    public KafkaConsumer<String, String> consumer;
-    private final OffsetManager offsetManager = MysqlOffsetManager.getInstance();
+    public KafkaConsumer<K, V> consumer;
+    private final OffsetManager offsetManager = OffsetManager.getInstance();
     public volatile Boolean kafkaPollFlag = false;
     public volatile Boolean kafkaConsumerFlag = false;
+    // poll循环退出、consumer关闭之后countDown，KafkaSubscribeConsumer.stop等待它们，不用轮询kafkaPollFlag和kafkaConsumerFlag
+    private final CountDownLatch pollStopped = new CountDownLatch(1);
+    private final CountDownLatch consumerClosed = new CountDownLatch(1);
     // public volatile Boolean offsetFlushFlag = false;
     private final CyclicBarrier offsetFlushBarrier;
     public volatile Collection<TopicPartition> assignedPartitions = null;
-    private final BlockingQueue<ConsumerRecord<String, String>> unsent = new LinkedBlockingQueue<>();
+    // 每个partition自己的缓冲额度，processDataWorker处理完之后归还
+    private final Map<TopicPartition, PartitionBuffer<K, V>> partitionBuffers = new ConcurrentHashMap<>();
+    private Collection<TopicPartition> lastAssignedPartitions = null;
     public Set<KafkaConsumerOffset> kafkaConsumerOffsetSet = new HashSet<KafkaConsumerOffset>();
-    // records的初始值是1000，所以这边capacity的值设为3000
-    private final BlockingQueue<ConsumerRecord<String, String>> processDataQueue =
-            new LinkedBlockingQueue<>(3000);
     private volatile Thread consumerThread;
-    public ProcessDataWorker processDataWorker = new ProcessDataWorker();
+    // 和其他consume线程共用的处理线程，pollThreadIndex是这个consume线程在processDataWorker里的队列下标
+    private final ProcessDataWorkerPool<K, V> processDataWorkerPool;
+    private final int pollThreadIndex;
+    private final PollTuner pollTuner = new PollTuner();
 
 
-    /**
-     * The consumer is currently paused due to a slow execution data. The consumer will be
-     * resumed when the current batch of records has been processed but will continue
-     * to be polled.
-     */
-    private volatile Boolean paused = false;
-
-    public KafkaSubscribeConsumeThread(KafkaConsumer<String, String> consumer, NewIDataLineProcessor dataProcessor, CyclicBarrier offsetFlushBarrier) {
+    public KafkaSubscribeConsumeThread(KafkaConsumer<K, V> consumer, ProcessDataWorkerPool<K, V> processDataWorkerPool, int pollThreadIndex, CyclicBarrier offsetFlushBarrier) {
         this.consumer = consumer;
-        this.dataProcessor = dataProcessor;
+        this.processDataWorkerPool = processDataWorkerPool;
+        this.pollThreadIndex = pollThreadIndex;
         this.offsetFlushBarrier = offsetFlushBarrier;
     }
 
+    // 单独使用时，这个consume线程独占process.worker.num个处理线程
+    public KafkaSubscribeConsumeThread(KafkaConsumer<K, V> consumer, NewIDataAsyncProcessor<K, V> dataProcessor, CyclicBarrier offsetFlushBarrier, ThreadFactory workerThreadFactory) {
+        this(consumer, new ProcessDataWorkerPool<>(dataProcessor, 1, KafkaMysqlOffsetParameter.processWorkerNum, workerThreadFactory), 0, offsetFlushBarrier);
+    }
+
+    public KafkaSubscribeConsumeThread(KafkaConsumer<K, V> consumer, NewIDataAsyncProcessor<K, V> dataProcessor, CyclicBarrier offsetFlushBarrier) {
+        this(consumer, dataProcessor, offsetFlushBarrier, ThreadFactoryUtil.createThreadFactory(
+                KafkaMysqlOffsetParameter.processWorkerThreadType, "working thread"));
+    }
+
+    public KafkaSubscribeConsumeThread(KafkaConsumer<K, V> consumer, NewIDataBatchProcessor<K, V> dataProcessor, CyclicBarrier offsetFlushBarrier) {
+        this(consumer, new BatchAsyncProcessorAdapter<>(dataProcessor), offsetFlushBarrier);
+    }
+
+    // NewIDataLineProcessor只能处理String类型的record，consumer必须用StringDeserializer
+    @SuppressWarnings("unchecked")
+    public KafkaSubscribeConsumeThread(KafkaConsumer<K, V> consumer, NewIDataLineProcessor dataProcessor, CyclicBarrier offsetFlushBarrier) {
+        this(consumer, (NewIDataBatchProcessor<K, V>) (NewIDataBatchProcessor<?, ?>) new DataLineBatchProcessorAdapter(dataProcessor), offsetFlushBarrier);
+    }
+
     @Override
     public void run() {
         consumerThread = Thread.currentThread();
         kafkaConsumerFlag = true;
-        //启动processDataWorker
-        new Thread(processDataWorker, consumerThread.getName() + "-" + "working thread").start();
-        Set<ConsumerRecord<String, String>> lastConsumerRecordSet = new HashSet<ConsumerRecord<String, String>>();
-        Long count = 0L;
+        //启动processDataWorker，多个consume线程共用时只有第一个会启动
+        processDataWorkerPool.start();
+        long count = 0L;
         DateTime sessionTimeoutDataTime = new DateTime().plusSeconds(Integer.parseInt(KafkaMysqlOffsetParameter.sessionTimeout));
         try {
             while (!KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.get()) {
@@ -82,21 +104,22 @@ public class KafkaSubscribeConsumeThread implements Runnable {
                     // 如果执行dataExecute的时间超过了sessionTimeout
                     if (sessionTimeoutDataTime.isAfterNow()) {
                         // 如果有新的consumer，则调用rebalance，并阻塞线程
-                        ConsumerRecords<String, String> records = null;
+                        ConsumerRecords<K, V> records = null;
                         try {
-                            records = consumer.poll(KafkaMysqlOffsetParameter.pollInterval);
+                            records = consumer.poll(pollTuner.getPollTimeoutMs());
                         } catch (OffsetOutOfRangeException e) {
                             logger.error("consumer poll out of range, the error is " + CommonUtils.getStackTraceAsString(e));
                             for (TopicPartition topicPartition : consumer.assignment()) {
                                 logger.error("the topicPartition is " + topicPartition.toString() + ",the offset is " + consumer.position(topicPartition));
                             }
                             synchronized (OffsetManager.class) {
-                                MysqlOffsetManager.getInstance().getExternalStorePersist().executeWhenOffsetReset(this);
+                                OffsetManager.getInstance().getExternalStorePersist().executeWhenOffsetReset(this);
                             }
                         }
                         // 计算开始时间
                         sessionTimeoutDataTime = new DateTime().plusSeconds(Integer.parseInt(KafkaMysqlOffsetParameter.sessionTimeout) / 1000);
                         logger.debug("sessionTimeoutDataTime is " + sessionTimeoutDataTime.toString());
+                        long polledBytes = 0L;
                         if (records != null) {
                             if (records.count() > 0) {
                                 logger.debug("poll records size: " + records.count()
@@ -104,34 +127,21 @@ public class KafkaSubscribeConsumeThread implements Runnable {
                                         + ", thread is "
                                         + Thread.currentThread().getName());
                             }
-                            //先暂停
-                            pause();
-                            //放到队列
-                            sendToQueue(records);
-                            //恢复
-                            if (isResume()) {
-                                resume();
-                            } else {
-                                // 休息30豪秒
-                                Thread.sleep(30);
-                            }
-                            if (CollectionUtils.isNotEmpty(assignedPartitions)) {
-                                for (TopicPartition assignedPartition : assignedPartitions) {
-                                    List<ConsumerRecord<String, String>> recordsListPerPartition = records.records(assignedPartition);
-                                    if (CollectionUtils.isNotEmpty(recordsListPerPartition)) {
-                                        ConsumerRecord<String, String> lastRecord = recordsListPerPartition.get(recordsListPerPartition.size() - 1);
-                                        lastConsumerRecordSet.add(lastRecord);
-                                    }
-                                }
-                            }
-                            // 更新offset
-                            saveLastConsumerRecordSet(this, lastConsumerRecordSet, count, false);
-                            lastConsumerRecordSet.clear();
+                            //放到每个partition的缓冲区
+                            polledBytes = sendToPartitionBuffers(records);
                         }
+                        //把缓冲区里的record交给processDataWorker，再只暂停超过额度的partition，poll循环里不sleep
+                        dispatchPartitionBuffers(false);
+                        pauseOrResumePartitions();
+                        tunePoll(records == null ? 0 : records.count(), polledBytes);
+                        // 更新offset，只保存已经处理完的offset
+                        saveProcessedOffsets(this, count, false);
+                        // offset存在kafka时，在这里提交persist线程交过来的offset
+                        offsetManager.afterPoll(this);
                     } else {
                         // sessionTimeOut了，进行异常处理
                         logger.info("kafka session time out, the consumer is " + consumer.toString());
-                        MysqlOffsetManager.getInstance()
+                        OffsetManager.getInstance()
                                 .getExternalStorePersist()
                                 .executeWhenExecuteDataSessionTimeout(this);
                         break;
@@ -161,12 +171,12 @@ public class KafkaSubscribeConsumeThread implements Runnable {
                     + KafkaMysqlOffsetParameter.kafkaClusterName
                     + ", the Exception is " + CommonUtils.getStackTraceAsString(e));
             // 更新offset
-            saveLastConsumerRecordSet(this, lastConsumerRecordSet, count, true);
+            saveProcessedOffsets(this, count, true);
             kafkaPollFlag = false;
             logger.info("stop consumer with wakeup finished");
         } catch (Exception e) {
             // 更新offset
-            saveLastConsumerRecordSet(this, lastConsumerRecordSet, count, false);
+            saveProcessedOffsets(this, count, false);
             logger.error("stop consumer with exception, the kafkaSubscribeConsumerClosed is "
                     + KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.get()
                     + ", the thread is "
@@ -179,37 +189,52 @@ public class KafkaSubscribeConsumeThread implements Runnable {
             kafkaPollFlag = false;
             logger.info("stop consumer finished");
             synchronized (OffsetManager.class) {
-                MysqlOffsetManager.getInstance().getExternalStorePersist().executeWhenException();
+                OffsetManager.getInstance().getExternalStorePersist().executeWhenException();
             }
         } finally {
+            pollStopped.countDown();
             try {
                 closeKafkaSubscribeConsumeThread();
             } catch (Exception e) {
                 logger.error("closeKafkaSubscribeConsumeThread error, the thread is " + Thread.currentThread().getName() + ", the Exception is " + CommonUtils.getStackTraceAsString(e));
+            } finally {
+                consumerClosed.countDown();
             }
         }
     }
 
-    private void saveLastConsumerRecordSet(KafkaSubscribeConsumeThread consumeThread, Set<ConsumerRecord<String, String>> lastConsumerRecordSet, Long count, Boolean cleanOwner) {
-        for (ConsumerRecord<String, String> lastConsumerRecord : lastConsumerRecordSet) {
-            Date now = new Date();
-            TopicPartition topicPartition = new TopicPartition(lastConsumerRecord.topic(), lastConsumerRecord.partition());
+    // 保存每个partition连续处理完的offset，还在缓冲区或者正在处理的record不会被保存
+    // 每次poll都会调用，offset没有变化的partition不分配任何对象
+    private void saveProcessedOffsets(KafkaSubscribeConsumeThread<?, ?> consumeThread, long count, boolean cleanOwner) {
+        if (CollectionUtils.isEmpty(assignedPartitions)) {
+            return;
+        }
+        for (TopicPartition topicPartition : assignedPartitions) {
+            PartitionBuffer<K, V> partitionBuffer = partitionBuffers.get(topicPartition);
+            if (partitionBuffer == null) {
+                continue;
+            }
+            long processedOffset = partitionBuffer.getProcessedOffsetTracker().getWatermark();
             KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            if (processedOffset < 0L || (kafkaConsumerOffset != null && processedOffset <= kafkaConsumerOffset.getOffsetValue())) {
+                continue;
+            }
             if (kafkaConsumerOffset == null) {
-                logger.error("kafkaConsumerOffset is null in cache, the lastConsumerRecord is "
-                        + lastConsumerRecord
+                Date now = new Date();
+                logger.error("kafkaConsumerOffset is null in cache, the topicPartition is "
+                        + topicPartition
                         + ", the kafkaConsumerOffsetMaps is "
                         + Arrays.toString(KafkaCache.kafkaConsumerOffsetMaps.entrySet().toArray()));
                 kafkaConsumerOffset = offsetManager.readOffsetFromCache(
-                        lastConsumerRecord.topic(),
-                        lastConsumerRecord.partition());
+                        topicPartition.topic(),
+                        topicPartition.partition());
                 // 设定owner
                 kafkaConsumerOffset
                         .setOwner(KafkaMysqlOffsetParameter.kafkaClusterName
                                 + "-"
-                                + lastConsumerRecord.topic()
+                                + topicPartition.topic()
                                 + "-"
-                                + lastConsumerRecord.partition()
+                                + topicPartition.partition()
                                 + "-"
                                 + KafkaMysqlOffsetParameter.consumerGroup
                                 + "-"
@@ -220,43 +245,114 @@ public class KafkaSubscribeConsumeThread implements Runnable {
                                 + consumer.toString().substring(
                                 consumer.toString().lastIndexOf("@") + 1));
             }
-            kafkaConsumerOffset.setTopic(lastConsumerRecord.topic());
-            kafkaConsumerOffset.setPartition(lastConsumerRecord.partition());
-            kafkaConsumerOffset.setConsumer_group(KafkaMysqlOffsetParameter.consumerGroup);
-            kafkaConsumerOffset.setOffset(lastConsumerRecord.offset() + 1L);
-            kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
-            kafkaConsumerOffset.setCount(count);
+            if (kafkaConsumerOffset.isNull()) {
+                kafkaConsumerOffset.setTopic(topicPartition.topic());
+                kafkaConsumerOffset.setPartition(topicPartition.partition());
+                kafkaConsumerOffset.setConsumer_group(KafkaMysqlOffsetParameter.consumerGroup);
+                kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
+            }
+            kafkaConsumerOffset.setOffsetValue(processedOffset);
+            kafkaConsumerOffset.setCountValue(count);
             if (cleanOwner) {
                 //退出的时候清除Owner
                 kafkaConsumerOffset.setOwner("");
                 logger.info("clean owner, the thread is " + Thread.currentThread().getName() + ", the kafkaConsumerOffset is " + kafkaConsumerOffset.toString());
             }
             kafkaConsumerOffsetSet.add(kafkaConsumerOffset);
-            offsetManager.saveOffsetInCache(consumeThread, kafkaConsumerOffset);
+            offsetManager.saveOffsetInCache(consumeThread, topicPartition, kafkaConsumerOffset);
+        }
+    }
+
+    // 可以安全保存的offset：连续处理完的offset；这个partition没有还没处理完的record时，consumer的position也是安全的。
+    // 不属于这个consumer的partition返回null
+    public Long getSafeOffset(TopicPartition topicPartition) {
+        Long consumerPosition = null;
+        try {
+            if (!consumer.assignment().contains(topicPartition)) {
+                return null;
+            }
+            consumerPosition = consumer.position(topicPartition);
+        } catch (Exception e) {
+            logger.info("the consumer get position error, the error is "
+                    + e.toString()
+                    + ", the topicPartition is "
+                    + topicPartition);
+        }
+        PartitionBuffer<K, V> partitionBuffer = partitionBuffers.get(topicPartition);
+        if (partitionBuffer == null) {
+            return consumerPosition;
+        }
+        long safeOffset = partitionBuffer.getProcessedOffsetTracker().getSafeOffset(consumerPosition == null ? -1L : consumerPosition);
+        return safeOffset < 0L ? null : safeOffset;
+    }
+
+    // 分配到partition之后调用，从seek的offset开始记录处理完的offset
+    public void resetPartitionBuffer(TopicPartition topicPartition, long offset) {
+        PartitionBuffer<K, V> oldPartitionBuffer = partitionBuffers.put(topicPartition, new PartitionBuffer<>(topicPartition, offset));
+        if (oldPartitionBuffer != null) {
+            oldPartitionBuffer.revoke();
+        }
+    }
+
+    // partition被收回时调用，分配结果出来之前processDataWorker不处理它的record，也不推进watermark
+    public void suspendPartitionBuffer(TopicPartition topicPartition) {
+        PartitionBuffer<K, V> partitionBuffer = partitionBuffers.get(topicPartition);
+        if (partitionBuffer != null) {
+            partitionBuffer.suspend();
+        }
+    }
+
+    // 有record处理失败的partition分配回来时也要从保存的offset重新处理
+    public boolean isPartitionBufferFailed(TopicPartition topicPartition) {
+        PartitionBuffer<K, V> partitionBuffer = partitionBuffers.get(topicPartition);
+        return partitionBuffer != null && partitionBuffer.isFailed();
+    }
+
+    // partition分配回来时调用，接着处理收回时留下的record
+    public void resumePartitionBuffer(TopicPartition topicPartition) {
+        PartitionBuffer<K, V> partitionBuffer = partitionBuffers.get(topicPartition);
+        if (partitionBuffer != null) {
+            partitionBuffer.resume();
+        }
+    }
+
+    // partition被收回之后调用，还没处理的record（包括已经在processDataWorker队列里的）都丢弃，由新的owner从保存的offset重新消费
+    public void removePartitionBuffer(TopicPartition topicPartition) {
+        PartitionBuffer<K, V> partitionBuffer = partitionBuffers.remove(topicPartition);
+        if (partitionBuffer != null) {
+            partitionBuffer.revoke();
+        }
+    }
+
+    // rebalance时先保留收回的partition的缓冲区，没有分配回来的才丢弃
+    private void removeUnassignedPartitionBuffers() {
+        for (TopicPartition topicPartition : new ArrayList<>(partitionBuffers.keySet())) {
+            if (assignedPartitions == null || !assignedPartitions.contains(topicPartition)) {
+                removePartitionBuffer(topicPartition);
+            }
         }
     }
 
     public void closeKafkaSubscribeConsumeThread() throws InterruptedException {
-        logger.info("start to stop processDataWorker " + processDataWorker.executingThread.getName());
-        processDataWorker.stop();
+        // rebalance中途关闭时，收回之后还没有分配回来的partition不再处理
+        removeUnassignedPartitionBuffers();
+        // 先把缓冲区里剩下的record都交给processDataWorker，等它们处理完，保存的offset才能包含它们
+        dispatchPartitionBuffers(true);
+        if (!awaitDispatchedRecordsProcessed(Long.parseLong(KafkaMysqlOffsetParameter.sessionTimeout))) {
+            logger.error("wait for processDataWorker timeout, only the processed offset will be saved, the inFlightLimiter is "
+                    + processDataWorkerPool.getInFlightLimiter(pollThreadIndex));
+        }
+        // processDataWorker是共用的，最后一个consume线程关闭时才停止
+        processDataWorkerPool.releasePollThread();
         logger.info("wait for the mysql persist finish");
         // 等待MysqlOffsetPersist的persist动作完成
-        for (; ; ) {
-            if (!MysqlOffsetPersist.runFlag && KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.get()) {
-                break;
-            } else {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    logger.error("------- thread can not sleep ---------------------" + e.toString());
-                }
-            }
-        }
+        MysqlOffsetPersist.awaitPersistStopped();
         logger.info("flush before kafka consumer close");
         logger.debug("kafkaConsumerOffsetMaps is "
                 + Arrays.toString(KafkaCache.kafkaConsumerOffsetMaps.entrySet().toArray()));
         logger.debug("kafkaConsumerOffsetSet is " + kafkaConsumerOffsetSet + " ,the thread is " + Thread.currentThread().getName());
         try {
+            List<KafkaConsumerOffset> flushOffsets = new ArrayList<>();
             for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsetSet) {
                 TopicPartition topicPartition = new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
                 KafkaConsumerOffset kafkaConsumerOffsetInCache = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
@@ -266,28 +362,17 @@ public class KafkaSubscribeConsumeThread implements Runnable {
                 // 所以有可能查出来是null
                 if (kafkaConsumerOffsetInCache != null) {
                     // 因为有可能mysql里的kafka_consumer_offset为空，consumer拿lastest，这时候的offset不是0，是lastest，是需要保存的
-                    Long consumerPosition = null;
-                    try {
-                        consumerPosition = consumer.position(topicPartition);
-                    } catch (Exception e) {
-                        logger.info("the consumer get position error, the error is "
-                                + e.toString()
-                                + ", the topicPartition is "
-                                + topicPartition);
-                    }
-                    logger.debug("consumer position is " + consumerPosition);
-                    if (consumerPosition != null
-                            && consumerPosition != 0L
-                            && kafkaConsumerOffsetInCache != null
-                            && consumerPosition > kafkaConsumerOffsetInCache.getOffset()) {
-                        logger.info("consumer position "
-                                + consumerPosition
-                                + "is bigger than the offset in kafkaConsumerOffsetInCache "
+                    Long safeOffset = getSafeOffset(topicPartition);
+                    logger.debug("safe offset is " + safeOffset);
+                    if (safeOffset != null
+                            && safeOffset > kafkaConsumerOffsetInCache.getOffset()) {
+                        logger.info("safe offset "
+                                + safeOffset
+                                + " is bigger than the offset in kafkaConsumerOffsetInCache "
                                 + kafkaConsumerOffsetInCache);
-                        kafkaConsumerOffsetInCache.setOffset(consumerPosition);
+                        kafkaConsumerOffsetInCache.setOffset(safeOffset);
                     }
-                    MysqlOffsetPersist.getInstance().flush(
-                            kafkaConsumerOffsetInCache);
+                    flushOffsets.add(kafkaConsumerOffsetInCache);
                 } else {
                     logger.error("kafkaConsumerOffsetInCache is null, kafkaConsumerOffset is "
                             + kafkaConsumerOffset
@@ -297,6 +382,10 @@ public class KafkaSubscribeConsumeThread implements Runnable {
                             + Arrays.toString(KafkaCache.kafkaConsumerOffsetMaps.entrySet().toArray()));
                 }
             }
+            // 所有partition一起写入，等写入完成再关闭
+            if (!flushOffsets.isEmpty()) {
+                MysqlOffsetPersist.getInstance().revokeAsync(flushOffsets).join();
+            }
             offsetFlushBarrier.await();
             logger.info("start to flush the rest KafkaCache.kafkaConsumerOffsetMaps "
                     + Arrays.toString(KafkaCache.kafkaConsumerOffsetMaps.entrySet().toArray())
@@ -309,206 +398,197 @@ public class KafkaSubscribeConsumeThread implements Runnable {
             consumer.close();
         }
         kafkaConsumerFlag = false;
-        sendUnsentToProcessDataQueue(true);
         logger.info("kafka consumer finally close");
     }
 
+    // 等待已经交给processDataWorker的record都处理完，包括异步processor还没完成的，所有partition共用一个deadline
+    private Boolean awaitDispatchedRecordsProcessed(long timeoutMs) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (PartitionBuffer<K, V> partitionBuffer : partitionBuffers.values()) {
+            if (!partitionBuffer.awaitDispatchedRecords(deadlineNanos)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Boolean awaitPollStopped(long timeoutMs) throws InterruptedException {
+        return pollStopped.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public Boolean awaitConsumerClosed(long timeoutMs) throws InterruptedException {
+        return consumerClosed.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public Thread getConsumerThread() {
+        return consumerThread;
+    }
+
+    public ProcessDataWorkerPool<K, V> getProcessDataWorkerPool() {
+        return processDataWorkerPool;
+    }
+
+    // 只flush这个consumer拥有的partition，其他consume线程的partition由它们自己flush
     private synchronized void flushKafkaConsumerOffsetsInKafkaCache() {
+        Set<TopicPartition> ownedPartitions;
+        try {
+            ownedPartitions = consumer.assignment();
+        } catch (Exception e) {
+            logger.error("can not get the assignment of the consumer, the error is " + CommonUtils.getStackTraceAsString(e));
+            return;
+        }
+        List<KafkaConsumerOffset> flushOffsets = new ArrayList<>();
         for (KafkaConsumerOffset kafkaConsumerOffset : KafkaCache.kafkaConsumerOffsetMaps.values()) {
-            logger.info("kafkaConsumerOffset in cache is not be consumed, kafkaConsumerOffset is "
-                    + kafkaConsumerOffset);
-            // 因为有可能mysql里的kafka_consumer_offset为空，consumer拿lastest，这时候的offset不是0，是lastest，是需要保存的
             TopicPartition topicPartition = new TopicPartition(
                     kafkaConsumerOffset.getTopic(),
                     kafkaConsumerOffset.getPartition());
-            Long consumerPosition = null;
-            try {
-                consumerPosition = consumer.position(topicPartition);
-            } catch (IllegalArgumentException | IllegalStateException e) {
-                logger.info("flushKafkaConsumerOffsetsInKafkaCache, the consumer get position error, the error is "
-                        + e.toString()
-                        + ", the topicPartition is "
-                        + topicPartition);
+            if (!ownedPartitions.contains(topicPartition)) {
+                continue;
             }
+            logger.info("kafkaConsumerOffset in cache is not be consumed, kafkaConsumerOffset is "
+                    + kafkaConsumerOffset);
+            // 因为有可能mysql里的kafka_consumer_offset为空，consumer拿lastest，这时候的offset不是0，是lastest，是需要保存的
+            Long safeOffset = getSafeOffset(topicPartition);
             if (kafkaConsumerOffset != null) {
-                if (consumerPosition != null && consumerPosition != 0L
-                        && consumerPosition > kafkaConsumerOffset.getOffset()) {
-                    logger.debug("consumer position is " + consumerPosition);
-                    logger.info("consumer position " + consumerPosition
+                if (safeOffset != null
+                        && safeOffset > kafkaConsumerOffset.getOffset()) {
+                    logger.debug("safe offset is " + safeOffset);
+                    logger.info("safe offset " + safeOffset
                             + " is bigger than the offset in kafkaConsumerOffset "
                             + kafkaConsumerOffset);
-                    kafkaConsumerOffset.setOffset(consumerPosition);
+                    kafkaConsumerOffset.setOffset(safeOffset);
                 }
-                MysqlOffsetPersist.getInstance().flush(kafkaConsumerOffset);
+                flushOffsets.add(kafkaConsumerOffset);
             }
         }
+        if (!flushOffsets.isEmpty()) {
+            MysqlOffsetPersist.getInstance().revokeAsync(flushOffsets).join();
+        }
     }
 
     // Shutdown hook which can be called from a separate thread
     public void shutdown() {
         KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.set(true);
+        MysqlOffsetPersist.signalConsumerClosed();
         if (consumer != null) {
             consumer.wakeup();
         }
     }
 
-    public void pause() {
-        if (this.assignedPartitions != null) {
-            // avoid group management rebalance due to a slow
-            // consumer
-            this.consumer.pause(this.assignedPartitions);
-            this.paused = true;
-        }
-    }
-
-    public Boolean isResume() {
-        // 如果unsent为空，则恢复消费
-        return CollectionUtils.isEmpty(unsent);
-    }
-
-    public void resume() {
-        if (this.assignedPartitions != null) {
-            // avoid group management rebalance due to a slow
-            // consumer
-            this.consumer.resume(this.assignedPartitions);
-            this.paused = false;
+    // 返回这次poll到的record的字节数
+    private long sendToPartitionBuffers(ConsumerRecords<K, V> records) {
+        long polledBytes = 0L;
+        if (records.isEmpty()) {
+            return polledBytes;
         }
-    }
-
-    private void sendToQueue(ConsumerRecords<String, String> records) throws InterruptedException {
-        Boolean flag = true;
-        if (CollectionUtils.isEmpty(unsent)) {
-            for (ConsumerRecord<String, String> record : records) {
-                if (flag) {
-                    flag = this.processDataQueue.offer(record, 200, TimeUnit.MILLISECONDS);
-                    //如果没有放入成功说明队列已满
-                    if (!flag) {
-                        logger.info("the processDataQueue is full...");
-                        unsent.put(record);
-                    }
-                } else {
-                    unsent.put(record);
-                }
-            }
-        } else {
-            if (records.count() > 0) {
-                logger.info("the unsent is not empty but the consummer still polling records, it can be only happed after rebalanced");
+        for (TopicPartition topicPartition : records.partitions()) {
+            PartitionBuffer<K, V> partitionBuffer = partitionBuffers.computeIfAbsent(topicPartition, PartitionBuffer::new);
+            if (partitionBuffer.isPaused()) {
+                logger.info("the partition is paused but the consumer still polling records, it can be only happened after rebalanced, the partitionBuffer is " + partitionBuffer);
             }
-            for (ConsumerRecord<String, String> record : records) {
-                unsent.put(record);
+            long partitionBytes = 0L;
+            for (ConsumerRecord<K, V> record : records.records(topicPartition)) {
+                partitionBytes += partitionBuffer.add(record);
             }
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                logger.error("------- thread can not sleep ---------------------"
-                        + e.toString());
-            }
-            // 试着将unsent里的records放入processDataQueue
-            sendUnsentToProcessDataQueue(false);
+            // LoadAwareStickyAssignor按每个partition拉到的字节数分配
+            PartitionLoadStats.record(topicPartition, partitionBytes);
+            polledBytes += partitionBytes;
         }
+        return polledBytes;
     }
 
-    private void sendUnsentToProcessDataQueue(Boolean shutdown) throws InterruptedException {
-        while (CollectionUtils.isNotEmpty(unsent)) {
-            //拿出队首元素但不出栈
-            ConsumerRecord<String, String> recordInUnsent = unsent.peek();
-            if (recordInUnsent != null) {
-                Boolean flag = this.processDataQueue.offer(recordInUnsent, 200, TimeUnit.MILLISECONDS);
-                if (!flag) {
-                    //如果没有放入processDataQueue成功说明队列已满
-                    logger.info("the processDataQueue is full... and the unsent is not empty");
-                    //如果没有停止，则跳出，否则需要将unsent清空才能退出
-                    if (!shutdown) {
-                        break;
-                    } else {
-                        try {
-                            Thread.sleep(10);
-                        } catch (InterruptedException e) {
-                            logger.error("------- thread can not sleep ---------------------" + e.toString());
-                        }
-                    }
+    // 按partition把pending里的record放进对应processDataWorker的队列，队列满了就留在pending里下次再放，
+    // 同一个partition里前面的record没放进去，后面的也不放，保证顺序。shutdown时一直等到pending全部放完
+    private void dispatchPartitionBuffers(Boolean shutdown) throws InterruptedException {
+        for (PartitionBuffer<K, V> partitionBuffer : partitionBuffers.values()) {
+            if (partitionBuffer.isSuspended()) {
+                // 分配结果出来之前留在pending里
+                continue;
+            }
+            if (partitionBuffer.isFailed()) {
+                // 前面有处理失败的record，后面的不再交给processDataWorker
+                partitionBuffer.clearPending();
+                continue;
+            }
+            Deque<ConsumerRecord<K, V>> pending = partitionBuffer.getPending();
+            while (!pending.isEmpty()) {
+                ConsumerRecord<K, V> record = pending.peek();
+                ProcessDataWorker<K, V> processDataWorker = processDataWorkerPool.route(record);
+                if (processDataWorker.offer(pollThreadIndex, partitionBuffer, record, 0L)) {
+                    pending.poll();
+                } else if (!shutdown) {
+                    break;
+                } else if (!processDataWorker.workingFlag) {
+                    logger.error("the processDataWorker is closed but the pending records is not empty, the partitionBuffer is " + partitionBuffer);
+                    break;
+                } else if (!processDataWorker.offer(pollThreadIndex, partitionBuffer, record, 200L)) {
+                    logger.info("the processDataQueue is full... and the pending records is not empty, the partitionBuffer is " + partitionBuffer);
                 } else {
-                    //如果放入processDataQueue成功则出栈
-                    unsent.poll();
+                    pending.poll();
                 }
-            } else {
-                logger.error("the unsent is not empty, but the recordInUnsent is null!!");
             }
         }
     }
 
-    //processData线程消费queue
-    public final class ProcessDataWorker implements Runnable {
-
-        private final CountDownLatch exitLatch = new CountDownLatch(1);
-        private volatile Thread executingThread;
-        private volatile Boolean workerStopFlag = false;
-        public volatile Boolean workingFlag = false;
-        private volatile ConsumerRecord<String, String> consumerRecord;
-        private static final long MAX_WAIT_MS = 1000;
-
-        @Override
-        public void run() {
-            workingFlag = true;
-            try {
-                this.executingThread = Thread.currentThread();
-                while (true) {
-                    processOperationData();
-                    // 如果queue是空，并且stop为true则退出
-                    if (processDataQueue.size() == 0 && workerStopFlag && unsent.size() == 0) {
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                logger.error("processDataWorker thread is failed, the error is " + e.toString());
-            } finally {
-                logger.info("processDataWorker " + Thread.currentThread().getName() + " is safely closed...");
-                exitLatch.countDown();
-                workingFlag = false;
+    // 根据这次poll和缓冲区的情况调节下一次poll的超时和每个partition的缓冲额度
+    private void tunePoll(int polledRecords, long polledBytes) {
+        pollTuner.onPoll(polledRecords, polledBytes);
+        Boolean backlog = false;
+        long bufferedRecords = 0L;
+        for (PartitionBuffer<K, V> partitionBuffer : partitionBuffers.values()) {
+            if (!partitionBuffer.isFailed() && (partitionBuffer.isPaused() || !partitionBuffer.getPending().isEmpty())) {
+                backlog = true;
             }
+            bufferedRecords += partitionBuffer.getBufferedRecords();
         }
-
-        private void processOperationData() throws InterruptedException {
-            // 如果出现除InterruptedException的错误，则必须catch住，要不然，线程会中断！
-            try {
-                consumerRecord = processDataQueue.poll(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
-                if (consumerRecord != null) {
-                    dataProcessor.processData(consumerRecord);
-                }
-            } catch (InterruptedException e) {
-                throw e;
-            } catch (Exception e) {
-                logger.error("processOperationData error, the error is " + CommonUtils.getStackTraceAsString(e));
-            }
+        pollTuner.setBacklog(backlog);
+        long now = System.currentTimeMillis();
+        if (pollTuner.shouldAdjust(now)) {
+            pollTuner.adjust(now, bufferedRecords, CollectionUtils.isEmpty(assignedPartitions) ? 0 : assignedPartitions.size());
         }
+    }
 
-        public void stopWithException() {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                logger.error("------- thread can not sleep ---------------------" + e.toString());
+    private void pauseOrResumePartitions() {
+        if (assignedPartitions != lastAssignedPartitions) {
+            // rebalance之后新分配的partition都是没有暂停的
+            for (PartitionBuffer<K, V> partitionBuffer : partitionBuffers.values()) {
+                partitionBuffer.setPaused(false);
             }
-            workerStopFlag = true;
+            lastAssignedPartitions = assignedPartitions;
         }
-
-
-        private void stop() {
-            // 等待拉取动作结束
-            for (; ; ) {
-                if (kafkaPollFlag == false) {
-                    break;
-                } else {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        logger.error("------- thread can not sleep ---------------------" + e.toString());
-                    }
+        if (CollectionUtils.isEmpty(assignedPartitions)) {
+            return;
+        }
+        // 超过了总字节数上限，所有partition都暂停
+        Boolean overMaxBytes = KafkaCache.bufferedBytes.get() >= KafkaMysqlOffsetParameter.processBufferMaxBytes;
+        List<TopicPartition> toPause = null;
+        List<TopicPartition> toResume = null;
+        for (TopicPartition topicPartition : assignedPartitions) {
+            PartitionBuffer<K, V> partitionBuffer = partitionBuffers.computeIfAbsent(topicPartition, PartitionBuffer::new);
+            // 处理失败的partition一直暂停，重新分配之后从保存的offset重新处理
+            Boolean overBudget = overMaxBytes || partitionBuffer.isFailed() || partitionBuffer.isOverBudget(pollTuner.getPartitionBufferRecords());
+            if (overBudget && !partitionBuffer.isPaused()) {
+                if (toPause == null) {
+                    toPause = new ArrayList<>();
+                }
+                toPause.add(topicPartition);
+                partitionBuffer.setPaused(true);
+            } else if (!overBudget && partitionBuffer.isPaused()) {
+                if (toResume == null) {
+                    toResume = new ArrayList<>();
                 }
+                toResume.add(topicPartition);
+                partitionBuffer.setPaused(false);
             }
-            workerStopFlag = true;
+        }
+        // avoid group management rebalance due to a slow consumer
+        if (toPause != null) {
+            logger.debug("pause partitions " + toPause + ", the bufferedBytes is " + KafkaCache.bufferedBytes.get());
+            consumer.pause(toPause);
+        }
+        if (toResume != null) {
+            logger.debug("resume partitions " + toResume + ", the bufferedBytes is " + KafkaCache.bufferedBytes.get());
+            consumer.resume(toResume);
         }
     }
 }
-
-
-
@@ -4,10 +4,13 @@ import cn.thinkingdata.kafka.cache.KafkaCache;
 import cn.thinkingdata.kafka.close.DaemonCloseThread;
 import cn.thinkingdata.kafka.close.TermMethod;
 import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
-import cn.thinkingdata.kafka.consumer.offset.MysqlOffsetManager;
+import cn.thinkingdata.kafka.consumer.offset.OffsetManager;
 import cn.thinkingdata.kafka.consumer.persist.MysqlOffsetPersist;
 import cn.thinkingdata.kafka.consumer.persist.StorePersist;
+import cn.thinkingdata.kafka.util.ThreadFactoryUtil;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,9 +18,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public class KafkaSubscribeConsumer {
@@ -25,20 +30,81 @@ public class KafkaSubscribeConsumer {
     private static final Logger logger = LoggerFactory.getLogger(KafkaSubscribeConsumer.class);
 
     protected NewIDataLineProcessor dataProcessor;
+    protected NewIDataBatchProcessor<?, ?> batchDataProcessor;
+    protected NewIDataAsyncProcessor<?, ?> asyncDataProcessor;
+    // 为null时按kafkaConf里的key.deserializer和value.deserializer创建，所有consumer共用，必须是线程安全的
+    protected Deserializer<?> keyDeserializer;
+    protected Deserializer<?> valueDeserializer;
     protected volatile ExecutorService executorService;
+    // 处理线程的ThreadFactory，没有设置时按process.worker.thread.type创建
+    protected ThreadFactory workerThreadFactory;
+    // 所有consume线程共用的处理线程
+    protected volatile ProcessDataWorkerPool<?, ?> processDataWorkerPool;
     private final TermMethod closeMethod;
     private volatile DaemonCloseThread closeSignal;
     private static volatile Integer startCount = 0;
 
+    // NewIDataLineProcessor只能处理String类型的record，不管配置的key.deserializer和value.deserializer是什么都用StringDeserializer
     public KafkaSubscribeConsumer(Map<String, String> map, NewIDataLineProcessor dataProcessor, TermMethod closeMethod) {
-        KafkaMysqlOffsetParameter.createKafkaConfProp(map);
+        this(map, new DataLineBatchProcessorAdapter(dataProcessor), closeMethod, new StringDeserializer(), new StringDeserializer());
         this.dataProcessor = dataProcessor;
-        this.closeMethod = closeMethod;
+        if (!StringDeserializer.class.getName().equals(KafkaMysqlOffsetParameter.keyDeserializer)
+                || !StringDeserializer.class.getName().equals(KafkaMysqlOffsetParameter.valueDeserializer)) {
+            logger.warn("NewIDataLineProcessor only supports String records, key.deserializer " + KafkaMysqlOffsetParameter.keyDeserializer
+                    + " and value.deserializer " + KafkaMysqlOffsetParameter.valueDeserializer + " are replaced by StringDeserializer");
+        }
     }
 
     public KafkaSubscribeConsumer(Map<String, String> map, NewIDataLineProcessor dataProcessor, TermMethod closeMethod, StorePersist externalStorePersist){
         this(map, dataProcessor, closeMethod);
-        MysqlOffsetManager.getInstance().setExternalStorePersist(externalStorePersist);
+        OffsetManager.getInstance().setExternalStorePersist(externalStorePersist);
+    }
+
+    public KafkaSubscribeConsumer(Map<String, String> map, NewIDataBatchProcessor<?, ?> batchDataProcessor, TermMethod closeMethod) {
+        this(map, new BatchAsyncProcessorAdapter<>(batchDataProcessor), closeMethod);
+        this.batchDataProcessor = batchDataProcessor;
+    }
+
+    public KafkaSubscribeConsumer(Map<String, String> map, NewIDataBatchProcessor<?, ?> batchDataProcessor, TermMethod closeMethod, StorePersist externalStorePersist){
+        this(map, batchDataProcessor, closeMethod);
+        OffsetManager.getInstance().setExternalStorePersist(externalStorePersist);
+    }
+
+    public <K, V> KafkaSubscribeConsumer(Map<String, String> map, NewIDataBatchProcessor<K, V> batchDataProcessor, TermMethod closeMethod, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer) {
+        this(map, batchDataProcessor, closeMethod);
+        this.keyDeserializer = keyDeserializer;
+        this.valueDeserializer = valueDeserializer;
+    }
+
+    public <K, V> KafkaSubscribeConsumer(Map<String, String> map, NewIDataBatchProcessor<K, V> batchDataProcessor, TermMethod closeMethod, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer, StorePersist externalStorePersist) {
+        this(map, batchDataProcessor, closeMethod, keyDeserializer, valueDeserializer);
+        OffsetManager.getInstance().setExternalStorePersist(externalStorePersist);
+    }
+
+    public KafkaSubscribeConsumer(Map<String, String> map, NewIDataAsyncProcessor<?, ?> asyncDataProcessor, TermMethod closeMethod) {
+        KafkaMysqlOffsetParameter.createKafkaConfProp(map);
+        this.asyncDataProcessor = asyncDataProcessor;
+        this.closeMethod = closeMethod;
+    }
+
+    public KafkaSubscribeConsumer(Map<String, String> map, NewIDataAsyncProcessor<?, ?> asyncDataProcessor, TermMethod closeMethod, StorePersist externalStorePersist){
+        this(map, asyncDataProcessor, closeMethod);
+        OffsetManager.getInstance().setExternalStorePersist(externalStorePersist);
+    }
+
+    public <K, V> KafkaSubscribeConsumer(Map<String, String> map, NewIDataAsyncProcessor<K, V> asyncDataProcessor, TermMethod closeMethod, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer) {
+        this(map, asyncDataProcessor, closeMethod);
+        this.keyDeserializer = keyDeserializer;
+        this.valueDeserializer = valueDeserializer;
+    }
+
+    public <K, V> KafkaSubscribeConsumer(Map<String, String> map, NewIDataAsyncProcessor<K, V> asyncDataProcessor, TermMethod closeMethod, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer, StorePersist externalStorePersist) {
+        this(map, asyncDataProcessor, closeMethod, keyDeserializer, valueDeserializer);
+        OffsetManager.getInstance().setExternalStorePersist(externalStorePersist);
+    }
+
+    public void setWorkerThreadFactory(ThreadFactory workerThreadFactory) {
+        this.workerThreadFactory = workerThreadFactory;
     }
 
     public void run() {
@@ -57,11 +123,15 @@ public class KafkaSubscribeConsumer {
         List<String> topicList = new ArrayList();
         topicList.addAll(Arrays.asList(KafkaMysqlOffsetParameter.topic.split(",")));
         executorService = Executors.newFixedThreadPool(KafkaMysqlOffsetParameter.processThreadNum);
+        if (workerThreadFactory == null) {
+            workerThreadFactory = ThreadFactoryUtil.createThreadFactory(KafkaMysqlOffsetParameter.processWorkerThreadType, "working thread");
+        }
         CyclicBarrier offsetFlushBarrier = new CyclicBarrier(KafkaMysqlOffsetParameter.processThreadNum);
+        // process.thread.num个KafkaConsumer共用process.worker.num个处理线程
+        processDataWorkerPool = new ProcessDataWorkerPool<>(asyncDataProcessor, KafkaMysqlOffsetParameter.processThreadNum,
+                KafkaMysqlOffsetParameter.processWorkerNum, workerThreadFactory);
         for (int i = 0; i < KafkaMysqlOffsetParameter.processThreadNum; i++) {
-            KafkaSubscribeConsumerManager kafkaSubscribeConsumer = KafkaSubscribeConsumerManager.getInstance();
-            KafkaConsumer<String, String> consumer = kafkaSubscribeConsumer.createKafkaConsumer(topicList, KafkaMysqlOffsetParameter.kafkaConf);
-            KafkaSubscribeConsumeThread consumeThread = new KafkaSubscribeConsumeThread(consumer, dataProcessor, offsetFlushBarrier);
+            KafkaSubscribeConsumeThread<?, ?> consumeThread = createConsumeThread(topicList, i, offsetFlushBarrier);
             KafkaCache.consumeThreadList.add(consumeThread);
             executorService.submit(consumeThread);
         }
@@ -75,79 +145,56 @@ public class KafkaSubscribeConsumer {
         closeSignal.start();
     }
 
+    // processor和deserializer的类型在构造函数里已经保证一致
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private KafkaSubscribeConsumeThread<?, ?> createConsumeThread(List<String> topicList, int pollThreadIndex, CyclicBarrier offsetFlushBarrier) {
+        KafkaSubscribeConsumerManager kafkaSubscribeConsumer = KafkaSubscribeConsumerManager.getInstance();
+        Properties props = KafkaMysqlOffsetParameter.kafkaConf;
+        if (KafkaMysqlOffsetParameter.staticMembership) {
+            props = new Properties();
+            props.putAll(KafkaMysqlOffsetParameter.kafkaConf);
+            props.put("group.instance.id", KafkaMysqlOffsetParameter.groupInstanceIdPrefix + "-" + pollThreadIndex);
+        }
+        KafkaConsumer consumer;
+        if (keyDeserializer == null || valueDeserializer == null) {
+            consumer = kafkaSubscribeConsumer.createKafkaConsumer(topicList, props);
+        } else {
+            consumer = kafkaSubscribeConsumer.createKafkaConsumer(topicList, props, keyDeserializer, valueDeserializer);
+        }
+        return new KafkaSubscribeConsumeThread(consumer, (ProcessDataWorkerPool) processDataWorkerPool, pollThreadIndex, offsetFlushBarrier);
+    }
+
     public void stop() {
         stop(120000);
     }
 
     public void stop(long stopTimeOut) {
-        long startTime = System.currentTimeMillis();
+        long deadline = System.currentTimeMillis() + stopTimeOut;
         logger.info("consumers start shutdown");
-        for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
             if(consumeThread != null){
                 consumeThread.shutdown();
             }
         }
-        Boolean stopExceptionFlag = false;
-        // 等待所有拉取线程自动停止
-        for (;;) {
-            if(stopExceptionFlag){
-                break;
-            }
-            Boolean kafkaPollFlag = false;
-            for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
-                if (consumeThread != null && consumeThread.kafkaPollFlag) {
-                    kafkaPollFlag = true;
-                }
-            }
-            if (!kafkaPollFlag) {
-                break;
-            }
-            if(System.currentTimeMillis()-startTime > stopTimeOut){
-                stopWithTimeOUt();
-                stopExceptionFlag = true;
-            }
-        }
-        logger.info("kafka polling closed");
-        // 等待所有consumer关闭
-        for (;;) {
-            if(stopExceptionFlag){
-                break;
-            }
-            Boolean kafkaConsumerFlag = false;
-            for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
-                if (consumeThread != null && consumeThread.kafkaConsumerFlag) {
-                    kafkaConsumerFlag = true;
-                }
-            }
-            if (!kafkaConsumerFlag) {
-                break;
-            }
-            if(System.currentTimeMillis()-startTime > stopTimeOut){
-                stopWithTimeOUt();
-                stopExceptionFlag = true;
-            }
-        }
-        logger.info("kafka consumer closed");
-        // 等待所有consumer的working线程关闭
-        for (;;) {
-            if(stopExceptionFlag){
-                break;
-            }
-            Boolean processDataWorkingFlag = false;
-            for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
-                if (consumeThread != null && consumeThread.processDataWorker.workingFlag) {
-                    processDataWorkingFlag = true;
-                }
+        // consume线程在executorService里各自并行关闭，这里只等待它们的latch，超过stopTimeOut进入stopWithTimeOUt
+        try {
+            Boolean stopped = awaitPollStopped(deadline);
+            if (stopped) {
+                logger.info("kafka polling closed");
+                stopped = awaitConsumerClosed(deadline);
             }
-            if (!processDataWorkingFlag) {
-                break;
+            if (stopped) {
+                logger.info("kafka consumer closed");
+                stopped = processDataWorkerPool == null || processDataWorkerPool.awaitStopped(remaining(deadline));
             }
-            if(System.currentTimeMillis()-startTime > stopTimeOut){
+            if (stopped) {
+                logger.info("process data worker closed");
+            } else {
                 stopWithTimeOUt();
-                stopExceptionFlag = true;
             }
+        } catch (InterruptedException e) {
+            logger.error("Interrupted during waiting for consumers to shut down, the error is " + e.toString());
         }
-        logger.info("process data worker closed");
         // 关闭线程池
         if (executorService != null)
             executorService.shutdown();
@@ -159,30 +206,49 @@ public class KafkaSubscribeConsumer {
             logger.error("Interrupted during shutdown, exiting uncleanly");
         }
         logger.info("dataProcessor start to shutdown");
-        dataProcessor.finishProcess();
+        asyncDataProcessor.finishProcess();
         KafkaCache.kafkaConsumerOffsetMaps.clear();
         KafkaCache.consumeThreadList.clear();
         KafkaCache.rebalancerListenerList.clear();
         closeSignal.shutdown();
     }
 
-    private void stopWithTimeOUt() {
-        logger.info("kafka polling/kafka consumer/process data worker closed with timeout");
-        for (KafkaSubscribeConsumeThread consumeThread : KafkaCache.consumeThreadList) {
-            if(consumeThread != null && consumeThread.processDataWorker != null){
-                consumeThread.processDataWorker.stopWithException();
+    // 等待所有拉取线程自动停止
+    private Boolean awaitPollStopped(long deadline) throws InterruptedException {
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
+            if (consumeThread != null && !consumeThread.awaitPollStopped(remaining(deadline))) {
+                return false;
             }
         }
-        try {
-            // 等待所有拉取线程自动停止
-            Thread.sleep(5000);
-            // 等待所有consumer关闭
-            Thread.sleep(5000);
-            // 等待所有consumer的working线程关闭
-            Thread.sleep(5000);
-        } catch (InterruptedException e2) {
-            logger.error("------- thread can not sleep ---------------------"
-                    + e2.toString());
+        return true;
+    }
+
+    // 等待所有consumer关闭
+    private Boolean awaitConsumerClosed(long deadline) throws InterruptedException {
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
+            if (consumeThread != null && !consumeThread.awaitConsumerClosed(remaining(deadline))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0L, deadline - System.currentTimeMillis());
+    }
+
+    // 停止processDataWorker，最多再等shutdownDrainTimeoutMs，全部关闭后马上返回
+    private void stopWithTimeOUt() throws InterruptedException {
+        logger.info("kafka polling/kafka consumer/process data worker closed with timeout");
+        if (processDataWorkerPool != null) {
+            processDataWorkerPool.stopWithException();
+        }
+        long deadline = System.currentTimeMillis() + KafkaMysqlOffsetParameter.shutdownDrainTimeoutMs;
+        Boolean stopped = awaitPollStopped(deadline) && awaitConsumerClosed(deadline)
+                && (processDataWorkerPool == null || processDataWorkerPool.awaitStopped(remaining(deadline)));
+        if (!stopped) {
+            logger.error("kafka polling/kafka consumer/process data worker are not closed in "
+                    + KafkaMysqlOffsetParameter.shutdownDrainTimeoutMs + "ms after stop timeout");
         }
     }
 
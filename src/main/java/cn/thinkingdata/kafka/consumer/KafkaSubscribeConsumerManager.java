@@ -2,6 +2,7 @@ package cn.thinkingdata.kafka.consumer;
 
 import cn.thinkingdata.kafka.cache.KafkaCache;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.Deserializer;
 
 import java.util.List;
 import java.util.Properties;
@@ -20,11 +21,23 @@ public class KafkaSubscribeConsumerManager {
         return instance;
     }
 
-    public KafkaConsumer<String, String> createKafkaConsumer(List<String> topicList, Properties props) {
-        KafkaConsumer<String, String> consumer = new KafkaConsumer(props);
+    // record的类型由props里的key.deserializer和value.deserializer决定
+    public KafkaConsumer<?, ?> createKafkaConsumer(List<String> topicList, Properties props) {
+        KafkaConsumer<?, ?> consumer = new KafkaConsumer<>(props);
+        subscribe(consumer, topicList);
+        return consumer;
+    }
+
+    // 传入的deserializer会覆盖props里的key.deserializer和value.deserializer
+    public <K, V> KafkaConsumer<K, V> createKafkaConsumer(List<String> topicList, Properties props, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer) {
+        KafkaConsumer<K, V> consumer = new KafkaConsumer<>(props, keyDeserializer, valueDeserializer);
+        subscribe(consumer, topicList);
+        return consumer;
+    }
+
+    private void subscribe(KafkaConsumer<?, ?> consumer, List<String> topicList) {
         KafkaConsumerRebalancerListener rebalancerListener = new KafkaConsumerRebalancerListener(consumer);
         KafkaCache.rebalancerListenerList.add(rebalancerListener);
         consumer.subscribe(topicList, rebalancerListener);
-        return consumer;
     }
 }
\ No newline at end of file
@@ -0,0 +1,17 @@
+package cn.thinkingdata.kafka.consumer;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface NewIDataAsyncProcessor<K, V> {
+
+    // 同一次调用里的consumerRecords都属于topicPartition，并且按offset有序；
+    // 返回的future完成之后这些record的offset才会被保存。抛出异常或者future异常完成时offset停在这批record之前，
+    // partition暂停到重新分配，并调用ExceptionHandler.executeWhenProcessBatchFail；process.advance.on.failure=true时和成功一样推进
+    CompletableFuture<?> processBatchAsync(TopicPartition topicPartition, List<ConsumerRecord<K, V>> consumerRecords);
+
+    void finishProcess();
+}
@@ -0,0 +1,14 @@
+package cn.thinkingdata.kafka.consumer;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
+
+public interface NewIDataBatchProcessor<K, V> {
+
+    // 同一次调用里的consumerRecords都属于topicPartition，并且按offset有序
+    void processBatch(TopicPartition topicPartition, List<ConsumerRecord<K, V>> consumerRecords);
+
+    void finishProcess();
+}
@@ -0,0 +1,120 @@
+package cn.thinkingdata.kafka.consumer;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 根据poll到的record数、record大小和处理速度，每秒调整一次poll的超时时间和每个partition的缓冲额度。
+ * max.poll.records和fetch参数只能在创建KafkaConsumer时设置，每次poll实际交给处理线程的record数由缓冲额度控制。
+ * throughput：按处理速度缓冲更多的record，空闲时拉长poll超时减少空转；latency：只缓冲很短时间的record，减少排队时间。
+ * 只有consume线程调用，不是线程安全的
+ */
+public class PollTuner {
+
+    private static final Logger logger = LoggerFactory.getLogger(PollTuner.class);
+
+    public static final String THROUGHPUT = "throughput";
+    public static final String LATENCY = "latency";
+    private static final long ADJUST_INTERVAL_MS = 1000L;
+
+    private final Boolean enabled;
+    private final long targetBufferMs;
+    private long pollTimeoutMs;
+    private int partitionBufferRecords;
+    // 有pending或者暂停的partition时要尽快回到poll循环，用最短的超时
+    private Boolean backlog = false;
+
+    private long windowStartMs = System.currentTimeMillis();
+    private long windowPolls = 0L;
+    private long windowEmptyPolls = 0L;
+    private long windowPolledRecords = 0L;
+    private long windowPolledBytes = 0L;
+    private long lastBufferedRecords = 0L;
+
+    public PollTuner() {
+        this.enabled = KafkaMysqlOffsetParameter.pollTunerObjective != null;
+        this.pollTimeoutMs = KafkaMysqlOffsetParameter.pollInterval;
+        this.partitionBufferRecords = KafkaMysqlOffsetParameter.partitionBufferRecords;
+        if (KafkaMysqlOffsetParameter.pollTunerTargetBufferMs != null) {
+            this.targetBufferMs = KafkaMysqlOffsetParameter.pollTunerTargetBufferMs;
+        } else {
+            this.targetBufferMs = LATENCY.equals(KafkaMysqlOffsetParameter.pollTunerObjective) ? 100L : 1000L;
+        }
+    }
+
+    public long getPollTimeoutMs() {
+        if (enabled && backlog) {
+            return KafkaMysqlOffsetParameter.pollIntervalMin;
+        }
+        return pollTimeoutMs;
+    }
+
+    public int getPartitionBufferRecords() {
+        return partitionBufferRecords;
+    }
+
+    public void setBacklog(Boolean backlog) {
+        this.backlog = backlog;
+    }
+
+    public void onPoll(int records, long bytes) {
+        windowPolls++;
+        if (records == 0) {
+            windowEmptyPolls++;
+        }
+        windowPolledRecords += records;
+        windowPolledBytes += bytes;
+    }
+
+    public Boolean shouldAdjust(long now) {
+        return enabled && now - windowStartMs >= ADJUST_INTERVAL_MS;
+    }
+
+    // bufferedRecords是这个consume线程所有partition还没处理完的record数
+    public void adjust(long now, long bufferedRecords, int assignedPartitionNum) {
+        long elapsedMs = Math.max(now - windowStartMs, 1L);
+        // 这段时间处理完的record数 = 新拉到的 - 缓冲区增加的
+        long processedRecords = Math.max(windowPolledRecords + lastBufferedRecords - bufferedRecords, 0L);
+        long processRate = processedRecords * 1000L / elapsedMs;
+        long avgRecordBytes = windowPolledRecords == 0L ? 0L : windowPolledBytes / windowPolledRecords;
+        int partitionNum = Math.max(assignedPartitionNum, 1);
+
+        // 空poll多说明数据少，拉长超时减少空转；否则缩短，尽快处理pending和恢复暂停的partition
+        if (windowEmptyPolls * 2 > windowPolls) {
+            pollTimeoutMs = Math.min(pollTimeoutMs * 2, KafkaMysqlOffsetParameter.pollIntervalMax);
+        } else {
+            pollTimeoutMs = Math.max(pollTimeoutMs / 2, KafkaMysqlOffsetParameter.pollIntervalMin);
+        }
+
+        // 每个partition缓冲targetBufferMs能处理完的record，同时不超过按record大小分到的字节上限
+        if (processRate > 0L) {
+            long targetRecords = processRate * targetBufferMs / 1000L / partitionNum;
+            if (avgRecordBytes > 0L) {
+                long maxRecordsByBytes = KafkaMysqlOffsetParameter.processBufferMaxBytes
+                        / KafkaMysqlOffsetParameter.processThreadNum / partitionNum / avgRecordBytes;
+                targetRecords = Math.min(targetRecords, maxRecordsByBytes);
+            }
+            // 和上一次的值取平均，避免抖动
+            targetRecords = (targetRecords + partitionBufferRecords) / 2;
+            partitionBufferRecords = (int) Math.max(Math.min(targetRecords, KafkaMysqlOffsetParameter.partitionBufferRecords),
+                    KafkaMysqlOffsetParameter.partitionBufferRecordsMin);
+        }
+        logger.debug("poll tuner adjusted, the processRate is " + processRate + ", the avgRecordBytes is " + avgRecordBytes
+                + ", the bufferedRecords is " + bufferedRecords + ", the emptyPolls is " + windowEmptyPolls + "/" + windowPolls
+                + ", the pollTimeoutMs is " + pollTimeoutMs + ", the partitionBufferRecords is " + partitionBufferRecords);
+
+        windowStartMs = now;
+        windowPolls = 0L;
+        windowEmptyPolls = 0L;
+        windowPolledRecords = 0L;
+        windowPolledBytes = 0L;
+        lastBufferedRecords = bufferedRecords;
+    }
+
+    @Override
+    public String toString() {
+        return "PollTuner [enabled=" + enabled + ", pollTimeoutMs=" + pollTimeoutMs
+                + ", partitionBufferRecords=" + partitionBufferRecords + ", backlog=" + backlog + "]";
+    }
+}
@@ -0,0 +1,358 @@
+package cn.thinkingdata.kafka.consumer;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.exception.ExceptionHandler;
+import cn.thinkingdata.kafka.consumer.queue.InFlightLimiter;
+import cn.thinkingdata.kafka.consumer.queue.PartitionBuffer;
+import cn.thinkingdata.kafka.consumer.queue.SpscRingBuffer;
+import cn.thinkingdata.kafka.consumer.queue.WaitStrategies;
+import cn.thinkingdata.kafka.consumer.queue.WaitStrategy;
+import cn.thinkingdata.kafka.util.CommonUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 处理线程，被所有consume线程共用。每个consume线程有自己的一个单生产者队列，处理线程轮流从这些队列里取record。
+ */
+public class ProcessDataWorker<K, V> implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessDataWorker.class);
+
+    private final NewIDataAsyncProcessor<K, V> dataProcessor;
+    // 一批record处理失败时通知
+    private final ExceptionHandler exceptionHandler;
+    // 下标和consume线程的pollThreadIndex一一对应
+    private final List<Inbox<K, V>> inboxes = new ArrayList<>();
+    private final WaitStrategy waitStrategy = WaitStrategies.create(KafkaMysqlOffsetParameter.processQueueWaitStrategy);
+    private volatile Thread executingThread;
+    private volatile Boolean workerStopFlag = false;
+    public volatile Boolean workingFlag = false;
+    // 线程退出时countDown
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // 下一次凑批从哪个consume线程的队列开始取，每次轮换，前面的队列一直有数据时后面的也能取到
+    private int nextInbox = 0;
+    // 收回时暂停的partition的record，按取到的顺序留着，等partition分配回来再处理，确定移走就跳过。只有processDataWorker线程读写
+    private final List<HeldBatch<K, V>> heldBatches = new ArrayList<>();
+
+    public ProcessDataWorker(NewIDataAsyncProcessor<K, V> dataProcessor, List<InFlightLimiter> pollThreadInFlightLimiters, ExceptionHandler exceptionHandler) {
+        this.dataProcessor = dataProcessor;
+        this.exceptionHandler = exceptionHandler;
+        for (InFlightLimiter pollThreadInFlightLimiter : pollThreadInFlightLimiters) {
+            inboxes.add(new Inbox<>(pollThreadInFlightLimiter));
+        }
+    }
+
+    // 一个consume线程的队列，队列里除了record，还有PartitionBuffer作为标记：后面的record都属于这个PartitionBuffer，直到下一个标记。
+    // records的初始值是1000，所以capacity的默认值是4096
+    private static final class Inbox<K, V> {
+        private final SpscRingBuffer<Object> processDataQueue = new SpscRingBuffer<>(
+                KafkaMysqlOffsetParameter.processQueueCapacity,
+                WaitStrategies.create(KafkaMysqlOffsetParameter.processQueueWaitStrategy));
+        // 这个consume线程所有partition已经交给processor、还没处理完的record数
+        private final InFlightLimiter pollThreadInFlightLimiter;
+        // 只有consume线程读写，最后一次放进队列的标记
+        private PartitionBuffer<K, V> lastOfferedPartitionBuffer;
+        // 只有processDataWorker线程读写，当前读到的标记
+        private PartitionBuffer<K, V> currentPartitionBuffer;
+        // 只有processDataWorker线程读写，这次从队列里取出的record和标记
+        private final List<Object> batch = new ArrayList<>();
+
+        private Inbox(InFlightLimiter pollThreadInFlightLimiter) {
+            this.pollThreadInFlightLimiter = pollThreadInFlightLimiter;
+        }
+    }
+
+    private static final class HeldBatch<K, V> {
+        private final InFlightLimiter pollThreadInFlightLimiter;
+        private final PartitionBuffer<K, V> partitionBuffer;
+        private final List<ConsumerRecord<K, V>> consumerRecords;
+
+        private HeldBatch(InFlightLimiter pollThreadInFlightLimiter, PartitionBuffer<K, V> partitionBuffer, List<ConsumerRecord<K, V>> consumerRecords) {
+            this.pollThreadInFlightLimiter = pollThreadInFlightLimiter;
+            this.partitionBuffer = partitionBuffer;
+            this.consumerRecords = consumerRecords;
+        }
+    }
+
+    // 只有第pollThreadIndex个consume线程调用，和上一次放进队列的PartitionBuffer不同时先放标记
+    public boolean offer(int pollThreadIndex, PartitionBuffer<K, V> partitionBuffer, ConsumerRecord<K, V> record, long timeoutMs) throws InterruptedException {
+        Inbox<K, V> inbox = inboxes.get(pollThreadIndex);
+        if (inbox.lastOfferedPartitionBuffer != partitionBuffer) {
+            if (!inbox.processDataQueue.offer(partitionBuffer, timeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            inbox.lastOfferedPartitionBuffer = partitionBuffer;
+        }
+        return inbox.processDataQueue.offer(record, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        workingFlag = true;
+        try {
+            this.executingThread = Thread.currentThread();
+            int idleCount = 0;
+            while (true) {
+                Boolean processed = processHeldBatches();
+                if (fillBatches()) {
+                    for (Inbox<K, V> inbox : inboxes) {
+                        processOperationData(inbox);
+                    }
+                    processed = true;
+                }
+                if (processed) {
+                    idleCount = 0;
+                    continue;
+                }
+                // 如果所有queue都是空，并且stop为true则退出
+                if (workerStopFlag && isEmpty()) {
+                    break;
+                }
+                waitStrategy.idle(idleCount++);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } catch (Exception e) {
+            logger.error("processDataWorker thread is failed, the error is " + e.toString());
+        } finally {
+            // 关闭时还没有分配回来的partition，留着的record不再处理
+            for (HeldBatch<K, V> heldBatch : heldBatches) {
+                heldBatch.partitionBuffer.skip(heldBatch.consumerRecords);
+            }
+            heldBatches.clear();
+            logger.info("processDataWorker " + Thread.currentThread().getName() + " is safely closed...");
+            workingFlag = false;
+            stopped.countDown();
+        }
+    }
+
+    public Boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        return stopped.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void processOperationData(Inbox<K, V> inbox) throws InterruptedException {
+        if (inbox.batch.isEmpty()) {
+            return;
+        }
+        // 如果出现除InterruptedException的错误，则必须catch住，要不然，线程会中断！
+        try {
+            processBatchByPartition(inbox);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("processOperationData error, the error is " + CommonUtils.getStackTraceAsString(e));
+        } finally {
+            inbox.batch.clear();
+        }
+    }
+
+    // 所有consume线程的队列一起凑批，直到达到processBatchSize或者processBatchBytes，或者超过processBatchLingerMs。
+    // 所有队列共用一个截止时间，每一轮不阻塞地从每个队列drainTo，一轮什么都没取到时按等待策略等待，不会阻塞在某一个队列上。
+    // 所有队列都是空的时候马上返回false
+    private Boolean fillBatches() throws InterruptedException {
+        int batchSize = 0;
+        long batchBytes = 0L;
+        long lingerDeadline = -1L;
+        int idleCount = 0;
+        int firstInbox = nextInbox;
+        nextInbox = (nextInbox + 1) % inboxes.size();
+        while (batchSize < KafkaMysqlOffsetParameter.processBatchSize
+                && batchBytes < KafkaMysqlOffsetParameter.processBatchBytes) {
+            int drained = 0;
+            for (int i = 0; i < inboxes.size(); i++) {
+                Inbox<K, V> inbox = inboxes.get((firstInbox + i) % inboxes.size());
+                int drainFrom = inbox.batch.size();
+                inbox.processDataQueue.drainTo(inbox.batch, KafkaMysqlOffsetParameter.processBatchSize - batchSize);
+                for (int j = drainFrom; j < inbox.batch.size(); j++) {
+                    batchBytes += sizeOf(inbox.batch.get(j));
+                }
+                drained += inbox.batch.size() - drainFrom;
+                batchSize += inbox.batch.size() - drainFrom;
+                if (batchSize >= KafkaMysqlOffsetParameter.processBatchSize
+                        || batchBytes >= KafkaMysqlOffsetParameter.processBatchBytes) {
+                    break;
+                }
+            }
+            if (batchSize == 0) {
+                return false;
+            }
+            if (lingerDeadline < 0L) {
+                lingerDeadline = System.currentTimeMillis() + KafkaMysqlOffsetParameter.processBatchLingerMs;
+            }
+            if (drained > 0) {
+                idleCount = 0;
+                continue;
+            }
+            if (System.currentTimeMillis() >= lingerDeadline) {
+                break;
+            }
+            waitStrategy.idle(idleCount++);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    // 按PartitionBuffer分组后调用processBatchAsync，同一个partition内保持offset顺序，future完成后推进watermark并归还额度
+    @SuppressWarnings("unchecked")
+    private void processBatchByPartition(Inbox<K, V> inbox) throws InterruptedException {
+        Map<PartitionBuffer<K, V>, List<ConsumerRecord<K, V>>> recordsPerPartition = new LinkedHashMap<>();
+        List<ConsumerRecord<K, V>> partitionRecords = null;
+        for (Object element : inbox.batch) {
+            if (element instanceof PartitionBuffer) {
+                inbox.currentPartitionBuffer = (PartitionBuffer<K, V>) element;
+                partitionRecords = null;
+                continue;
+            }
+            if (partitionRecords == null) {
+                partitionRecords = recordsPerPartition.computeIfAbsent(inbox.currentPartitionBuffer, k -> new ArrayList<>());
+            }
+            partitionRecords.add((ConsumerRecord<K, V>) element);
+        }
+        for (Map.Entry<PartitionBuffer<K, V>, List<ConsumerRecord<K, V>>> entry : recordsPerPartition.entrySet()) {
+            if (entry.getKey().isRevoked()) {
+                // 新的owner会从保存的offset重新处理这些record
+                entry.getKey().skip(entry.getValue());
+                continue;
+            }
+            if (entry.getKey().isFailed()) {
+                // 前面有处理失败的record，watermark不会越过它，后面的record重新分配之后再处理
+                entry.getKey().fail(entry.getValue());
+                continue;
+            }
+            // 前面还有留着的record时也要留着，保证同一个partition的顺序
+            if (entry.getKey().isSuspended() || isHeld(entry.getKey())) {
+                heldBatches.add(new HeldBatch<>(inbox.pollThreadInFlightLimiter, entry.getKey(), entry.getValue()));
+                continue;
+            }
+            processBatchAsync(inbox.pollThreadInFlightLimiter, entry.getKey(), entry.getValue());
+        }
+    }
+
+    // 处理或者跳过已经不再暂停的partition留着的record，同一个partition在这一轮里只看一次状态，保证顺序
+    private Boolean processHeldBatches() throws InterruptedException {
+        if (heldBatches.isEmpty()) {
+            return false;
+        }
+        Boolean processed = false;
+        Set<PartitionBuffer<K, V>> suspendedPartitionBuffers = new HashSet<>();
+        Iterator<HeldBatch<K, V>> iterator = heldBatches.iterator();
+        while (iterator.hasNext()) {
+            HeldBatch<K, V> heldBatch = iterator.next();
+            PartitionBuffer<K, V> partitionBuffer = heldBatch.partitionBuffer;
+            if (suspendedPartitionBuffers.contains(partitionBuffer) || partitionBuffer.isSuspended()) {
+                suspendedPartitionBuffers.add(partitionBuffer);
+                continue;
+            }
+            iterator.remove();
+            processed = true;
+            if (partitionBuffer.isRevoked()) {
+                partitionBuffer.skip(heldBatch.consumerRecords);
+            } else if (partitionBuffer.isFailed()) {
+                partitionBuffer.fail(heldBatch.consumerRecords);
+            } else {
+                processBatchAsync(heldBatch.pollThreadInFlightLimiter, partitionBuffer, heldBatch.consumerRecords);
+            }
+        }
+        return processed;
+    }
+
+    private boolean isHeld(PartitionBuffer<K, V> partitionBuffer) {
+        for (HeldBatch<K, V> heldBatch : heldBatches) {
+            if (heldBatch.partitionBuffer == partitionBuffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 超过partition或者consume线程的in-flight上限时，等之前的future完成
+    private void processBatchAsync(InFlightLimiter pollThreadInFlightLimiter, PartitionBuffer<K, V> partitionBuffer, List<ConsumerRecord<K, V>> consumerRecords) throws InterruptedException {
+        TopicPartition topicPartition = partitionBuffer.getTopicPartition();
+        int recordCount = consumerRecords.size();
+        partitionBuffer.getInFlightLimiter().acquire(recordCount);
+        pollThreadInFlightLimiter.acquire(recordCount);
+        CompletableFuture<?> future;
+        try {
+            future = dataProcessor.processBatchAsync(topicPartition, consumerRecords);
+        } catch (Exception e) {
+            logger.error("processBatch error, the topicPartition is " + topicPartition + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            completeBatch(pollThreadInFlightLimiter, partitionBuffer, consumerRecords, e);
+            return;
+        }
+        if (future == null) {
+            completeBatch(pollThreadInFlightLimiter, partitionBuffer, consumerRecords, null);
+            return;
+        }
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                logger.error("processBatchAsync error, the topicPartition is " + topicPartition + ", the error is " + CommonUtils.getStackTraceAsString(throwable));
+            }
+            completeBatch(pollThreadInFlightLimiter, partitionBuffer, consumerRecords, throwable);
+        });
+    }
+
+    // 失败的batch不推进watermark，除非配置了process.advance.on.failure；额度都要归还
+    private void completeBatch(InFlightLimiter pollThreadInFlightLimiter, PartitionBuffer<K, V> partitionBuffer, List<ConsumerRecord<K, V>> consumerRecords, Throwable throwable) {
+        if (throwable == null || KafkaMysqlOffsetParameter.processAdvanceOnFailure) {
+            partitionBuffer.complete(consumerRecords);
+        } else {
+            partitionBuffer.fail(consumerRecords);
+        }
+        partitionBuffer.getInFlightLimiter().release(consumerRecords.size());
+        pollThreadInFlightLimiter.release(consumerRecords.size());
+        if (throwable != null && !KafkaMysqlOffsetParameter.processAdvanceOnFailure) {
+            try {
+                exceptionHandler.executeWhenProcessBatchFail(partitionBuffer.getTopicPartition(), consumerRecords, throwable);
+            } catch (Exception e) {
+                logger.error("executeWhenProcessBatchFail error, the topicPartition is " + partitionBuffer.getTopicPartition() + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            }
+        }
+    }
+
+    private long sizeOf(Object element) {
+        return element instanceof ConsumerRecord ? PartitionBuffer.sizeOf((ConsumerRecord<?, ?>) element) : 0L;
+    }
+
+    private Boolean isEmpty() {
+        for (Inbox<K, V> inbox : inboxes) {
+            if (!inbox.processDataQueue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Thread getExecutingThread() {
+        return executingThread;
+    }
+
+    public void stopWithException() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            logger.error("------- thread can not sleep ---------------------" + e.toString());
+        }
+        workerStopFlag = true;
+    }
+
+    // 所有consume线程都关闭之后才调用，处理完队列里剩下的record再退出
+    void stop() {
+        workerStopFlag = true;
+    }
+}
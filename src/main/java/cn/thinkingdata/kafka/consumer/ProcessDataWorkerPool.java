@@ -0,0 +1,125 @@
+package cn.thinkingdata.kafka.consumer;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.offset.OffsetManager;
+import cn.thinkingdata.kafka.consumer.queue.InFlightLimiter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * pollThreadNum个consume线程共用的workerNum个处理线程，consume线程数（KafkaConsumer数）和处理线程数可以分别配置。
+ * 最后一个consume线程关闭之后才停止处理线程。
+ */
+public class ProcessDataWorkerPool<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessDataWorkerPool.class);
+
+    private final List<ProcessDataWorker<K, V>> processDataWorkers = new ArrayList<>();
+    // 每个consume线程已经交给processor、还没处理完的record数
+    private final List<InFlightLimiter> pollThreadInFlightLimiters = new ArrayList<>();
+    private final ThreadFactory workerThreadFactory;
+    private final Boolean routeByKey = "key".equals(KafkaMysqlOffsetParameter.processWorkerRoute);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicInteger runningPollThreads;
+
+    public ProcessDataWorkerPool(NewIDataAsyncProcessor<K, V> dataProcessor, int pollThreadNum, int workerNum, ThreadFactory workerThreadFactory) {
+        this.workerThreadFactory = workerThreadFactory;
+        this.runningPollThreads = new AtomicInteger(pollThreadNum);
+        for (int i = 0; i < pollThreadNum; i++) {
+            pollThreadInFlightLimiters.add(new InFlightLimiter(KafkaMysqlOffsetParameter.asyncThreadInFlightRecords));
+        }
+        for (int i = 0; i < workerNum; i++) {
+            processDataWorkers.add(new ProcessDataWorker<>(dataProcessor, pollThreadInFlightLimiters, OffsetManager.getInstance().getExternalStorePersist()));
+        }
+    }
+
+    // 每个consume线程启动时都会调用，只有第一次启动processDataWorker
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        for (int i = 0; i < processDataWorkers.size(); i++) {
+            Thread workingThread = workerThreadFactory.newThread(processDataWorkers.get(i));
+            workingThread.setName("working thread" + "-" + i);
+            workingThread.start();
+        }
+    }
+
+    // 同一个partition（或者同一个key）的record总是交给同一个processDataWorker，保证顺序
+    public ProcessDataWorker<K, V> route(ConsumerRecord<K, V> record) {
+        int workerNum = processDataWorkers.size();
+        if (workerNum == 1) {
+            return processDataWorkers.get(0);
+        }
+        int hash;
+        if (routeByKey && record.key() != null) {
+            // byte[]的hashCode是对象地址，要按内容算，否则同一个key会分到不同的processDataWorker
+            hash = record.key() instanceof byte[] ? Arrays.hashCode((byte[]) record.key()) : record.key().hashCode();
+        } else {
+            hash = 31 * record.topic().hashCode() + record.partition();
+        }
+        return processDataWorkers.get((hash & 0x7fffffff) % workerNum);
+    }
+
+    public InFlightLimiter getInFlightLimiter(int pollThreadIndex) {
+        return pollThreadInFlightLimiters.get(pollThreadIndex);
+    }
+
+    // consume线程等自己的record处理完之后调用，最后一个consume线程调用时停止所有processDataWorker
+    public void releasePollThread() {
+        if (runningPollThreads.decrementAndGet() > 0) {
+            return;
+        }
+        for (ProcessDataWorker<K, V> processDataWorker : processDataWorkers) {
+            logger.info("start to stop processDataWorker " + processDataWorker.getExecutingThread());
+            processDataWorker.stop();
+        }
+    }
+
+    public void stopWithException() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            logger.error("------- thread can not sleep ---------------------" + e.toString());
+        }
+        for (ProcessDataWorker<K, V> processDataWorker : processDataWorkers) {
+            processDataWorker.stop();
+        }
+    }
+
+    public Boolean isWorking() {
+        for (ProcessDataWorker<K, V> processDataWorker : processDataWorkers) {
+            if (processDataWorker.workingFlag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 等待所有processDataWorker退出，没有启动过时直接返回
+    public Boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        if (!started.get()) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (ProcessDataWorker<K, V> processDataWorker : processDataWorkers) {
+            if (!processDataWorker.awaitStopped(Math.max(0L, deadline - System.currentTimeMillis()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<ProcessDataWorker<K, V>> getProcessDataWorkers() {
+        return Collections.unmodifiableList(processDataWorkers);
+    }
+}
@@ -0,0 +1,224 @@
+package cn.thinkingdata.kafka.consumer.assignor;
+
+import org.apache.kafka.clients.consumer.internals.AbstractPartitionAssignor;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按partition每秒拉取的字节数分配，而不是按partition个数。每个consumer把自己当前拥有的partition和它们的每秒字节数
+ * 放在subscription的userData里（还没有统计数据的partition写NaN），leader根据它们分配，不需要外部服务。
+ * partition先尽量留在原来的consumer上，只要这个consumer的负载不超过平均值的(1 + BALANCE_TOLERANCE)倍；
+ * 剩下的从负载最大的开始，分给当前负载最小的consumer。没有统计数据的partition按已知partition的平均值计算。
+ * 使用方法：partition.assignment.strategy=cn.thinkingdata.kafka.consumer.assignor.LoadAwareStickyAssignor
+ */
+public class LoadAwareStickyAssignor extends AbstractPartitionAssignor {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadAwareStickyAssignor.class);
+
+    private static final short VERSION = 1;
+    // 为了少移动partition，允许consumer的负载比平均值高这么多
+    private static final double BALANCE_TOLERANCE = 0.1;
+
+    // 这个consumer当前拥有的partition，只有consume线程读写
+    private List<TopicPartition> ownedPartitions = Collections.emptyList();
+
+    @Override
+    public String name() {
+        return "load-aware-sticky";
+    }
+
+    @Override
+    public Subscription subscription(Set<String> topics) {
+        long now = System.currentTimeMillis();
+        List<TopicPartition> partitions = new ArrayList<>();
+        List<Double> rates = new ArrayList<>();
+        int size = 2 + 4;
+        for (TopicPartition topicPartition : ownedPartitions) {
+            // 拿到不到1秒的partition还没有每秒字节数，用NaN表示，但仍然算作这个consumer拥有的partition
+            Double rate = PartitionLoadStats.rollWindow(topicPartition, now);
+            partitions.add(topicPartition);
+            rates.add(rate == null ? Double.NaN : rate);
+            size += 2 + topicPartition.topic().getBytes(StandardCharsets.UTF_8).length + 4 + 8;
+        }
+        ByteBuffer userData = ByteBuffer.allocate(size);
+        userData.putShort(VERSION);
+        userData.putInt(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            byte[] topic = partitions.get(i).topic().getBytes(StandardCharsets.UTF_8);
+            userData.putShort((short) topic.length);
+            userData.put(topic);
+            userData.putInt(partitions.get(i).partition());
+            userData.putDouble(rates.get(i));
+        }
+        userData.flip();
+        return new Subscription(new ArrayList<>(topics), userData);
+    }
+
+    @Override
+    public void onAssignment(Assignment assignment) {
+        long now = System.currentTimeMillis();
+        Set<TopicPartition> assigned = new HashSet<>(assignment.partitions());
+        for (TopicPartition topicPartition : ownedPartitions) {
+            if (!assigned.contains(topicPartition)) {
+                PartitionLoadStats.remove(topicPartition, this);
+            }
+        }
+        for (TopicPartition topicPartition : assigned) {
+            PartitionLoadStats.track(topicPartition, now, this);
+        }
+        ownedPartitions = new ArrayList<>(assignment.partitions());
+    }
+
+    @Override
+    public Map<String, List<TopicPartition>> assign(Map<String, Integer> partitionsPerTopic, Map<String, Subscription> subscriptions) {
+        // 从userData里读出每个partition的负载和原来的owner
+        Map<TopicPartition, Double> rates = new HashMap<>();
+        Map<TopicPartition, String> previousOwners = new HashMap<>();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            decode(entry.getKey(), entry.getValue().userData(), rates, previousOwners);
+        }
+        double knownRate = 0.0;
+        for (Double rate : rates.values()) {
+            knownRate += rate;
+        }
+        // 没有统计数据时每个partition负载相同，退化成按个数平均
+        double defaultRate = rates.isEmpty() ? 1.0 : Math.max(knownRate / rates.size(), 1.0);
+
+        Map<String, List<TopicPartition>> assignment = new HashMap<>();
+        Map<String, Double> memberLoads = new HashMap<>();
+        for (String memberId : subscriptions.keySet()) {
+            assignment.put(memberId, new ArrayList<>());
+            memberLoads.put(memberId, 0.0);
+        }
+        List<TopicPartition> allPartitions = new ArrayList<>();
+        double totalRate = 0.0;
+        for (Map.Entry<String, Integer> entry : partitionsPerTopic.entrySet()) {
+            for (TopicPartition topicPartition : partitions(entry.getKey(), entry.getValue())) {
+                if (!hasSubscriber(topicPartition.topic(), subscriptions)) {
+                    continue;
+                }
+                allPartitions.add(topicPartition);
+                totalRate += rates.getOrDefault(topicPartition, defaultRate);
+            }
+        }
+        // 负载大的先分，同样负载按topic、partition排序，保证每次结果一样
+        allPartitions.sort((a, b) -> {
+            int compare = Double.compare(rates.getOrDefault(b, defaultRate), rates.getOrDefault(a, defaultRate));
+            if (compare != 0) {
+                return compare;
+            }
+            compare = a.topic().compareTo(b.topic());
+            return compare != 0 ? compare : Integer.compare(a.partition(), b.partition());
+        });
+
+        // 原来的consumer负载没超过上限就留在原来的consumer上
+        double maxLoad = totalRate / Math.max(subscriptions.size(), 1) * (1 + BALANCE_TOLERANCE);
+        List<TopicPartition> unassigned = new ArrayList<>();
+        for (TopicPartition topicPartition : allPartitions) {
+            double rate = rates.getOrDefault(topicPartition, defaultRate);
+            String previousOwner = previousOwners.get(topicPartition);
+            if (previousOwner != null
+                    && subscriptions.containsKey(previousOwner)
+                    && subscriptions.get(previousOwner).topics().contains(topicPartition.topic())
+                    && memberLoads.get(previousOwner) + rate <= maxLoad) {
+                assignment.get(previousOwner).add(topicPartition);
+                memberLoads.put(previousOwner, memberLoads.get(previousOwner) + rate);
+            } else {
+                unassigned.add(topicPartition);
+            }
+        }
+        int moved = 0;
+        for (TopicPartition topicPartition : unassigned) {
+            String memberId = leastLoadedMember(topicPartition.topic(), subscriptions, memberLoads, assignment);
+            assignment.get(memberId).add(topicPartition);
+            memberLoads.put(memberId, memberLoads.get(memberId) + rates.getOrDefault(topicPartition, defaultRate));
+            if (previousOwners.containsKey(topicPartition) && !memberId.equals(previousOwners.get(topicPartition))) {
+                moved++;
+            }
+        }
+        logger.info("load aware sticky assignment finished, the partitions size is " + allPartitions.size()
+                + ", the moved partitions size is " + moved + ", the member loads (bytes per second) is " + memberLoads);
+        return assignment;
+    }
+
+    // 负载相同时选partition少的，再按memberId排序
+    private String leastLoadedMember(String topic, Map<String, Subscription> subscriptions,
+                                     Map<String, Double> memberLoads, Map<String, List<TopicPartition>> assignment) {
+        String leastLoadedMember = null;
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            String memberId = entry.getKey();
+            if (!entry.getValue().topics().contains(topic)) {
+                continue;
+            }
+            if (leastLoadedMember == null) {
+                leastLoadedMember = memberId;
+                continue;
+            }
+            int compare = Double.compare(memberLoads.get(memberId), memberLoads.get(leastLoadedMember));
+            if (compare == 0) {
+                compare = Integer.compare(assignment.get(memberId).size(), assignment.get(leastLoadedMember).size());
+            }
+            if (compare == 0) {
+                compare = memberId.compareTo(leastLoadedMember);
+            }
+            if (compare < 0) {
+                leastLoadedMember = memberId;
+            }
+        }
+        return leastLoadedMember;
+    }
+
+    private static boolean hasSubscriber(String topic, Map<String, Subscription> subscriptions) {
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.topics().contains(topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 解析失败（例如其他版本的consumer）时忽略这个consumer的统计数据
+    private static void decode(String memberId, ByteBuffer userData, Map<TopicPartition, Double> rates, Map<TopicPartition, String> previousOwners) {
+        if (userData == null || !userData.hasRemaining()) {
+            return;
+        }
+        ByteBuffer buffer = userData.duplicate();
+        try {
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                logger.warn("unknown load aware sticky assignor version " + version + ", the member is " + memberId);
+                return;
+            }
+            int size = buffer.getInt();
+            // 全部解析成功才使用，不留下解析到一半的数据
+            Map<TopicPartition, Double> memberRates = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                byte[] topic = new byte[buffer.getShort()];
+                buffer.get(topic);
+                TopicPartition topicPartition = new TopicPartition(new String(topic, StandardCharsets.UTF_8), buffer.getInt());
+                memberRates.put(topicPartition, buffer.getDouble());
+            }
+            // NaN表示没有每秒字节数，负载按defaultRate计算
+            for (Map.Entry<TopicPartition, Double> entry : memberRates.entrySet()) {
+                if (!entry.getValue().isNaN()) {
+                    rates.put(entry.getKey(), entry.getValue());
+                }
+                previousOwners.put(entry.getKey(), memberId);
+            }
+        } catch (Exception e) {
+            logger.warn("can not decode the user data of the member " + memberId + ", the error is " + e.toString());
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package cn.thinkingdata.kafka.consumer.assignor;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 这个进程里每个partition拉到的字节数，LoadAwareStickyAssignor在rebalance时换算成每秒字节数，
+ * 和上一次的值各占一半，避免一次rebalance间隔太短时数值跳动。
+ */
+public class PartitionLoadStats {
+
+    // 少于1秒的统计不可靠，保留上一次的值
+    private static final long MIN_WINDOW_MS = 1000L;
+
+    private static final Map<TopicPartition, AtomicLong> polledBytes = new ConcurrentHashMap<>();
+    private static final Map<TopicPartition, Long> windowStartMs = new ConcurrentHashMap<>();
+    private static final Map<TopicPartition, Double> bytesPerSecond = new ConcurrentHashMap<>();
+    // 一个进程里有多个consumer时，partition在它们之间移动，只有最后分配到它的assignor可以清掉统计
+    private static final Map<TopicPartition, Object> owners = new ConcurrentHashMap<>();
+
+    // consume线程每次poll之后调用，partition第一次出现之后不再分配对象
+    public static void record(TopicPartition topicPartition, long bytes) {
+        AtomicLong counter = polledBytes.get(topicPartition);
+        if (counter == null) {
+            // 和remove并发时也一定拿到放进map的那个counter
+            counter = polledBytes.computeIfAbsent(topicPartition, k -> {
+                windowStartMs.putIfAbsent(k, System.currentTimeMillis());
+                return new AtomicLong();
+            });
+        }
+        counter.addAndGet(bytes);
+    }
+
+    // 分配到partition时开始统计，一直没有record的partition每秒字节数是0
+    public static void track(TopicPartition topicPartition, long nowMs, Object owner) {
+        owners.put(topicPartition, owner);
+        polledBytes.computeIfAbsent(topicPartition, k -> new AtomicLong());
+        windowStartMs.putIfAbsent(topicPartition, nowMs);
+    }
+
+    // 结束当前窗口，返回平滑之后的每秒字节数，没有统计过的partition返回null
+    public static Double rollWindow(TopicPartition topicPartition, long nowMs) {
+        Long startMs = windowStartMs.get(topicPartition);
+        AtomicLong counter = polledBytes.get(topicPartition);
+        if (startMs == null || counter == null) {
+            return bytesPerSecond.get(topicPartition);
+        }
+        long elapsedMs = nowMs - startMs;
+        if (elapsedMs < MIN_WINDOW_MS) {
+            return bytesPerSecond.get(topicPartition);
+        }
+        double windowRate = counter.getAndSet(0L) * 1000.0 / elapsedMs;
+        windowStartMs.put(topicPartition, nowMs);
+        Double lastRate = bytesPerSecond.get(topicPartition);
+        double rate = lastRate == null ? windowRate : (lastRate + windowRate) / 2;
+        bytesPerSecond.put(topicPartition, rate);
+        return rate;
+    }
+
+    // partition分给了别的consumer，下次分配回来时重新统计。
+    // 已经分给这个进程里另一个consumer的partition由新的owner继续统计，不清掉
+    public static void remove(TopicPartition topicPartition, Object owner) {
+        if (!owners.remove(topicPartition, owner)) {
+            return;
+        }
+        polledBytes.remove(topicPartition);
+        windowStartMs.remove(topicPartition);
+        bytesPerSecond.remove(topicPartition);
+    }
+
+}
@@ -7,11 +7,16 @@ public class KafkaConsumerOffset {
     private String topic;
     private Integer partition;
     private String consumer_group;
-    private Long offset;
+    // offset、last_flush_offset、count用基本类型，consume线程每次poll更新时不分配对象，volatile保证persist线程读到完整的值
+    private volatile long offset;
     // 上一次flush记录下的offset值
-    private Long last_flush_offset;
+    private volatile long last_flush_offset;
     // 计数器 每消费一个记录，计数器加一，flush完，计数器清零
-    private Long count;
+    private volatile long count;
+    // owner认领partition时加1，offset只有在mysql里的epoch和它相同时才能写入
+    private volatile long epoch;
+    // mysql拒绝了这个epoch的写入，partition已经被新的owner认领，重新认领之前不再写入
+    private volatile boolean fenced;
     private String kafka_cluster_name;
     private String owner;
     private Date update_time;
@@ -57,6 +62,14 @@ public class KafkaConsumerOffset {
         this.offset = offset;
     }
 
+    public long getOffsetValue() {
+        return offset;
+    }
+
+    public void setOffsetValue(long offset) {
+        this.offset = offset;
+    }
+
     public Long getLast_flush_offset() {
         return last_flush_offset;
     }
@@ -73,6 +86,30 @@ public class KafkaConsumerOffset {
         this.count = count;
     }
 
+    public long getCountValue() {
+        return count;
+    }
+
+    public void setCountValue(long count) {
+        this.count = count;
+    }
+
+    public Long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(Long epoch) {
+        this.epoch = epoch;
+    }
+
+    public boolean isFenced() {
+        return fenced;
+    }
+
+    public void setFenced(boolean fenced) {
+        this.fenced = fenced;
+    }
+
     public String getKafka_cluster_name() {
         return kafka_cluster_name;
     }
@@ -111,7 +148,7 @@ public class KafkaConsumerOffset {
                 + ", partition=" + partition + ", consumer_group="
                 + consumer_group + ", offset=" + offset
                 + ", last_flush_offset=" + last_flush_offset + ", count="
-                + count + ", kafka_cluster_name=" + kafka_cluster_name
+                + count + ", epoch=" + epoch + ", kafka_cluster_name=" + kafka_cluster_name
                 + ", owner=" + owner + ", update_time=" + update_time
                 + ", create_time=" + create_time + "]";
     }
@@ -2,6 +2,10 @@ package cn.thinkingdata.kafka.consumer.exception;
 
 import cn.thinkingdata.kafka.consumer.KafkaSubscribeConsumeThread;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.List;
 
 public interface ExceptionHandler {
 
@@ -13,10 +17,14 @@ public interface ExceptionHandler {
 
     void executeWhenSessionTimeout(Integer count);
 
-    void executeWhenExecuteDataSessionTimeout(KafkaSubscribeConsumeThread kafkaSubscribeConsumeThread);
+    void executeWhenExecuteDataSessionTimeout(KafkaSubscribeConsumeThread<?, ?> kafkaSubscribeConsumeThread);
 
-    void executeWhenOffsetReset(KafkaSubscribeConsumeThread consumeThread);
+    void executeWhenOffsetReset(KafkaSubscribeConsumeThread<?, ?> consumeThread);
 
     void executeWhenException();
 
+    // 一批record处理失败（processBatchAsync抛出异常或者future异常完成），这个partition的offset不再前进，直到重新分配，默认不做处理
+    default void executeWhenProcessBatchFail(TopicPartition topicPartition, List<? extends ConsumerRecord<?, ?>> consumerRecords, Throwable throwable) {
+    }
+
 }
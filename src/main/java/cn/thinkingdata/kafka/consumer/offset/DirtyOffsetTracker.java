@@ -0,0 +1,108 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 记录offset有变化的partition，定时刷mysql时每个周期只看有变化的partition，不用扫描整个kafkaConsumerOffsetMaps。
+ * markDirty可以在任意线程调用；schedule和poll只有persist线程调用。
+ * 没到flushOffsetSize的partition、以及刚保存过的partition（下一次心跳）放进时间轮，到了flushInterval再刷，时间轮每个tick是persist线程的一个周期
+ */
+public class DirtyOffsetTracker {
+
+    private static final int WHEEL_SIZE = 64;
+
+    private final Queue<TopicPartition> dirtyQueue = new ConcurrentLinkedQueue<>();
+    // 已经在dirtyQueue里的partition，避免重复放入
+    private final Set<TopicPartition> dirtySet = ConcurrentHashMap.newKeySet();
+
+    // 时间轮，只有persist线程读写
+    private final List<List<TopicPartition>> wheel = new ArrayList<>(WHEEL_SIZE);
+    // 已经放进时间轮的partition和它到期的tick
+    private final Map<TopicPartition, Long> deadlineTicks = new HashMap<>();
+    private long currentTick = -1L;
+
+    public DirtyOffsetTracker() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    public void markDirty(TopicPartition topicPartition) {
+        if (dirtySet.add(topicPartition)) {
+            dirtyQueue.add(topicPartition);
+        }
+    }
+
+    // 取出所有有变化的partition，先从dirtySet删除再处理，处理期间的变化会重新放入dirtyQueue
+    public List<TopicPartition> drainDirty() {
+        List<TopicPartition> dirtyPartitions = new ArrayList<>();
+        TopicPartition topicPartition;
+        while ((topicPartition = dirtyQueue.poll()) != null) {
+            dirtySet.remove(topicPartition);
+            dirtyPartitions.add(topicPartition);
+        }
+        return dirtyPartitions;
+    }
+
+    // 在deadlineTick到期，已经在时间轮里的partition不改变到期时间
+    public void schedule(TopicPartition topicPartition, long deadlineTick) {
+        if (deadlineTicks.containsKey(topicPartition)) {
+            return;
+        }
+        long tick = Math.max(deadlineTick, currentTick + 1);
+        deadlineTicks.put(topicPartition, tick);
+        wheel.get((int) (tick & (WHEEL_SIZE - 1))).add(topicPartition);
+    }
+
+    // 推进到tick，返回到期的partition；超过一圈的partition留在原来的槽里
+    public List<TopicPartition> advance(long tick) {
+        List<TopicPartition> duePartitions = new ArrayList<>();
+        if (currentTick < 0L) {
+            // 第一次推进之前已经放进时间轮的partition可能在任意一个槽里，整圈都要看
+            currentTick = tick - WHEEL_SIZE;
+        }
+        // 落后超过一圈时，每个槽只需要看一次
+        long fromTick = Math.max(currentTick + 1, tick - WHEEL_SIZE + 1);
+        for (long t = fromTick; t <= tick; t++) {
+            List<TopicPartition> slot = wheel.get((int) (t & (WHEEL_SIZE - 1)));
+            if (slot.isEmpty()) {
+                continue;
+            }
+            List<TopicPartition> remaining = new ArrayList<>();
+            for (TopicPartition topicPartition : slot) {
+                Long deadlineTick = deadlineTicks.get(topicPartition);
+                if (deadlineTick == null) {
+                    continue;
+                }
+                if (deadlineTick <= tick) {
+                    deadlineTicks.remove(topicPartition);
+                    duePartitions.add(topicPartition);
+                } else {
+                    remaining.add(topicPartition);
+                }
+            }
+            slot.clear();
+            slot.addAll(remaining);
+        }
+        currentTick = Math.max(currentTick, tick);
+        return duePartitions;
+    }
+
+    public int getScheduledCount() {
+        return deadlineTicks.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DirtyOffsetTracker [dirty=" + dirtySet.size() + ", scheduled=" + deadlineTicks.size() + ", currentTick=" + currentTick + "]";
+    }
+}
@@ -0,0 +1,245 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import cn.thinkingdata.kafka.cache.KafkaCache;
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.KafkaSubscribeConsumeThread;
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import cn.thinkingdata.kafka.util.CommonUtils;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * offset提交到kafka的__consumer_offsets，owner放在commit的metadata里。
+ * KafkaConsumer不是线程安全的，也只有group的成员能提交，所以persist线程只把offset放进pendingCommits，
+ * 由拥有这个partition的consume线程在poll之后一起commitAsync；rebalance和关闭时在consume线程里commitSync。
+ * 读取offset用一个单独的、不订阅topic的KafkaConsumer。
+ */
+public class KafkaOffsetManager extends OffsetManager {
+
+    private static KafkaOffsetManager instance;
+
+    private static final Logger logger = LoggerFactory.getLogger(KafkaOffsetManager.class);
+
+    public static synchronized KafkaOffsetManager getInstance() {
+        if (instance == null) {
+            instance = new KafkaOffsetManager();
+        }
+        return instance;
+    }
+
+    // 等待consume线程提交的offset，同一个partition只保留最后一次
+    private final Map<TopicPartition, KafkaConsumerOffset> pendingCommits = new ConcurrentHashMap<>();
+    // 已经提交成功的offset，提交失败时last_flush_offset退回到这里，下一个周期重新提交
+    private final Map<TopicPartition, Long> committedOffsets = new ConcurrentHashMap<>();
+    // 只用来读取offset和检查连接，所有调用都要锁住它
+    private KafkaConsumer<byte[], byte[]> lookupConsumer;
+
+    private KafkaOffsetManager() {
+    }
+
+    private synchronized KafkaConsumer<byte[], byte[]> getLookupConsumer() {
+        if (lookupConsumer == null) {
+            Properties props = new Properties();
+            props.putAll(KafkaMysqlOffsetParameter.kafkaConf);
+            props.remove("partition.assignment.strategy");
+            lookupConsumer = new KafkaConsumer<>(props, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+        }
+        return lookupConsumer;
+    }
+
+    @Override
+    protected Boolean saveOffsetInExternalStore(KafkaConsumerOffset kafkaConsumerOffset) {
+        return saveOffsetsInExternalStore(Collections.singletonList(kafkaConsumerOffset)).isEmpty();
+    }
+
+    // 放进pendingCommits就返回，提交失败在回调里处理
+    @Override
+    public List<KafkaConsumerOffset> saveOffsetsInExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            pendingCommits.put(topicPartitionOf(kafkaConsumerOffset), kafkaConsumerOffset);
+        }
+        KafkaSubscribeConsumeThread<?, ?> consumeThread = currentConsumeThread();
+        if (consumeThread != null) {
+            afterPoll(consumeThread);
+        }
+        return new ArrayList<>();
+    }
+
+    // 只能提交当前consume线程拥有的partition。其他partition放回pendingCommits，由拥有它的consume线程提交，
+    // 这次不能确认写入，所以返回false
+    @Override
+    public Boolean revokeOffsetsInExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        KafkaSubscribeConsumeThread<?, ?> consumeThread = currentConsumeThread();
+        Collection<TopicPartition> assignedPartitions = consumeThread == null ? null : consumeThread.assignedPartitions;
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        boolean allOwned = true;
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            TopicPartition topicPartition = topicPartitionOf(kafkaConsumerOffset);
+            if (assignedPartitions == null || !assignedPartitions.contains(topicPartition)) {
+                logger.error("the partition is not owned by the current consume thread, leave it to the owner to commit, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+                pendingCommits.put(topicPartition, kafkaConsumerOffset);
+                allOwned = false;
+                continue;
+            }
+            pendingCommits.remove(topicPartition);
+            offsets.put(topicPartition, new OffsetAndMetadata(kafkaConsumerOffset.getOffsetValue(), kafkaConsumerOffset.getOwner()));
+        }
+        if (offsets.isEmpty()) {
+            return allOwned;
+        }
+        try {
+            consumeThread.consumer.commitSync(offsets);
+        } catch (Exception e) {
+            logger.error("kafka commit offsets error, the offsets is " + offsets + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+        // partition已经收回，不再需要记录
+        for (TopicPartition topicPartition : offsets.keySet()) {
+            committedOffsets.remove(topicPartition);
+        }
+        return allOwned;
+    }
+
+    // owner和当前的offset一起提交
+    @Override
+    public Boolean updateOwners(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        saveOffsetsInExternalStore(kafkaConsumerOffsets);
+        return true;
+    }
+
+    @Override
+    public Boolean updateOwner(KafkaConsumerOffset kafkaConsumerOffset) {
+        return updateOwners(Collections.singletonList(kafkaConsumerOffset));
+    }
+
+    @Override
+    public void afterPoll(KafkaSubscribeConsumeThread<?, ?> consumeThread) {
+        Collection<TopicPartition> assignedPartitions = consumeThread.assignedPartitions;
+        if (pendingCommits.isEmpty() || assignedPartitions == null) {
+            return;
+        }
+        final Map<TopicPartition, KafkaConsumerOffset> committing = new HashMap<>();
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition topicPartition : assignedPartitions) {
+            KafkaConsumerOffset kafkaConsumerOffset = pendingCommits.remove(topicPartition);
+            if (kafkaConsumerOffset != null) {
+                committing.put(topicPartition, kafkaConsumerOffset);
+                offsets.put(topicPartition, new OffsetAndMetadata(kafkaConsumerOffset.getOffsetValue(), kafkaConsumerOffset.getOwner()));
+            }
+        }
+        if (offsets.isEmpty()) {
+            return;
+        }
+        consumeThread.consumer.commitAsync(offsets, (committedOffsetMap, exception) -> {
+            if (exception == null) {
+                for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : committedOffsetMap.entrySet()) {
+                    committedOffsets.put(entry.getKey(), entry.getValue().offset());
+                }
+                return;
+            }
+            logger.error("kafka commitAsync error, the offsets is " + offsets + ", the error is " + CommonUtils.getStackTraceAsString(exception));
+            for (Map.Entry<TopicPartition, KafkaConsumerOffset> entry : committing.entrySet()) {
+                // 下一个周期重新提交。提交的可能是persist线程的快照，缓存里的offset也要回退
+                Long committedOffset = committedOffsets.getOrDefault(entry.getKey(), 0L);
+                entry.getValue().setLast_flush_offset(committedOffset);
+                KafkaConsumerOffset kafkaConsumerOffsetInCache = KafkaCache.kafkaConsumerOffsetMaps.get(entry.getKey());
+                if (kafkaConsumerOffsetInCache != null) {
+                    kafkaConsumerOffsetInCache.setLast_flush_offset(committedOffset);
+                }
+                KafkaCache.dirtyOffsetTracker.markDirty(entry.getKey());
+            }
+        });
+    }
+
+    // kafka里没有提交过的partition和mysql里没有记录一样，从0开始
+    @Override
+    protected KafkaConsumerOffset readOffsetFromExternalStore(String topic, int partition) {
+        OffsetAndMetadata offsetAndMetadata;
+        try {
+            KafkaConsumer<byte[], byte[]> consumer = getLookupConsumer();
+            synchronized (this) {
+                offsetAndMetadata = consumer.committed(new TopicPartition(topic, partition));
+            }
+        } catch (Exception e) {
+            logger.error("kafka read committed offset error, the topic is " + topic + ", the partition is " + partition + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            return null;
+        }
+        Date now = new Date();
+        KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+        kafkaConsumerOffset.setTopic(topic);
+        kafkaConsumerOffset.setPartition(partition);
+        kafkaConsumerOffset.setConsumer_group(KafkaMysqlOffsetParameter.consumerGroup);
+        kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
+        kafkaConsumerOffset.setCount(0L);
+        kafkaConsumerOffset.setUpdate_time(now);
+        kafkaConsumerOffset.setCreate_time(now);
+        if (offsetAndMetadata == null) {
+            logger.info("offset is not committed in kafka, the topic is " + topic + ", the partition is "
+                    + partition + ", the consumerGroup is " + KafkaMysqlOffsetParameter.consumerGroup);
+            kafkaConsumerOffset.setOffset(0L);
+            kafkaConsumerOffset.setLast_flush_offset(0L);
+        } else {
+            kafkaConsumerOffset.setOffset(offsetAndMetadata.offset());
+            kafkaConsumerOffset.setLast_flush_offset(offsetAndMetadata.offset());
+            kafkaConsumerOffset.setOwner(offsetAndMetadata.metadata());
+            committedOffsets.put(new TopicPartition(topic, partition), offsetAndMetadata.offset());
+        }
+        return kafkaConsumerOffset;
+    }
+
+    @Override
+    public Boolean externalStoreStateCheck() {
+        try {
+            KafkaConsumer<byte[], byte[]> consumer = getLookupConsumer();
+            synchronized (this) {
+                consumer.listTopics(Duration.ofMillis(Long.parseLong(KafkaMysqlOffsetParameter.sessionTimeout)));
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("kafka state check error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        logger.info("kafka offset manager shutdown!");
+        if (lookupConsumer != null) {
+            try {
+                lookupConsumer.close();
+            } catch (Exception e) {
+                logger.error("can not close the kafka lookup consumer, the error is " + CommonUtils.getStackTraceAsString(e));
+            }
+            lookupConsumer = null;
+        }
+    }
+
+    private KafkaSubscribeConsumeThread<?, ?> currentConsumeThread() {
+        for (KafkaSubscribeConsumeThread<?, ?> consumeThread : KafkaCache.consumeThreadList) {
+            if (consumeThread.getConsumerThread() == Thread.currentThread()) {
+                return consumeThread;
+            }
+        }
+        return null;
+    }
+
+    private static TopicPartition topicPartitionOf(KafkaConsumerOffset kafkaConsumerOffset) {
+        return new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
+    }
+
+}
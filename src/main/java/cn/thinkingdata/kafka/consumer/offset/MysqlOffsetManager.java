@@ -13,7 +13,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class MysqlOffsetManager extends OffsetManager {
 
@@ -29,6 +36,9 @@ public class MysqlOffsetManager extends OffsetManager {
         return instance;
     }
 
+    // 写出字段名，表里有没有epoch字段都可以插入
+    private static final String COLUMNS = "(topic, kafka_partition, consumer_group, offset, last_flush_offset, kafka_cluster_name, owner, update_time, create_time)";
+
     DBPoolConnection dbp = DBPoolConnection.getInstance();
 
     private MysqlOffsetManager() {
@@ -39,10 +49,13 @@ public class MysqlOffsetManager extends OffsetManager {
     protected Boolean saveOffsetInExternalStore(KafkaConsumerOffset kafkaConsumerOffset) {
         logger.debug("because of the muti-thread, the value is not exactly right, kafkaConsumerOffset is " + kafkaConsumerOffset.toString());
         try (Connection conn = dbp.getConnection()) {
+            if (KafkaMysqlOffsetParameter.offsetFencing) {
+                return saveFencedOffsets(conn, Collections.singletonList(kafkaConsumerOffset)).isEmpty();
+            }
             String sql = "INSERT INTO "
                     + KafkaMysqlOffsetParameter.tableName
-                    + " VALUES"
-                    + " (null,?,?,?,?,?,?,?,?,?) ON DUPLICATE KEY"
+                    + " " + COLUMNS + " VALUES"
+                    + " (?,?,?,?,?,?,?,?,?) ON DUPLICATE KEY"
                     + " UPDATE offset=?, last_flush_offset=?, kafka_cluster_name=?,"
                     + " owner=?, update_time=?;";
             PreparedStatement ps = conn.prepareStatement(sql);
@@ -68,6 +81,140 @@ public class MysqlOffsetManager extends OffsetManager {
         }
     }
 
+    // 多行upsert，每条最多flushBatchSize行，返回保存失败的offset（包括被epoch拒绝的）。
+    // 一条upsert失败时，这一批逐行重新保存，只有逐行也失败的才算失败
+    @Override
+    public List<KafkaConsumerOffset> saveOffsetsInExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        List<KafkaConsumerOffset> failedOffsets = new ArrayList<>();
+        for (int from = 0; from < kafkaConsumerOffsets.size(); from += KafkaMysqlOffsetParameter.flushBatchSize) {
+            List<KafkaConsumerOffset> chunk = kafkaConsumerOffsets.subList(from,
+                    Math.min(from + KafkaMysqlOffsetParameter.flushBatchSize, kafkaConsumerOffsets.size()));
+            List<KafkaConsumerOffset> rejectedOffsets = saveOffsetChunkInExternalStore(chunk);
+            if (rejectedOffsets != null) {
+                failedOffsets.addAll(rejectedOffsets);
+                continue;
+            }
+            for (KafkaConsumerOffset kafkaConsumerOffset : chunk) {
+                if (!saveOffsetInExternalStore(kafkaConsumerOffset)) {
+                    failedOffsets.add(kafkaConsumerOffset);
+                }
+            }
+        }
+        return failedOffsets;
+    }
+
+    // 返回被epoch拒绝的offset，写入出错返回null
+    private List<KafkaConsumerOffset> saveOffsetChunkInExternalStore(List<KafkaConsumerOffset> chunk) {
+        try (Connection conn = dbp.getConnection()) {
+            return saveOffsetChunkInExternalStore(conn, chunk);
+        } catch (SQLException e) {
+            logger.error("mysql save offsets error, the size is " + chunk.size() + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            return null;
+        }
+    }
+
+    // partition被收回时，offset和清空的owner在一个事务里一起写入，要么全部成功要么全部回滚。
+    // 开启offset.fencing时只按自己的epoch写入，不改变epoch，有被拒绝的offset时返回false
+    @Override
+    public Boolean revokeOffsetsInExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        try (Connection conn = dbp.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                List<KafkaConsumerOffset> rejectedOffsets = new ArrayList<>();
+                for (int from = 0; from < kafkaConsumerOffsets.size(); from += KafkaMysqlOffsetParameter.flushBatchSize) {
+                    rejectedOffsets.addAll(saveOffsetChunkInExternalStore(conn, kafkaConsumerOffsets.subList(from,
+                            Math.min(from + KafkaMysqlOffsetParameter.flushBatchSize, kafkaConsumerOffsets.size()))));
+                }
+                conn.commit();
+                return rejectedOffsets.isEmpty();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            logger.error("mysql revoke offsets error, the size is " + kafkaConsumerOffsets.size() + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+    }
+
+    // 返回被epoch拒绝的offset，没有开启offset.fencing时为空
+    private List<KafkaConsumerOffset> saveOffsetChunkInExternalStore(Connection conn, List<KafkaConsumerOffset> chunk) throws SQLException {
+        if (KafkaMysqlOffsetParameter.offsetFencing) {
+            return saveFencedOffsets(conn, chunk);
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(KafkaMysqlOffsetParameter.tableName)
+                .append(" ").append(COLUMNS).append(" VALUES");
+        for (int i = 0; i < chunk.size(); i++) {
+            sql.append(i == 0 ? " " : ", ").append("(?,?,?,?,?,?,?,?,?)");
+        }
+        sql.append(" ON DUPLICATE KEY")
+                .append(" UPDATE offset=VALUES(offset), last_flush_offset=VALUES(last_flush_offset), kafka_cluster_name=VALUES(kafka_cluster_name),")
+                .append(" owner=VALUES(owner), update_time=VALUES(update_time);");
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (KafkaConsumerOffset kafkaConsumerOffset : chunk) {
+                ps.setString(index++, kafkaConsumerOffset.getTopic());
+                ps.setInt(index++, kafkaConsumerOffset.getPartition());
+                ps.setString(index++, kafkaConsumerOffset.getConsumer_group());
+                ps.setLong(index++, kafkaConsumerOffset.getOffset());
+                ps.setLong(index++, kafkaConsumerOffset.getLast_flush_offset());
+                ps.setString(index++, kafkaConsumerOffset.getKafka_cluster_name());
+                ps.setString(index++, kafkaConsumerOffset.getOwner());
+                ps.setTimestamp(index++, new Timestamp(kafkaConsumerOffset.getUpdate_time().getTime()));
+                ps.setTimestamp(index++, new Timestamp(kafkaConsumerOffset.getCreate_time().getTime()));
+            }
+            ps.execute();
+        }
+        return Collections.emptyList();
+    }
+
+    // 只有mysql里的epoch和自己的epoch相同时才写入，不同说明partition已经被新的owner认领，
+    // 例如Marking the coordinator dead之后还在写的consumer。被拒绝的offset标记为fenced并返回，重新认领之前不再写入
+    private List<KafkaConsumerOffset> saveFencedOffsets(Connection conn, List<KafkaConsumerOffset> kafkaConsumerOffsets) throws SQLException {
+        List<KafkaConsumerOffset> rejectedOffsets = new ArrayList<>();
+        List<KafkaConsumerOffset> writeOffsets = new ArrayList<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            if (kafkaConsumerOffset.isFenced()) {
+                rejectedOffsets.add(kafkaConsumerOffset);
+            } else {
+                writeOffsets.add(kafkaConsumerOffset);
+            }
+        }
+        if (writeOffsets.isEmpty()) {
+            return rejectedOffsets;
+        }
+        String sql = "UPDATE " + KafkaMysqlOffsetParameter.tableName
+                + " set offset = ?, last_flush_offset = ?, owner = ?, update_time = ?"
+                + " where kafka_cluster_name = ? and topic = ? and kafka_partition = ? and consumer_group = ? and epoch = ?;";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (KafkaConsumerOffset kafkaConsumerOffset : writeOffsets) {
+                ps.setLong(1, kafkaConsumerOffset.getOffset());
+                ps.setLong(2, kafkaConsumerOffset.getLast_flush_offset());
+                ps.setString(3, kafkaConsumerOffset.getOwner());
+                ps.setTimestamp(4, new Timestamp(kafkaConsumerOffset.getUpdate_time().getTime()));
+                ps.setString(5, kafkaConsumerOffset.getKafka_cluster_name());
+                ps.setString(6, kafkaConsumerOffset.getTopic());
+                ps.setInt(7, kafkaConsumerOffset.getPartition());
+                ps.setString(8, kafkaConsumerOffset.getConsumer_group());
+                ps.setLong(9, kafkaConsumerOffset.getEpoch());
+                ps.addBatch();
+            }
+            int[] updateCounts = ps.executeBatch();
+            for (int i = 0; i < updateCounts.length; i++) {
+                if (updateCounts[i] == 0) {
+                    logger.error("the offset is rejected by mysql, the partition is claimed by a newer owner, the kafkaConsumerOffset is " + writeOffsets.get(i));
+                    writeOffsets.get(i).setFenced(true);
+                    rejectedOffsets.add(writeOffsets.get(i));
+                }
+            }
+        }
+        return rejectedOffsets;
+    }
+
     @Override
     protected KafkaConsumerOffset readOffsetFromExternalStore(String topic,
                                                               int partition) {
@@ -102,6 +249,9 @@ public class MysqlOffsetManager extends OffsetManager {
                 kafkaConsumerOffset.setLast_flush_offset(rs.getLong("offset"));
                 kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
                 kafkaConsumerOffset.setOwner(rs.getString("owner"));
+                if (KafkaMysqlOffsetParameter.offsetFencing) {
+                    kafkaConsumerOffset.setEpoch(rs.getLong("epoch"));
+                }
                 kafkaConsumerOffset.setCount(0L);
                 kafkaConsumerOffset.setUpdate_time(rs.getDate("update_time"));
                 kafkaConsumerOffset.setCreate_time(rs.getDate("create_time"));
@@ -131,6 +281,90 @@ public class MysqlOffsetManager extends OffsetManager {
         return kafkaConsumerOffset;
     }
 
+    // 一条SELECT ... IN读取一个topic的多个partition，mysql里没有的partition从0开始，读取失败返回null
+    @Override
+    protected Map<Integer, KafkaConsumerOffset> readOffsetsFromExternalStore(String topic, Collection<Integer> partitions) {
+        Map<Integer, KafkaConsumerOffset> kafkaConsumerOffsets = new HashMap<>();
+        Date now = new Date();
+        StringBuilder sql = new StringBuilder("select * from ").append(KafkaMysqlOffsetParameter.tableName)
+                .append(" where kafka_cluster_name = ? and topic = ? and consumer_group = ? and kafka_partition in (");
+        for (int i = 0; i < partitions.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(");");
+        try (Connection conn = dbp.getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            ps.setString(index++, KafkaMysqlOffsetParameter.kafkaClusterName);
+            ps.setString(index++, topic);
+            ps.setString(index++, KafkaMysqlOffsetParameter.consumerGroup);
+            for (Integer partition : partitions) {
+                ps.setInt(index++, partition);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int partition = rs.getInt("kafka_partition");
+                    // 唯一键被破坏时保留第一行，不能用空的offset覆盖它
+                    if (kafkaConsumerOffsets.containsKey(partition)) {
+                        logger.error("DUPLICATE KEY in "
+                                + KafkaMysqlOffsetParameter.tableName
+                                + " , the kafka cluster name is "
+                                + KafkaMysqlOffsetParameter.kafkaClusterName
+                                + " , the topic is " + topic
+                                + ", the partition is " + partition
+                                + ", the consumerGroup is "
+                                + KafkaMysqlOffsetParameter.consumerGroup
+                                + ", keep the first row, the duplicate offset is " + rs.getLong("offset")
+                                + ", the duplicate oid is " + rs.getInt("oid"));
+                        continue;
+                    }
+                    KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+                    kafkaConsumerOffset.setOid(rs.getInt("oid"));
+                    kafkaConsumerOffset.setTopic(topic);
+                    kafkaConsumerOffset.setPartition(partition);
+                    kafkaConsumerOffset.setConsumer_group(KafkaMysqlOffsetParameter.consumerGroup);
+                    kafkaConsumerOffset.setOffset(rs.getLong("offset"));
+                    kafkaConsumerOffset.setLast_flush_offset(rs.getLong("offset"));
+                    kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
+                    kafkaConsumerOffset.setOwner(rs.getString("owner"));
+                    if (KafkaMysqlOffsetParameter.offsetFencing) {
+                        kafkaConsumerOffset.setEpoch(rs.getLong("epoch"));
+                    }
+                    kafkaConsumerOffset.setCount(0L);
+                    kafkaConsumerOffset.setUpdate_time(rs.getDate("update_time"));
+                    kafkaConsumerOffset.setCreate_time(rs.getDate("create_time"));
+                    kafkaConsumerOffsets.put(partition, kafkaConsumerOffset);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("mysql read offsets error, the topic is " + topic + ", the partitions is " + partitions + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            return null;
+        }
+        for (Integer partition : partitions) {
+            if (kafkaConsumerOffsets.containsKey(partition)) {
+                continue;
+            }
+            logger.info("offset is not in "
+                    + KafkaMysqlOffsetParameter.tableName
+                    + " , the kafka cluster name is "
+                    + KafkaMysqlOffsetParameter.kafkaClusterName
+                    + " , the topic is " + topic + ", the partition is "
+                    + partition + ", the consumerGroup is "
+                    + KafkaMysqlOffsetParameter.consumerGroup);
+            KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+            kafkaConsumerOffset.setTopic(topic);
+            kafkaConsumerOffset.setPartition(partition);
+            kafkaConsumerOffset.setConsumer_group(KafkaMysqlOffsetParameter.consumerGroup);
+            kafkaConsumerOffset.setOffset(0L);
+            kafkaConsumerOffset.setLast_flush_offset(0L);
+            kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
+            kafkaConsumerOffset.setCount(0L);
+            kafkaConsumerOffset.setUpdate_time(now);
+            kafkaConsumerOffsets.put(partition, kafkaConsumerOffset);
+        }
+        return kafkaConsumerOffsets;
+    }
+
+    @Override
     public void shutdown() {
         logger.info("mysql shutdown!");
         try {
@@ -140,14 +374,9 @@ public class MysqlOffsetManager extends OffsetManager {
         }
     }
 
-    //去掉synchronized，因为MysqlOffsetPersist的flush和persist里有synchronized方法
-    public Boolean saveOffsetInCacheToMysql(KafkaConsumerOffset kafkaConsumerOffset) {
-        Long lag = kafkaConsumerOffset.getOffset() - kafkaConsumerOffset.getLast_flush_offset();
-        if (!lag.equals(0L)) {
-            logger.debug("because of the muti-thread, the value is not exactly right, the lag is " + lag);
-            return saveOffsetInExternalStore(kafkaConsumerOffset);
-        }
-        return true;
+    @Override
+    public Boolean externalStoreStateCheck() {
+        return mysqlStateCheck();
     }
 
     public Boolean mysqlStateCheck() {
@@ -161,9 +390,226 @@ public class MysqlOffsetManager extends OffsetManager {
         }
     }
 
+    // 还没有保存过的partition（offset是0）直接插入，其他的每个topic一条UPDATE ... CASE
+    @Override
+    public Boolean updateOwners(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        logger.debug("update the owner for kafkaConsumerOffsets, the size is " + kafkaConsumerOffsets.size());
+        if (KafkaMysqlOffsetParameter.offsetFencing) {
+            return claimOwners(kafkaConsumerOffsets);
+        }
+        Date now = new Date();
+        List<KafkaConsumerOffset> newOffsets = new ArrayList<>();
+        Map<String, List<KafkaConsumerOffset>> offsetsPerTopic = new HashMap<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            if (kafkaConsumerOffset.getOffset() == 0L) {
+                kafkaConsumerOffset.setUpdate_time(now);
+                if (kafkaConsumerOffset.getCreate_time() == null)
+                    kafkaConsumerOffset.setCreate_time(now);
+                newOffsets.add(kafkaConsumerOffset);
+            } else {
+                offsetsPerTopic.computeIfAbsent(kafkaConsumerOffset.getTopic(), k -> new ArrayList<>()).add(kafkaConsumerOffset);
+            }
+        }
+        Boolean flag = newOffsets.isEmpty() || saveOffsetsInExternalStore(newOffsets).isEmpty();
+        try (Connection conn = dbp.getConnection()) {
+            for (Map.Entry<String, List<KafkaConsumerOffset>> entry : offsetsPerTopic.entrySet()) {
+                updateOwnersOfTopic(conn, entry.getKey(), entry.getValue(), false);
+            }
+        } catch (SQLException e) {
+            logger.error("mysql update the owners error, the error is " + CommonUtils.getStackTraceAsString(e));
+            flag = false;
+        }
+        if (flag) {
+            KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(true);
+        } else {
+            KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(false);
+            logger.error("mysql update the owners error");
+        }
+        return flag;
+    }
+
+    // 一个topic的partition一条UPDATE ... CASE，认领时epoch一起加1
+    private void updateOwnersOfTopic(Connection conn, String topic, List<KafkaConsumerOffset> topicOffsets, boolean increaseEpoch) throws SQLException {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(KafkaMysqlOffsetParameter.tableName)
+                .append(" set owner = case kafka_partition");
+        for (int i = 0; i < topicOffsets.size(); i++) {
+            sql.append(" when ? then ?");
+        }
+        sql.append(" else owner end, update_time = NOW()");
+        if (increaseEpoch) {
+            sql.append(", epoch = epoch + 1");
+        }
+        sql.append(" where kafka_cluster_name = ? and topic = ? and consumer_group = ? and kafka_partition in (");
+        for (int i = 0; i < topicOffsets.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(");");
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (KafkaConsumerOffset kafkaConsumerOffset : topicOffsets) {
+                ps.setInt(index++, kafkaConsumerOffset.getPartition());
+                ps.setString(index++, kafkaConsumerOffset.getOwner());
+            }
+            ps.setString(index++, KafkaMysqlOffsetParameter.kafkaClusterName);
+            ps.setString(index++, topic);
+            ps.setString(index++, KafkaMysqlOffsetParameter.consumerGroup);
+            for (KafkaConsumerOffset kafkaConsumerOffset : topicOffsets) {
+                ps.setInt(index++, kafkaConsumerOffset.getPartition());
+            }
+            ps.execute();
+        }
+    }
+
+    // 认领partition：在一个事务里锁住这些行，已有的行owner更新、epoch加1，没有的行插入epoch为1的记录。
+    // 最后认领的owner生效，之后的offset都带着新的epoch写入
+    private Boolean claimOwners(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        Date now = new Date();
+        Map<String, List<KafkaConsumerOffset>> offsetsPerTopic = new HashMap<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            offsetsPerTopic.computeIfAbsent(kafkaConsumerOffset.getTopic(), k -> new ArrayList<>()).add(kafkaConsumerOffset);
+        }
+        Map<KafkaConsumerOffset, Long> claimedEpochs = new IdentityHashMap<>();
+        try (Connection conn = dbp.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                for (Map.Entry<String, List<KafkaConsumerOffset>> entry : offsetsPerTopic.entrySet()) {
+                    Map<Integer, Long> epochs = selectEpochsForUpdate(conn, entry.getKey(), entry.getValue());
+                    List<KafkaConsumerOffset> existingOffsets = new ArrayList<>();
+                    List<KafkaConsumerOffset> newOffsets = new ArrayList<>();
+                    for (KafkaConsumerOffset kafkaConsumerOffset : entry.getValue()) {
+                        Long epoch = epochs.get(kafkaConsumerOffset.getPartition());
+                        if (epoch == null) {
+                            newOffsets.add(kafkaConsumerOffset);
+                            claimedEpochs.put(kafkaConsumerOffset, 1L);
+                        } else {
+                            existingOffsets.add(kafkaConsumerOffset);
+                            claimedEpochs.put(kafkaConsumerOffset, epoch + 1);
+                        }
+                    }
+                    if (!existingOffsets.isEmpty()) {
+                        updateOwnersOfTopic(conn, entry.getKey(), existingOffsets, true);
+                    }
+                    if (!newOffsets.isEmpty()) {
+                        insertClaimedOffsets(conn, newOffsets, now);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(false);
+            logger.error("mysql claim the owners error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+        for (Map.Entry<KafkaConsumerOffset, Long> entry : claimedEpochs.entrySet()) {
+            entry.getKey().setEpoch(entry.getValue());
+            entry.getKey().setFenced(false);
+        }
+        KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(true);
+        return true;
+    }
+
+    private Map<Integer, Long> selectEpochsForUpdate(Connection conn, String topic, List<KafkaConsumerOffset> topicOffsets) throws SQLException {
+        StringBuilder sql = new StringBuilder("select kafka_partition, epoch from ").append(KafkaMysqlOffsetParameter.tableName)
+                .append(" where kafka_cluster_name = ? and topic = ? and consumer_group = ? and kafka_partition in (");
+        for (int i = 0; i < topicOffsets.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(") for update;");
+        Map<Integer, Long> epochs = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            ps.setString(index++, KafkaMysqlOffsetParameter.kafkaClusterName);
+            ps.setString(index++, topic);
+            ps.setString(index++, KafkaMysqlOffsetParameter.consumerGroup);
+            for (KafkaConsumerOffset kafkaConsumerOffset : topicOffsets) {
+                ps.setInt(index++, kafkaConsumerOffset.getPartition());
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    epochs.put(rs.getInt("kafka_partition"), rs.getLong("epoch"));
+                }
+            }
+        }
+        return epochs;
+    }
+
+    // 另一个consumer同时插入时主键冲突，事务回滚，重试时这些行已经存在
+    private void insertClaimedOffsets(Connection conn, List<KafkaConsumerOffset> newOffsets, Date now) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(KafkaMysqlOffsetParameter.tableName)
+                .append(" (topic, kafka_partition, consumer_group, offset, last_flush_offset, kafka_cluster_name, owner, update_time, create_time, epoch) VALUES");
+        for (int i = 0; i < newOffsets.size(); i++) {
+            sql.append(i == 0 ? " " : ", ").append("(?,?,?,?,?,?,?,?,?,1)");
+        }
+        sql.append(";");
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (KafkaConsumerOffset kafkaConsumerOffset : newOffsets) {
+                kafkaConsumerOffset.setUpdate_time(now);
+                if (kafkaConsumerOffset.getCreate_time() == null)
+                    kafkaConsumerOffset.setCreate_time(now);
+                ps.setString(index++, kafkaConsumerOffset.getTopic());
+                ps.setInt(index++, kafkaConsumerOffset.getPartition());
+                ps.setString(index++, kafkaConsumerOffset.getConsumer_group());
+                ps.setLong(index++, kafkaConsumerOffset.getOffset());
+                ps.setLong(index++, kafkaConsumerOffset.getLast_flush_offset());
+                ps.setString(index++, kafkaConsumerOffset.getKafka_cluster_name());
+                ps.setString(index++, kafkaConsumerOffset.getOwner());
+                ps.setTimestamp(index++, new Timestamp(kafkaConsumerOffset.getUpdate_time().getTime()));
+                ps.setTimestamp(index++, new Timestamp(kafkaConsumerOffset.getCreate_time().getTime()));
+            }
+            ps.execute();
+        }
+    }
+
+    // 交出partition时清空owner。开启offset.fencing时只在epoch还是自己的时候清空，epoch不变，
+    // 不能像认领一样加1，否则会和新owner的认领互相覆盖
+    @Override
+    public Boolean releaseOwner(KafkaConsumerOffset kafkaConsumerOffset) {
+        if (!KafkaMysqlOffsetParameter.offsetFencing) {
+            return updateOwner(kafkaConsumerOffset);
+        }
+        if (kafkaConsumerOffset.isFenced()) {
+            logger.error("the partition is claimed by a newer owner, do not release it, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+            return false;
+        }
+        String sql = "UPDATE " + KafkaMysqlOffsetParameter.tableName
+                + " set owner = '', update_time = NOW()"
+                + " where kafka_cluster_name = ? and topic = ? and kafka_partition = ? and consumer_group = ? and epoch = ?;";
+        try (Connection conn = dbp.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, KafkaMysqlOffsetParameter.kafkaClusterName);
+            ps.setString(2, kafkaConsumerOffset.getTopic());
+            ps.setInt(3, kafkaConsumerOffset.getPartition());
+            ps.setString(4, KafkaMysqlOffsetParameter.consumerGroup);
+            ps.setLong(5, kafkaConsumerOffset.getEpoch());
+            if (ps.executeUpdate() == 0) {
+                logger.error("the release is rejected by mysql, the partition is claimed by a newer owner, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+                kafkaConsumerOffset.setFenced(true);
+                return false;
+            }
+            KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(true);
+            return true;
+        } catch (SQLException e) {
+            KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(false);
+            logger.error("mysql release the owner error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+    }
+
+    // 开启offset.fencing时只用于分配到partition时的认领，交出partition用releaseOwner
+    @Override
     public Boolean updateOwner(KafkaConsumerOffset kafkaConsumerOffset) {
         logger.debug("update the owner for kafkaConsumerOffset, kafkaConsumerOffset is "
                 + kafkaConsumerOffset.toString());
+        if (KafkaMysqlOffsetParameter.offsetFencing) {
+            return claimOwners(Collections.singletonList(kafkaConsumerOffset));
+        }
         Date now = new Date();
         Boolean flag = true;
         try (Connection conn = dbp.getConnection(); Statement statement = conn.createStatement()){
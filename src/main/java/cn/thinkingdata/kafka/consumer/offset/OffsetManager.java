@@ -5,6 +5,7 @@ import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
 import cn.thinkingdata.kafka.consumer.KafkaSubscribeConsumeThread;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
 import cn.thinkingdata.kafka.consumer.persist.DefaultStorePersist;
+import cn.thinkingdata.kafka.consumer.persist.DualStoreExecutor;
 import cn.thinkingdata.kafka.consumer.persist.StorePersist;
 import cn.thinkingdata.kafka.util.CommonUtils;
 import cn.thinkingdata.kafka.util.RetryerUtil;
@@ -15,16 +16,34 @@ import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 
 public abstract class OffsetManager {
 
     private static final Logger logger = LoggerFactory.getLogger(OffsetManager.class);
 
     private final Retryer<KafkaConsumerOffset> retryerWithResultNull = RetryerUtil.initRetryerByTimesWithIfResult(3, 300, Predicates.isNull());
+    @SuppressWarnings("unchecked")
+    private final Retryer<Map<Integer, KafkaConsumerOffset>> retryerWithResultNullMap = RetryerUtil.initRetryerByTimesWithIfResult(3, 300, Predicates.isNull());
 
     private StorePersist externalStorePersist = new DefaultStorePersist();
 
+    // 根据offset.store选择offset存储
+    public static OffsetManager getInstance() {
+        if (KafkaMysqlOffsetParameter.OFFSET_STORE_KAFKA.equals(KafkaMysqlOffsetParameter.offsetStore)) {
+            return KafkaOffsetManager.getInstance();
+        }
+        return MysqlOffsetManager.getInstance();
+    }
+
     public StorePersist getExternalStorePersist() {
         return externalStorePersist;
     }
@@ -33,19 +52,32 @@ public abstract class OffsetManager {
         this.externalStorePersist = externalStorePersist;
     }
 
-    public void saveOffsetInCache(KafkaSubscribeConsumeThread consumeThread, KafkaConsumerOffset kafkaConsumerOffset) {
+    public void saveOffsetInCache(KafkaSubscribeConsumeThread<?, ?> consumeThread, KafkaConsumerOffset kafkaConsumerOffset) {
         TopicPartition topicPartition = new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
+        saveOffsetInCache(consumeThread, topicPartition, kafkaConsumerOffset);
+    }
+
+    // consume线程每次poll都会调用，传入已有的topicPartition，不分配对象
+    public void saveOffsetInCache(KafkaSubscribeConsumeThread<?, ?> consumeThread, TopicPartition topicPartition, KafkaConsumerOffset kafkaConsumerOffset) {
         KafkaConsumerOffset kafkaConsumerOffsetOld = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
         // compare kafkaConsumerOffsetOld and kafkaConsumerOffset, avoid reset
-        if (kafkaConsumerOffsetOld != null && kafkaConsumerOffsetOld.getOffset() > kafkaConsumerOffset.getOffset()) {
+        if (kafkaConsumerOffsetOld != null && kafkaConsumerOffsetOld.getOffsetValue() > kafkaConsumerOffset.getOffsetValue()) {
             logger.info("kafka consumer offset reset, the old kafkaConsumerOffset is " + kafkaConsumerOffsetOld + ", the kafkaConsumerOffset is " + kafkaConsumerOffset);
-            synchronized (OffsetManager.class) {
+            // 只锁发生reset的partition
+            Lock lock = PartitionLocks.lock(topicPartition);
+            try {
                 externalStorePersist.executeWhenOffsetReset(consumeThread);
+            } finally {
+                lock.unlock();
             }
-        } else if (kafkaConsumerOffsetOld == null
-                || !kafkaConsumerOffset.getCount().equals(0L)) {
-            KafkaCache.kafkaConsumerOffsetMaps.put(topicPartition, kafkaConsumerOffset);
-            kafkaConsumerOffset.setCount(0L);
+        } else {
+            if (kafkaConsumerOffsetOld == null
+                    || kafkaConsumerOffset.getCountValue() != 0L) {
+                KafkaCache.kafkaConsumerOffsetMaps.put(topicPartition, kafkaConsumerOffset);
+                kafkaConsumerOffset.setCountValue(0L);
+            }
+            // 定时刷mysql时只看有变化的partition
+            KafkaCache.dirtyOffsetTracker.markDirty(topicPartition);
         }
     }
 
@@ -80,32 +112,110 @@ public abstract class OffsetManager {
         return kafkaConsumerOffset;
     }
 
-    public synchronized KafkaConsumerOffset readOffsetFromCache(String topic, Integer partition) {
-        TopicPartition topicPartition = new TopicPartition(topic, partition);
-        KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
-        if (kafkaConsumerOffset == null) {
-            kafkaConsumerOffset = readOffsetFromMysql(topic, partition);
+    public KafkaConsumerOffset readOffsetFromCache(String topic, Integer partition) {
+        KafkaConsumerOffset kafkaConsumerOffsetInCache = KafkaCache.kafkaConsumerOffsetMaps.get(new TopicPartition(topic, partition));
+        if (kafkaConsumerOffsetInCache != null) {
+            return kafkaConsumerOffsetInCache;
+        }
+        // 只锁这个partition，拿到锁之后再看一次缓存
+        Lock lock = PartitionLocks.lock(new TopicPartition(topic, partition));
+        try {
+            TopicPartition topicPartition = new TopicPartition(topic, partition);
+            KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
             if (kafkaConsumerOffset == null) {
-                logger.error("can not read offset from mysql! the topic is " + topic + ",the partition is " + partition);
-                kafkaConsumerOffset = externalStorePersist.executeWhenReadNullFromMysql(topic, partition);
+                // 从另一个备用存储读取的接口如果读取成功，默认是空，和mysql同时读取
+                CompletableFuture<KafkaConsumerOffset> backupRead = DualStoreExecutor.getInstance().submitToBackup(() -> readOffsetFromBackupExternalStore(topic, partition));
+                kafkaConsumerOffset = readOffsetFromMysql(topic, partition);
+                if (kafkaConsumerOffset == null) {
+                    logger.error("can not read offset from mysql! the topic is " + topic + ",the partition is " + partition);
+                    kafkaConsumerOffset = externalStorePersist.executeWhenReadNullFromMysql(topic, partition);
+                }
+                KafkaConsumerOffset kafkaConsumerOffsetFromBackupExternalStore = DualStoreExecutor.getInstance().awaitBackupRead(backupRead);
+                if (kafkaConsumerOffsetFromBackupExternalStore == null) {
+                    logger.error("can not read offset from backup external store! the topic is " + topic + ",the partition is " + partition);
+                    kafkaConsumerOffsetFromBackupExternalStore = externalStorePersist.executeWhenReadNullFromBackupExternalStore(topic, partition);
+                }
+                // 判断两个存储中的数值，然后确定用offset更大的那个
+                kafkaConsumerOffset = getKafkaConsumerOffsetFromMysqlAndBackupExternalStore(kafkaConsumerOffset, kafkaConsumerOffsetFromBackupExternalStore);
+                if (kafkaConsumerOffset != null) {
+                    KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(true);
+                    KafkaCache.kafkaConsumerOffsetMaps.put(topicPartition, kafkaConsumerOffset);
+                } else {
+                    KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(false);
+                    logger.error("the kafkaConsumerOffset read from external store is null , the topic is " + topic + ",the partition is " + partition);
+                }
             }
-            // 从另一个备用存储读取的接口如果读取成功，默认是空
-            KafkaConsumerOffset kafkaConsumerOffsetFromBackupExternalStore = readOffsetFromBackupExternalStore(topic, partition);
-            if (kafkaConsumerOffsetFromBackupExternalStore == null) {
-                logger.error("can not read offset from backup external store! the topic is " + topic + ",the partition is " + partition);
-                kafkaConsumerOffsetFromBackupExternalStore = externalStorePersist.executeWhenReadNullFromBackupExternalStore(topic, partition);
+            return kafkaConsumerOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 分配到partition时一次读取一个topic的所有partition，已经在缓存里的不再读取
+    public Map<Integer, KafkaConsumerOffset> readOffsetsFromCache(final String topic, Collection<Integer> partitions) {
+        List<Lock> locks = PartitionLocks.lockAll(partitions.stream().map(partition -> new TopicPartition(topic, partition)).collect(Collectors.toList()));
+        try {
+            Map<Integer, KafkaConsumerOffset> kafkaConsumerOffsets = new HashMap<>();
+            final List<Integer> missingPartitions = new ArrayList<>();
+            for (Integer partition : partitions) {
+                KafkaConsumerOffset kafkaConsumerOffset = KafkaCache.kafkaConsumerOffsetMaps.get(new TopicPartition(topic, partition));
+                if (kafkaConsumerOffset != null) {
+                    kafkaConsumerOffsets.put(partition, kafkaConsumerOffset);
+                } else {
+                    missingPartitions.add(partition);
+                }
             }
-            // 判断两个存储中的数值，然后确定用offset更大的那个
-            kafkaConsumerOffset = getKafkaConsumerOffsetFromMysqlAndBackupExternalStore(kafkaConsumerOffset, kafkaConsumerOffsetFromBackupExternalStore);
-            if (kafkaConsumerOffset != null) {
-                KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(true);
-                KafkaCache.kafkaConsumerOffsetMaps.put(topicPartition, kafkaConsumerOffset);
-            } else {
-                KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(false);
-                logger.error("the kafkaConsumerOffset read from external store is null , the topic is " + topic + ",the partition is " + partition);
+            if (missingPartitions.isEmpty()) {
+                return kafkaConsumerOffsets;
+            }
+            // 备用存储和mysql同时读取
+            CompletableFuture<Map<Integer, KafkaConsumerOffset>> backupRead = DualStoreExecutor.getInstance().submitToBackup(() -> {
+                try {
+                    return retryerWithResultNullMap
+                            .call(() -> externalStorePersist.readOffsetsFromBackupExternalStore(topic, missingPartitions));
+                } catch (ExecutionException | RetryException e) {
+                    logger.error("retry to read kafkaConsumerOffsets from backup external store error, the topic is " + topic + ", the partitions is " + missingPartitions + ", the error is " + CommonUtils.getStackTraceAsString(e));
+                    return null;
+                }
+            });
+            Map<Integer, KafkaConsumerOffset> kafkaConsumerOffsetsFromMysql = null;
+            try {
+                kafkaConsumerOffsetsFromMysql = retryerWithResultNullMap
+                        .call(() -> readOffsetsFromExternalStore(topic, missingPartitions));
+            } catch (ExecutionException | RetryException e) {
+                logger.error("retry to read kafkaConsumerOffsets from mysql error, the topic is " + topic + ", the partitions is " + missingPartitions + ", the error is " + CommonUtils.getStackTraceAsString(e));
             }
+            Map<Integer, KafkaConsumerOffset> kafkaConsumerOffsetsFromBackupExternalStore = DualStoreExecutor.getInstance().awaitBackup(backupRead, null);
+            for (Integer partition : missingPartitions) {
+                KafkaConsumerOffset kafkaConsumerOffset = kafkaConsumerOffsetsFromMysql == null ? null : kafkaConsumerOffsetsFromMysql.get(partition);
+                if (kafkaConsumerOffset == null) {
+                    logger.error("can not read offset from mysql! the topic is " + topic + ",the partition is " + partition);
+                    kafkaConsumerOffset = externalStorePersist.executeWhenReadNullFromMysql(topic, partition);
+                }
+                KafkaConsumerOffset kafkaConsumerOffsetFromBackupExternalStore = kafkaConsumerOffsetsFromBackupExternalStore == null ? null : kafkaConsumerOffsetsFromBackupExternalStore.get(partition);
+                if (kafkaConsumerOffsetFromBackupExternalStore == null && DualStoreExecutor.getInstance().isBackupAsync()) {
+                    // primary-async-backup时以mysql为准
+                    kafkaConsumerOffsetFromBackupExternalStore = new KafkaConsumerOffset();
+                }
+                if (kafkaConsumerOffsetFromBackupExternalStore == null) {
+                    logger.error("can not read offset from backup external store! the topic is " + topic + ",the partition is " + partition);
+                    kafkaConsumerOffsetFromBackupExternalStore = externalStorePersist.executeWhenReadNullFromBackupExternalStore(topic, partition);
+                }
+                // 判断两个存储中的数值，然后确定用offset更大的那个
+                kafkaConsumerOffset = getKafkaConsumerOffsetFromMysqlAndBackupExternalStore(kafkaConsumerOffset, kafkaConsumerOffsetFromBackupExternalStore);
+                if (kafkaConsumerOffset != null) {
+                    KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(true);
+                    KafkaCache.kafkaConsumerOffsetMaps.put(new TopicPartition(topic, partition), kafkaConsumerOffset);
+                    kafkaConsumerOffsets.put(partition, kafkaConsumerOffset);
+                } else {
+                    KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(false);
+                    logger.error("the kafkaConsumerOffset read from external store is null , the topic is " + topic + ",the partition is " + partition);
+                }
+            }
+            return kafkaConsumerOffsets;
+        } finally {
+            PartitionLocks.unlockAll(locks);
         }
-        return kafkaConsumerOffset;
     }
 
     public KafkaConsumerOffset getKafkaConsumerOffsetFromMysqlAndBackupExternalStore(
@@ -132,13 +242,75 @@ public abstract class OffsetManager {
             return kafkaConsumerOffset;
         }
         if (kafkaConsumerOffsetFromBackupExternalStore.getOffset() > kafkaConsumerOffset.getOffset()) {
+            // epoch只保存在主存储里
+            kafkaConsumerOffsetFromBackupExternalStore.setEpoch(kafkaConsumerOffset.getEpoch());
             kafkaConsumerOffset = kafkaConsumerOffsetFromBackupExternalStore;
         }
         return kafkaConsumerOffset;
     }
 
+    // 只保存有变化的offset
+    public Boolean saveOffsetInCacheToExternalStore(KafkaConsumerOffset kafkaConsumerOffset) {
+        Long lag = kafkaConsumerOffset.getOffset() - kafkaConsumerOffset.getLast_flush_offset();
+        if (!lag.equals(0L)) {
+            logger.debug("because of the muti-thread, the value is not exactly right, the lag is " + lag);
+            return saveOffsetInExternalStore(kafkaConsumerOffset);
+        }
+        return true;
+    }
+
+    // 只保存有变化的offset，返回保存失败的offset
+    public List<KafkaConsumerOffset> saveOffsetsInCacheToExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        List<KafkaConsumerOffset> changedOffsets = new ArrayList<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            if (!kafkaConsumerOffset.getOffset().equals(kafkaConsumerOffset.getLast_flush_offset())) {
+                changedOffsets.add(kafkaConsumerOffset);
+            }
+        }
+        if (changedOffsets.isEmpty()) {
+            return changedOffsets;
+        }
+        return saveOffsetsInExternalStore(changedOffsets);
+    }
+
     abstract Boolean saveOffsetInExternalStore(KafkaConsumerOffset kafkaConsumerOffset);
 
+    // 返回保存失败的offset
+    public abstract List<KafkaConsumerOffset> saveOffsetsInExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets);
+
+    // partition被收回时保存offset并清空owner，必须在返回前写入
+    public abstract Boolean revokeOffsetsInExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets);
+
+    public abstract Boolean updateOwners(List<KafkaConsumerOffset> kafkaConsumerOffsets);
+
+    public abstract Boolean updateOwner(KafkaConsumerOffset kafkaConsumerOffset);
+
+    // 交出partition时清空owner，默认和updateOwner一样
+    public Boolean releaseOwner(KafkaConsumerOffset kafkaConsumerOffset) {
+        return updateOwner(kafkaConsumerOffset);
+    }
+
+    public abstract Boolean externalStoreStateCheck();
+
+    public abstract void shutdown();
+
+    // 每次poll之后在consume线程里调用，需要在consume线程提交offset的存储用它
+    public void afterPoll(KafkaSubscribeConsumeThread<?, ?> consumeThread) {
+    }
+
     abstract KafkaConsumerOffset readOffsetFromExternalStore(String topic, int partition);
 
+    // 读取失败返回null，默认逐个partition读取
+    Map<Integer, KafkaConsumerOffset> readOffsetsFromExternalStore(String topic, Collection<Integer> partitions) {
+        Map<Integer, KafkaConsumerOffset> kafkaConsumerOffsets = new HashMap<>();
+        for (Integer partition : partitions) {
+            KafkaConsumerOffset kafkaConsumerOffset = readOffsetFromExternalStore(topic, partition);
+            if (kafkaConsumerOffset == null) {
+                return null;
+            }
+            kafkaConsumerOffsets.put(partition, kafkaConsumerOffset);
+        }
+        return kafkaConsumerOffsets;
+    }
+
 }
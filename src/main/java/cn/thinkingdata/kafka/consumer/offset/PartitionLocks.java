@@ -0,0 +1,55 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import com.google.common.util.concurrent.Striped;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 按partition分段的锁，代替OffsetManager和MysqlOffsetPersist上的全局锁，不同partition的读取、保存互不阻塞。
+ * 同时锁多个partition时必须用lockAll，按固定顺序加锁，避免死锁。
+ */
+public class PartitionLocks {
+
+    private static final int STRIPES = 1024;
+
+    private static final Striped<Lock> locks = Striped.lock(STRIPES);
+
+    public static Lock lock(TopicPartition topicPartition) {
+        Lock lock = locks.get(topicPartition);
+        lock.lock();
+        return lock;
+    }
+
+    public static Lock lock(KafkaConsumerOffset kafkaConsumerOffset) {
+        return lock(new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition()));
+    }
+
+    public static List<Lock> lockAll(Collection<TopicPartition> topicPartitions) {
+        List<Lock> acquired = new ArrayList<>();
+        for (Lock lock : locks.bulkGet(topicPartitions)) {
+            lock.lock();
+            acquired.add(lock);
+        }
+        return acquired;
+    }
+
+    public static List<Lock> lockAllOffsets(Collection<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        List<TopicPartition> topicPartitions = new ArrayList<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            topicPartitions.add(new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition()));
+        }
+        return lockAll(topicPartitions);
+    }
+
+    public static void unlockAll(List<Lock> acquired) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            acquired.get(i).unlock();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.util.List;
+
+/**
+ * 记录一个partition已经交给处理线程、但还没处理完的offset，处理可以乱序完成，
+ * watermark是连续处理完的offset之后的下一个offset，只有小于watermark的record都处理完了，才能保存watermark。
+ * dispatch必须按offset递增的顺序调用。
+ */
+public class ProcessedOffsetTracker {
+
+    private long[] offsets = new long[64];
+    private boolean[] completed = new boolean[64];
+    // 第一个没处理完的offset在数组里的位置
+    private int head = 0;
+    private int size = 0;
+    // -1表示还不知道从哪个offset开始
+    private long watermark;
+
+    public ProcessedOffsetTracker(long startOffset) {
+        this.watermark = startOffset;
+    }
+
+    public synchronized void dispatch(long offset) {
+        if (size == 0 && offset > watermark) {
+            // 前面没有未处理的record，中间跳过的offset（compact、事务标记、reset）都可以认为处理完了
+            watermark = offset;
+        }
+        if (size == offsets.length) {
+            grow();
+        }
+        int index = (head + size) & (offsets.length - 1);
+        offsets[index] = offset;
+        completed[index] = false;
+        size++;
+    }
+
+    public synchronized void complete(long offset) {
+        markCompleted(offset);
+        advance();
+    }
+
+    public synchronized void complete(List<? extends ConsumerRecord<?, ?>> consumerRecords) {
+        for (ConsumerRecord<?, ?> consumerRecord : consumerRecords) {
+            markCompleted(consumerRecord.offset());
+        }
+        advance();
+    }
+
+    private void markCompleted(long offset) {
+        int index = indexOf(offset);
+        if (index >= 0) {
+            completed[index] = true;
+        }
+    }
+
+    private void advance() {
+        int mask = offsets.length - 1;
+        while (size > 0 && completed[head]) {
+            watermark = offsets[head] + 1;
+            completed[head] = false;
+            head = (head + 1) & mask;
+            size--;
+        }
+        if (size > 0) {
+            watermark = offsets[head];
+        }
+    }
+
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    public synchronized int getPendingCount() {
+        return size;
+    }
+
+    // 没有未处理的record时，position之前的record都处理完了，position也是安全的
+    public synchronized long getSafeOffset(long position) {
+        if (size == 0 && position > watermark) {
+            return position;
+        }
+        return watermark;
+    }
+
+    // offsets在窗口里是递增的，顺序处理时第一个就是，否则二分查找
+    private int indexOf(long offset) {
+        int mask = offsets.length - 1;
+        if (size == 0) {
+            return -1;
+        }
+        if (offsets[head] == offset) {
+            return head;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midOffset = offsets[(head + mid) & mask];
+            if (midOffset < offset) {
+                low = mid + 1;
+            } else if (midOffset > offset) {
+                high = mid - 1;
+            } else {
+                return (head + mid) & mask;
+            }
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int mask = offsets.length - 1;
+        long[] newOffsets = new long[offsets.length << 1];
+        boolean[] newCompleted = new boolean[offsets.length << 1];
+        for (int i = 0; i < size; i++) {
+            newOffsets[i] = offsets[(head + i) & mask];
+            newCompleted[i] = completed[(head + i) & mask];
+        }
+        offsets = newOffsets;
+        completed = newCompleted;
+        head = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ProcessedOffsetTracker [watermark=" + watermark + ", pending=" + size + "]";
+    }
+}
@@ -61,7 +61,7 @@ public class DefaultStorePersist implements StorePersist {
     }
 
     @Override
-    public void executeWhenExecuteDataSessionTimeout(KafkaSubscribeConsumeThread kafkaSubscribeConsumeThread) {
+    public void executeWhenExecuteDataSessionTimeout(KafkaSubscribeConsumeThread<?, ?> kafkaSubscribeConsumeThread) {
         logger.info("session time out! the count is, the session time out is "
                 + KafkaMysqlOffsetParameter.sessionTimeout);
         throw new TaKafkaCommonException("executeWhenExecuteDataSessionTimeout, session time out! the count is, the session time out is "
@@ -69,7 +69,7 @@ public class DefaultStorePersist implements StorePersist {
     }
 
     @Override
-    public void executeWhenOffsetReset(KafkaSubscribeConsumeThread consumeThread) {
+    public void executeWhenOffsetReset(KafkaSubscribeConsumeThread<?, ?> consumeThread) {
         logger.info("offset reset!");
         throw new TaKafkaCommonException("executeWhenOffsetReset, kafka offset reset!");
     }
@@ -0,0 +1,206 @@
+package cn.thinkingdata.kafka.consumer.persist;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import cn.thinkingdata.kafka.util.CommonUtils;
+import cn.thinkingdata.kafka.util.ThreadFactoryUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 主存储和备用存储同时读写。主存储在调用线程里执行（kafka的offset只能在consume线程里提交），备用存储交给一个单独的线程，
+ * 所以备用存储的写入顺序不变。结果按照store.write.policy合并，备用存储最多等store.timeout.ms，超时算失败，没完成的继续在后台执行。
+ * 备用存储的队列最多store.backup.queue.size个，备用存储变慢时不等待结果的写入被跳过，而不是无限排队；
+ * 写入的是缓存里的offset对象，所以同一个partition之后的写入会带上最新的值。
+ */
+public class DualStoreExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DualStoreExecutor.class);
+
+    private static DualStoreExecutor instance;
+
+    public static synchronized DualStoreExecutor getInstance() {
+        if (instance == null) {
+            instance = new DualStoreExecutor();
+        }
+        return instance;
+    }
+
+    // 备用存储变慢时最多每隔这么久打印一次落后的情况
+    private static final long LAG_LOG_INTERVAL_MS = 10000L;
+
+    private final ThreadPoolExecutor backupExecutor;
+    // 队列满了被跳过的备用存储写入次数
+    private final AtomicLong skippedBackupWrites = new AtomicLong();
+    private final AtomicLong lastLagLogMs = new AtomicLong();
+
+    private DualStoreExecutor() {
+        ThreadFactory threadFactory = ThreadFactoryUtil.createPlatformThreadFactory("backup store thread");
+        backupExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(KafkaMysqlOffsetParameter.storeBackupQueueSize), runnable -> {
+            Thread thread = threadFactory.newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 队列满了或者关闭之后在调用线程里执行，用于需要等待结果的读写
+    public <T> CompletableFuture<T> submitToBackup(Supplier<T> backup) {
+        try {
+            return CompletableFuture.supplyAsync(backup, backupExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(backup.get());
+        }
+    }
+
+    // 队列满了时跳过这次写入，返回skippedValue，用于不一定等待结果的写入；关闭之后在调用线程里执行
+    private <T> CompletableFuture<T> submitBackupWrite(Supplier<T> backup, T skippedValue) {
+        if (backupExecutor.isShutdown()) {
+            return CompletableFuture.completedFuture(backup.get());
+        }
+        try {
+            return CompletableFuture.supplyAsync(backup, backupExecutor);
+        } catch (RejectedExecutionException e) {
+            long skipped = skippedBackupWrites.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long lastLogMs = lastLagLogMs.get();
+            if (now - lastLogMs >= LAG_LOG_INTERVAL_MS && lastLagLogMs.compareAndSet(lastLogMs, now)) {
+                logger.error("backup external store is lagging, skip the write, the queued writes is " + getBackupQueuedWrites()
+                        + ", the skipped writes is " + skipped);
+            }
+            return CompletableFuture.completedFuture(skippedValue);
+        }
+    }
+
+    // 排队等待写入备用存储的个数，表示备用存储落后了多少
+    public int getBackupQueuedWrites() {
+        return backupExecutor.getQueue().size();
+    }
+
+    public long getSkippedBackupWrites() {
+        return skippedBackupWrites.get();
+    }
+
+    // both要等待备用存储的结果，不能跳过
+    private <T> CompletableFuture<T> submitBackupWriteByPolicy(Supplier<T> backup, T skippedValue) {
+        if (KafkaMysqlOffsetParameter.STORE_WRITE_POLICY_BOTH.equals(KafkaMysqlOffsetParameter.storeWritePolicy)) {
+            return submitToBackup(backup);
+        }
+        return submitBackupWrite(backup, skippedValue);
+    }
+
+    // 备用存储超时或者出错时返回timeoutValue
+    public <T> T awaitBackup(CompletableFuture<T> backupFuture, T timeoutValue) {
+        try {
+            return backupFuture.get(KafkaMysqlOffsetParameter.storeTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.error("wait for backup external store timeout, the timeout is " + KafkaMysqlOffsetParameter.storeTimeoutMs + "ms");
+            return timeoutValue;
+        } catch (Exception e) {
+            logger.error("backup external store error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return timeoutValue;
+        }
+    }
+
+    // primary-async-backup时备用存储读不到也不影响，用空的offset代替，以主存储为准
+    public KafkaConsumerOffset awaitBackupRead(CompletableFuture<KafkaConsumerOffset> backupFuture) {
+        return awaitBackup(backupFuture, isBackupAsync() ? new KafkaConsumerOffset() : null);
+    }
+
+    public boolean isBackupAsync() {
+        return KafkaMysqlOffsetParameter.STORE_WRITE_POLICY_PRIMARY_ASYNC_BACKUP.equals(KafkaMysqlOffsetParameter.storeWritePolicy);
+    }
+
+    public Boolean write(Supplier<Boolean> primary, Supplier<Boolean> backup) {
+        // primary-async-backup只记录备用存储写入失败，跳过的写入已经单独记录，其他策略跳过算失败
+        CompletableFuture<Boolean> backupFuture = submitBackupWriteByPolicy(backup, isBackupAsync());
+        Boolean primaryFlag = primary.get();
+        switch (KafkaMysqlOffsetParameter.storeWritePolicy) {
+            case KafkaMysqlOffsetParameter.STORE_WRITE_POLICY_PRIMARY_ASYNC_BACKUP:
+                logBackupFailure(backupFuture.thenApply(flag -> !flag));
+                return primaryFlag;
+            case KafkaMysqlOffsetParameter.STORE_WRITE_POLICY_BOTH:
+                return awaitBackup(backupFuture, false) && primaryFlag;
+            default:
+                // 主存储成功就不再等备用存储
+                return primaryFlag || awaitBackup(backupFuture, false);
+        }
+    }
+
+    // 批量写入，primary和backup返回各自写入失败的offset，返回按照策略合并之后失败的offset
+    public List<KafkaConsumerOffset> writeAll(List<KafkaConsumerOffset> kafkaConsumerOffsets,
+                                              Supplier<List<KafkaConsumerOffset>> primary,
+                                              Supplier<List<KafkaConsumerOffset>> backup) {
+        CompletableFuture<List<KafkaConsumerOffset>> backupFuture = submitBackupWriteByPolicy(backup,
+                isBackupAsync() ? Collections.<KafkaConsumerOffset>emptyList() : kafkaConsumerOffsets);
+        List<KafkaConsumerOffset> primaryFailedOffsets = primary.get();
+        switch (KafkaMysqlOffsetParameter.storeWritePolicy) {
+            case KafkaMysqlOffsetParameter.STORE_WRITE_POLICY_PRIMARY_ASYNC_BACKUP:
+                logBackupFailure(backupFuture.thenApply(failedOffsets -> !failedOffsets.isEmpty()));
+                return primaryFailedOffsets;
+            case KafkaMysqlOffsetParameter.STORE_WRITE_POLICY_BOTH:
+                return merge(kafkaConsumerOffsets, primaryFailedOffsets, awaitBackup(backupFuture, kafkaConsumerOffsets), false);
+            default:
+                if (primaryFailedOffsets.isEmpty()) {
+                    return primaryFailedOffsets;
+                }
+                return merge(kafkaConsumerOffsets, primaryFailedOffsets, awaitBackup(backupFuture, kafkaConsumerOffsets), true);
+        }
+    }
+
+    // bothFailed为true时返回两边都失败的offset，否则返回任意一边失败的offset，保持原来的顺序
+    private List<KafkaConsumerOffset> merge(List<KafkaConsumerOffset> kafkaConsumerOffsets,
+                                            List<KafkaConsumerOffset> primaryFailedOffsets,
+                                            List<KafkaConsumerOffset> backupFailedOffsets, boolean bothFailed) {
+        Set<KafkaConsumerOffset> primaryFailedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        primaryFailedSet.addAll(primaryFailedOffsets);
+        Set<KafkaConsumerOffset> backupFailedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        backupFailedSet.addAll(backupFailedOffsets);
+        List<KafkaConsumerOffset> failedOffsets = new ArrayList<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            boolean primaryFailed = primaryFailedSet.contains(kafkaConsumerOffset);
+            boolean backupFailed = backupFailedSet.contains(kafkaConsumerOffset);
+            if (bothFailed ? primaryFailed && backupFailed : primaryFailed || backupFailed) {
+                failedOffsets.add(kafkaConsumerOffset);
+            }
+        }
+        return failedOffsets;
+    }
+
+    private void logBackupFailure(CompletableFuture<Boolean> backupFailed) {
+        backupFailed.whenComplete((failed, e) -> {
+            if (e != null) {
+                logger.error("async write to backup external store error, the error is " + CommonUtils.getStackTraceAsString(e));
+            } else if (failed) {
+                logger.error("async write to backup external store failed");
+            }
+        });
+    }
+
+    public void shutdown() {
+        backupExecutor.shutdown();
+        try {
+            if (!backupExecutor.awaitTermination(KafkaMysqlOffsetParameter.storeTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.error("backup store thread is not terminated in " + KafkaMysqlOffsetParameter.storeTimeoutMs + "ms");
+            }
+        } catch (InterruptedException e) {
+            logger.error("------- wait for backup store thread interrupted ---------------------" + e.toString());
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+package cn.thinkingdata.kafka.consumer.persist;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import cn.thinkingdata.kafka.util.CommonUtils;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 本地的备用存储：offset的每次更新追加到内存映射的日志文件，每条记录带crc32，第一次使用时读回每个partition最新的offset。
+ * 写入只是内存拷贝，进程崩溃后数据还在page cache里；partition被收回时force到磁盘。
+ * 文件写满时只保留每个partition最新的记录，写到新文件后替换旧文件，还放不下时文件大小翻倍。
+ * 一个文件对应一个kafka集群的一个consumer group，kafka.cluster.name和consumer.group在第一次使用时才读取。
+ */
+public class MmapOffsetLogStorePersist extends DefaultStorePersist {
+
+    private static final Logger logger = LoggerFactory.getLogger(MmapOffsetLogStorePersist.class);
+
+    private static final int DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+    // 记录头：payload长度和crc32，长度最后写入，长度为0表示后面没有记录
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private int fileSize;
+    private Path logFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final CRC32 crc32 = new CRC32();
+    // 每个partition最新的记录
+    private final Map<TopicPartition, KafkaConsumerOffset> latestOffsets = new ConcurrentHashMap<>();
+
+    public MmapOffsetLogStorePersist(String directory) {
+        this(directory, DEFAULT_FILE_SIZE);
+    }
+
+    public MmapOffsetLogStorePersist(String directory, int fileSize) {
+        this.directory = Paths.get(directory);
+        this.fileSize = fileSize;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        logFile = directory.resolve(KafkaMysqlOffsetParameter.kafkaClusterName + "-" + KafkaMysqlOffsetParameter.consumerGroup + ".offsets");
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileSize = (int) Math.max(fileSize, channel.size());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        load();
+        logger.info("open offset log " + logFile + ", the size is " + fileSize + ", the position is " + buffer.position()
+                + ", the partitions is " + latestOffsets.size());
+    }
+
+    // 读到长度为0、越界或者crc不对的记录就停下，后面的内容会被新的记录覆盖
+    private void load() {
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int position = buffer.position();
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            int checksum = buffer.getInt(position + 4);
+            byte[] payload = new byte[length];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(payload);
+            crc32.reset();
+            crc32.update(payload);
+            if ((int) crc32.getValue() != checksum) {
+                logger.warn("offset log checksum mismatch, the file is " + logFile + ", the position is " + position);
+                buffer.position(position);
+                break;
+            }
+            KafkaConsumerOffset kafkaConsumerOffset = decode(payload);
+            latestOffsets.put(new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition()), kafkaConsumerOffset);
+        }
+    }
+
+    private synchronized Boolean append(KafkaConsumerOffset kafkaConsumerOffset) {
+        try {
+            ensureOpen();
+            KafkaConsumerOffset snapshot = snapshot(kafkaConsumerOffset);
+            byte[] payload = encode(snapshot);
+            latestOffsets.put(new TopicPartition(snapshot.getTopic(), snapshot.getPartition()), snapshot);
+            if (buffer.remaining() < HEADER_SIZE * 2 + payload.length) {
+                // 新记录已经在latestOffsets里，compaction会把它写进去
+                compact();
+                return true;
+            }
+            write(buffer, payload);
+            return true;
+        } catch (IOException e) {
+            logger.error("append offset log error, the kafkaConsumerOffset is " + kafkaConsumerOffset + ", the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+    }
+
+    private void write(MappedByteBuffer target, byte[] payload) {
+        int position = target.position();
+        int end = position + HEADER_SIZE + payload.length;
+        // 先在后面写一个长度为0的记录头，损坏的记录被覆盖后，它后面更旧的记录不会在下次读取时被读回来
+        if (target.limit() - end >= HEADER_SIZE) {
+            target.putInt(end, 0);
+        }
+        crc32.reset();
+        crc32.update(payload);
+        target.putInt(position + 4, (int) crc32.getValue());
+        target.position(position + HEADER_SIZE);
+        target.put(payload);
+        // 最后写长度，写到一半崩溃时读到的长度是0
+        target.putInt(position, payload.length);
+    }
+
+    // 每个partition只保留最新的记录，写到新文件后替换旧文件
+    private void compact() throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        long required = 0L;
+        for (KafkaConsumerOffset kafkaConsumerOffset : latestOffsets.values()) {
+            byte[] payload = encode(kafkaConsumerOffset);
+            payloads.add(payload);
+            required += HEADER_SIZE + payload.length;
+        }
+        // 至少留一半空间，避免马上又要compaction
+        int newFileSize = fileSize;
+        while (required * 2 > newFileSize) {
+            newFileSize *= 2;
+        }
+        Path compactFile = directory.resolve(logFile.getFileName() + ".compact");
+        Files.deleteIfExists(compactFile);
+        int position;
+        try (FileChannel compactChannel = FileChannel.open(compactFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer compactBuffer = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, newFileSize);
+            for (byte[] payload : payloads) {
+                write(compactBuffer, payload);
+            }
+            compactBuffer.force();
+            position = compactBuffer.position();
+        }
+        channel.close();
+        Files.move(compactFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileSize = newFileSize;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        buffer.position(position);
+        logger.info("compact offset log " + logFile + ", the partitions is " + latestOffsets.size() + ", the size is " + fileSize);
+    }
+
+    private static KafkaConsumerOffset snapshot(KafkaConsumerOffset kafkaConsumerOffset) {
+        KafkaConsumerOffset snapshot = new KafkaConsumerOffset();
+        snapshot.setTopic(kafkaConsumerOffset.getTopic());
+        snapshot.setPartition(kafkaConsumerOffset.getPartition());
+        snapshot.setOffset(kafkaConsumerOffset.getOffset());
+        snapshot.setOwner(kafkaConsumerOffset.getOwner());
+        snapshot.setUpdate_time(kafkaConsumerOffset.getUpdate_time() == null ? new Date() : kafkaConsumerOffset.getUpdate_time());
+        return snapshot;
+    }
+
+    private static byte[] encode(KafkaConsumerOffset kafkaConsumerOffset) {
+        byte[] topic = kafkaConsumerOffset.getTopic().getBytes(StandardCharsets.UTF_8);
+        byte[] owner = kafkaConsumerOffset.getOwner() == null ? null : kafkaConsumerOffset.getOwner().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + topic.length + 4 + 8 + 8 + 2 + (owner == null ? 0 : owner.length));
+        payload.putShort((short) topic.length);
+        payload.put(topic);
+        payload.putInt(kafkaConsumerOffset.getPartition());
+        payload.putLong(kafkaConsumerOffset.getOffsetValue());
+        payload.putLong(kafkaConsumerOffset.getUpdate_time().getTime());
+        payload.putShort((short) (owner == null ? -1 : owner.length));
+        if (owner != null) {
+            payload.put(owner);
+        }
+        return payload.array();
+    }
+
+    private static KafkaConsumerOffset decode(byte[] bytes) {
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        byte[] topic = new byte[payload.getShort()];
+        payload.get(topic);
+        KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+        kafkaConsumerOffset.setTopic(new String(topic, StandardCharsets.UTF_8));
+        kafkaConsumerOffset.setPartition(payload.getInt());
+        kafkaConsumerOffset.setOffset(payload.getLong());
+        kafkaConsumerOffset.setUpdate_time(new Date(payload.getLong()));
+        short ownerLength = payload.getShort();
+        if (ownerLength >= 0) {
+            byte[] owner = new byte[ownerLength];
+            payload.get(owner);
+            kafkaConsumerOffset.setOwner(new String(owner, StandardCharsets.UTF_8));
+        }
+        return kafkaConsumerOffset;
+    }
+
+    // 没有记录时返回空的KafkaConsumerOffset，和DefaultStorePersist一样使用mysql里的offset
+    @Override
+    public synchronized KafkaConsumerOffset readOffsetFromBackupExternalStore(String topic, int partition) {
+        try {
+            ensureOpen();
+        } catch (IOException e) {
+            logger.error("open offset log error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return null;
+        }
+        KafkaConsumerOffset latest = latestOffsets.get(new TopicPartition(topic, partition));
+        KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+        if (latest == null) {
+            return kafkaConsumerOffset;
+        }
+        kafkaConsumerOffset.setTopic(topic);
+        kafkaConsumerOffset.setPartition(partition);
+        kafkaConsumerOffset.setConsumer_group(KafkaMysqlOffsetParameter.consumerGroup);
+        kafkaConsumerOffset.setKafka_cluster_name(KafkaMysqlOffsetParameter.kafkaClusterName);
+        kafkaConsumerOffset.setOffset(latest.getOffset());
+        kafkaConsumerOffset.setLast_flush_offset(latest.getOffset());
+        kafkaConsumerOffset.setCount(0L);
+        kafkaConsumerOffset.setOwner(latest.getOwner());
+        kafkaConsumerOffset.setUpdate_time(latest.getUpdate_time());
+        kafkaConsumerOffset.setCreate_time(latest.getUpdate_time());
+        return kafkaConsumerOffset;
+    }
+
+    @Override
+    public Boolean saveOffsetInBackupExternalStore(KafkaConsumerOffset kafkaConsumerOffset) {
+        return append(kafkaConsumerOffset);
+    }
+
+    // owner和当前的offset写成一条记录
+    @Override
+    public Boolean updateOwner(KafkaConsumerOffset kafkaConsumerOffset) {
+        return append(kafkaConsumerOffset);
+    }
+
+    // owner已经清空，写一条记录就够了，写完force到磁盘
+    @Override
+    public synchronized Boolean revokeOffsetsInBackupExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            if (!append(kafkaConsumerOffset)) {
+                return false;
+            }
+        }
+        if (buffer != null) {
+            buffer.force();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Boolean backupStoreStateCheck() {
+        try {
+            ensureOpen();
+            return true;
+        } catch (IOException e) {
+            logger.error("open offset log error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+    }
+
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            logger.error("close offset log error, the error is " + CommonUtils.getStackTraceAsString(e));
+        }
+        channel = null;
+        buffer = null;
+    }
+
+}
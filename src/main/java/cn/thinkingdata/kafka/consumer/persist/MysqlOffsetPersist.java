@@ -3,7 +3,9 @@ package cn.thinkingdata.kafka.consumer.persist;
 import cn.thinkingdata.kafka.cache.KafkaCache;
 import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
-import cn.thinkingdata.kafka.consumer.offset.MysqlOffsetManager;
+import cn.thinkingdata.kafka.consumer.offset.DirtyOffsetTracker;
+import cn.thinkingdata.kafka.consumer.offset.OffsetManager;
+import cn.thinkingdata.kafka.consumer.offset.PartitionLocks;
 import cn.thinkingdata.kafka.util.CommonUtils;
 import cn.thinkingdata.kafka.util.RetryerUtil;
 import com.github.rholder.retry.RetryException;
@@ -13,8 +15,22 @@ import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class MysqlOffsetPersist extends Thread implements OffsetPersist {
 
@@ -23,8 +39,11 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
     private static MysqlOffsetPersist instance;
     public static volatile Boolean destoryFlag = false;
     public static volatile Boolean runFlag = false;
+    // 每一轮persist都持有这个锁，consume线程关闭时拿到锁说明正在进行的persist已经结束，不用轮询runFlag
+    private static final ReentrantLock runLock = new ReentrantLock();
+    private static final Condition consumerClosed = runLock.newCondition();
 
-    private final StorePersist externalStorePersist = MysqlOffsetManager.getInstance().getExternalStorePersist();
+    private final StorePersist externalStorePersist = OffsetManager.getInstance().getExternalStorePersist();
 
     // public static Boolean mysqlOffsetPersistFlag = false;
 
@@ -37,16 +56,39 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
 
     private final Retryer<Boolean> retryerWithResultFails = RetryerUtil.initRetryerByTimesWithIfResult(3, 300, Predicates.equalTo(false));
 
+    // 配置了offset.commit.window.ms时不为空
+    private volatile OffsetWriteBehind offsetWriteBehind;
+
     private MysqlOffsetPersist() {
     }
 
-    // persist和flush互斥
+    @Override
+    public synchronized void start() {
+        if (KafkaMysqlOffsetParameter.offsetCommitWindowMs != null
+                && KafkaMysqlOffsetParameter.OFFSET_STORE_KAFKA.equals(KafkaMysqlOffsetParameter.offsetStore)) {
+            // 提交到kafka只能在consume线程里进行，rebalance时不能交给写入线程
+            logger.warn("offset.commit.window.ms is ignored when offset.store is kafka");
+        } else if (KafkaMysqlOffsetParameter.offsetCommitWindowMs != null) {
+            offsetWriteBehind = new OffsetWriteBehind(KafkaMysqlOffsetParameter.offsetCommitWindowMs);
+            offsetWriteBehind.start();
+        }
+        super.start();
+    }
+
+    // 同一个partition的persist、flush互斥，不同partition互不阻塞
     @Override
     public void persist(KafkaConsumerOffset kafkaConsumerOffset) {
-        Boolean saveOffsetFlag = saveOffset(kafkaConsumerOffset);
-        if (!saveOffsetFlag) {
-            logger.error("can not persist in both mysql or backup store");
-            externalStorePersist.executeWhenSaveOffsetFailInMysqlAndExternalStore(kafkaConsumerOffset);
+        Lock lock = PartitionLocks.lock(kafkaConsumerOffset);
+        try {
+            Boolean saveOffsetFlag = saveOffset(kafkaConsumerOffset);
+            if (kafkaConsumerOffset.isFenced()) {
+                logger.error("the partition is claimed by a newer owner, stop persisting it, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+            } else if (!saveOffsetFlag) {
+                logger.error("can not persist in both mysql or backup store");
+                externalStorePersist.executeWhenSaveOffsetFailInMysqlAndExternalStore(kafkaConsumerOffset);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -54,7 +96,11 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
     public void shutdown() {
         // 关闭定时线程
         logger.info("------- Shutting mysql offset thread Down ---------------------");
-        MysqlOffsetManager.getInstance().shutdown();
+        if (offsetWriteBehind != null) {
+            offsetWriteBehind.shutdown();
+        }
+        DualStoreExecutor.getInstance().shutdown();
+        OffsetManager.getInstance().shutdown();
     }
 
     public void mysqlAndBackupStoreStateCheckJob() {
@@ -88,7 +134,7 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
     public Boolean mysqlStateCheckWithRetry() {
         Boolean flag = false;
         try {
-            flag = retryerWithResultFails.call(() -> MysqlOffsetManager.getInstance().mysqlStateCheck());
+            flag = retryerWithResultFails.call(() -> OffsetManager.getInstance().externalStoreStateCheck());
         } catch (ExecutionException | RetryException e) {
             logger.error("retry mysqlStateCheck error, the error is " + CommonUtils.getStackTraceAsString(e));
             flag = false;
@@ -110,15 +156,20 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
     @Override
     public void run() {
         while (!destoryFlag) {
-            if (!KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.get()) {
-                runFlag = true;
-                mysqlAndBackupStoreStateCheckJob();
-                // 如果通，并且没有进行rebalance，则定时刷数据进mysql
-                if (KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.get()) {
-                    persisit();
+            runLock.lock();
+            try {
+                if (!KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.get()) {
+                    runFlag = true;
+                    mysqlAndBackupStoreStateCheckJob();
+                    // 如果通，并且没有进行rebalance，则定时刷数据进mysql
+                    if (KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.get()) {
+                        persisit();
+                    }
                 }
+                runFlag = false;
+            } finally {
+                runLock.unlock();
             }
-            runFlag = false;
             try {
                 Thread.sleep(new Long(KafkaMysqlOffsetParameter.flushInterval) * 100);
             } catch (InterruptedException e) {
@@ -129,44 +180,265 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
         logger.info("mysql persist stop, runFlag is " + runFlag);
     }
 
-    private synchronized void persisit() {
+    // 设置kafkaSubscribeConsumerClosed之后调用，唤醒等待persist结束的consume线程
+    public static void signalConsumerClosed() {
+        runLock.lock();
+        try {
+            consumerClosed.signalAll();
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    // 等到kafkaSubscribeConsumerClosed被设置，并且正在进行的persist结束，之后persist线程不会再开始新的一轮
+    public static void awaitPersistStopped() throws InterruptedException {
+        runLock.lock();
+        try {
+            while (!KafkaMysqlOffsetParameter.kafkaSubscribeConsumerClosed.get()) {
+                consumerClosed.await();
+            }
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    // 只看offset有变化的partition：超过flushOffsetSize的马上保存，没超过的放进时间轮，到了flushInterval再保存。
+    // 每次保存之后partition放进时间轮，在update_time + flushInterval到期，没有变化也保存一次，和原来一样刷新update_time，证明owner还活着
+    private void persisit() {
         Date now = new Date();
-        for (KafkaConsumerOffset kafkaConsumerOffsetInCache : KafkaCache.kafkaConsumerOffsetMaps.values()) {
+        long tickMs = new Long(KafkaMysqlOffsetParameter.flushInterval) * 100;
+        long flushIntervalMs = new Long(KafkaMysqlOffsetParameter.flushInterval) * 1000;
+        DirtyOffsetTracker dirtyOffsetTracker = KafkaCache.dirtyOffsetTracker;
+        Set<KafkaConsumerOffset> dirtyOffsets = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (TopicPartition topicPartition : dirtyOffsetTracker.drainDirty()) {
+            KafkaConsumerOffset kafkaConsumerOffsetInCache = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            // 被新的owner认领的partition不再写入
+            if (kafkaConsumerOffsetInCache == null || kafkaConsumerOffsetInCache.isFenced()) {
+                continue;
+            }
             // 根据同步offset的size，同步offset的时间
             Long lag = kafkaConsumerOffsetInCache.getOffset() - kafkaConsumerOffsetInCache.getLast_flush_offset();
             Long updateInterval = now.getTime() - kafkaConsumerOffsetInCache.getUpdate_time().getTime();
-            if (lag >= KafkaMysqlOffsetParameter.flushOffsetSize
-                    || updateInterval >= new Long(KafkaMysqlOffsetParameter.flushInterval) * 1000) {
-                persist(kafkaConsumerOffsetInCache);
+            if (lag >= KafkaMysqlOffsetParameter.flushOffsetSize || (lag > 0 && updateInterval >= flushIntervalMs)) {
+                dirtyOffsets.add(kafkaConsumerOffsetInCache);
+            } else {
+                // 没超过flushOffsetSize的变化，和刚分配到、还没有保存过的partition
+                dirtyOffsetTracker.schedule(topicPartition, (kafkaConsumerOffsetInCache.getUpdate_time().getTime() + flushIntervalMs) / tickMs);
+            }
+        }
+        for (TopicPartition topicPartition : dirtyOffsetTracker.advance(now.getTime() / tickMs)) {
+            KafkaConsumerOffset kafkaConsumerOffsetInCache = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            // 已经收回或者被新的owner认领的partition不再放回时间轮
+            if (kafkaConsumerOffsetInCache == null || kafkaConsumerOffsetInCache.isFenced()) {
+                continue;
+            }
+            long updateTime = kafkaConsumerOffsetInCache.getUpdate_time().getTime();
+            if (!kafkaConsumerOffsetInCache.getOffset().equals(kafkaConsumerOffsetInCache.getLast_flush_offset())
+                    || now.getTime() - updateTime >= flushIntervalMs) {
+                dirtyOffsets.add(kafkaConsumerOffsetInCache);
+            } else {
+                // 期间被flush、revoke保存过，按新的update_time重新放进时间轮
+                dirtyOffsetTracker.schedule(topicPartition, (updateTime + flushIntervalMs) / tickMs);
+            }
+        }
+        if (dirtyOffsets.isEmpty()) {
+            return;
+        }
+        // 这次保存会把update_time设成现在，下一次心跳在flushInterval之后
+        for (KafkaConsumerOffset kafkaConsumerOffset : dirtyOffsets) {
+            dirtyOffsetTracker.schedule(new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition()),
+                    (now.getTime() + flushIntervalMs) / tickMs);
+        }
+        OffsetWriteBehind writer = offsetWriteBehind;
+        if (writer != null) {
+            // 交给写入线程，和这个窗口里的其他更新一起写
+            for (KafkaConsumerOffset kafkaConsumerOffset : dirtyOffsets) {
+                writer.save(kafkaConsumerOffset);
             }
+            return;
         }
+        saveDirtyOffsets(dirtyOffsets);
     }
 
-    public Boolean saveOffset(final KafkaConsumerOffset kafkaConsumerOffset) {
-        Boolean flagMysqlStore = false;
+    // 一个周期里所有要同步的offset一起保存，而不是每个partition一次；返回保存失败的offset。
+    // 只在partition的锁里取快照和写回结果，写mysql和备用存储（包括重试）时不持有锁，flush、revoke和consume线程不用等IO
+    List<KafkaConsumerOffset> saveDirtyOffsets(Collection<KafkaConsumerOffset> dirtyOffsets) {
+        Map<KafkaConsumerOffset, KafkaConsumerOffset> snapshots = takeSnapshots(dirtyOffsets, false);
+        Set<KafkaConsumerOffset> failedSnapshots = Collections.newSetFromMap(new IdentityHashMap<>());
+        failedSnapshots.addAll(saveOffsets(new ArrayList<>(snapshots.values())));
+        List<KafkaConsumerOffset> failedOffsets = new ArrayList<>();
+        List<Lock> locks = PartitionLocks.lockAllOffsets(snapshots.keySet());
+        try {
+            for (Map.Entry<KafkaConsumerOffset, KafkaConsumerOffset> entry : snapshots.entrySet()) {
+                if (applySnapshot(entry.getKey(), entry.getValue(), !failedSnapshots.contains(entry.getValue()))
+                        && failedSnapshots.contains(entry.getValue())) {
+                    failedOffsets.add(entry.getKey());
+                }
+            }
+        } finally {
+            PartitionLocks.unlockAll(locks);
+        }
+        for (KafkaConsumerOffset failedOffset : failedOffsets) {
+            if (failedOffset.isFenced()) {
+                logger.error("the partition is claimed by a newer owner, stop persisting it, the kafkaConsumerOffset is " + failedOffset);
+                continue;
+            }
+            logger.error("can not persist in both mysql or backup store, the kafkaConsumerOffset is " + failedOffset);
+            // 下一个周期再试
+            KafkaCache.dirtyOffsetTracker.markDirty(new TopicPartition(failedOffset.getTopic(), failedOffset.getPartition()));
+            externalStorePersist.executeWhenSaveOffsetFailInMysqlAndExternalStore(failedOffset);
+        }
+        return failedOffsets;
+    }
+
+    // 在partition的锁里更新update_time（revoke时还清空owner），再复制offset、last_flush_offset和epoch，写入只用复制出来的快照
+    private Map<KafkaConsumerOffset, KafkaConsumerOffset> takeSnapshots(Collection<KafkaConsumerOffset> kafkaConsumerOffsets, boolean cleanOwner) {
+        Map<KafkaConsumerOffset, KafkaConsumerOffset> snapshots = new IdentityHashMap<>();
+        List<Lock> locks = PartitionLocks.lockAllOffsets(kafkaConsumerOffsets);
+        try {
+            Date now = new Date();
+            for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+                kafkaConsumerOffset.setUpdate_time(now);
+                if (kafkaConsumerOffset.getCreate_time() == null)
+                    kafkaConsumerOffset.setCreate_time(now);
+                if (cleanOwner) {
+                    kafkaConsumerOffset.setOwner("");
+                }
+                snapshots.put(kafkaConsumerOffset, snapshotOf(kafkaConsumerOffset));
+            }
+        } finally {
+            PartitionLocks.unlockAll(locks);
+        }
+        return snapshots;
+    }
+
+    private static KafkaConsumerOffset snapshotOf(KafkaConsumerOffset kafkaConsumerOffset) {
+        KafkaConsumerOffset snapshot = new KafkaConsumerOffset();
+        snapshot.setOid(kafkaConsumerOffset.getOid());
+        snapshot.setTopic(kafkaConsumerOffset.getTopic());
+        snapshot.setPartition(kafkaConsumerOffset.getPartition());
+        snapshot.setConsumer_group(kafkaConsumerOffset.getConsumer_group());
+        snapshot.setKafka_cluster_name(kafkaConsumerOffset.getKafka_cluster_name());
+        snapshot.setOffset(kafkaConsumerOffset.getOffset());
+        snapshot.setLast_flush_offset(kafkaConsumerOffset.getLast_flush_offset());
+        snapshot.setCount(kafkaConsumerOffset.getCount());
+        snapshot.setEpoch(kafkaConsumerOffset.getEpoch());
+        snapshot.setFenced(kafkaConsumerOffset.isFenced());
+        snapshot.setOwner(kafkaConsumerOffset.getOwner());
+        snapshot.setUpdate_time(kafkaConsumerOffset.getUpdate_time());
+        snapshot.setCreate_time(kafkaConsumerOffset.getCreate_time());
+        return snapshot;
+    }
+
+    // 在partition的锁里把写入结果写回缓存里的offset。写入期间partition被重新认领（epoch变了）时不用这次的结果，返回false；
+    // last_flush_offset只前进，期间其他写入保存了更新的offset时不回退
+    private static boolean applySnapshot(KafkaConsumerOffset kafkaConsumerOffset, KafkaConsumerOffset snapshot, boolean saved) {
+        if (kafkaConsumerOffset.getEpoch().longValue() != snapshot.getEpoch().longValue()) {
+            logger.info("the partition is claimed again during the write, ignore the result, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+            return false;
+        }
+        if (snapshot.isFenced()) {
+            kafkaConsumerOffset.setFenced(true);
+            return true;
+        }
+        if (saved && snapshot.getOffsetValue() > kafkaConsumerOffset.getLast_flush_offset()) {
+            kafkaConsumerOffset.setLast_flush_offset(snapshot.getOffset());
+            kafkaConsumerOffset.setCount(0L);
+        }
+        return true;
+    }
+
+    // 批量保存到mysql和备用存储，每个存储只重试失败的offset，返回两个存储都保存失败的offset
+    public List<KafkaConsumerOffset> saveOffsets(final List<KafkaConsumerOffset> kafkaConsumerOffsets) {
         Date now = new Date();
-        // 更新的Update_time
-        kafkaConsumerOffset.setUpdate_time(now);
-        if (kafkaConsumerOffset.getCreate_time() == null)
-            kafkaConsumerOffset.setCreate_time(now);
         // 得到Last_flush_offset防止consumeThread线程修改数据
-        Long last_flush_offset = kafkaConsumerOffset.getOffset();
+        Map<KafkaConsumerOffset, Long> lastFlushOffsets = new IdentityHashMap<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            // 更新的Update_time
+            kafkaConsumerOffset.setUpdate_time(now);
+            if (kafkaConsumerOffset.getCreate_time() == null)
+                kafkaConsumerOffset.setCreate_time(now);
+            lastFlushOffsets.put(kafkaConsumerOffset, kafkaConsumerOffset.getOffset());
+        }
+        // mysql和备用存储同时写，按照store.write.policy合并失败的offset
+        List<KafkaConsumerOffset> failedOffsets = DualStoreExecutor.getInstance().writeAll(kafkaConsumerOffsets,
+                () -> retryToSaveAll("mysql", kafkaConsumerOffsets, OffsetManager.getInstance()::saveOffsetsInCacheToExternalStore),
+                // 写一个存到备用存储的接口，默认是空
+                () -> retryToSaveAll("backup external store", kafkaConsumerOffsets, OffsetManager.getInstance().getExternalStorePersist()::saveOffsetsInBackupExternalStore));
+        Set<KafkaConsumerOffset> failedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        failedSet.addAll(failedOffsets);
+        boolean storeFailed = false;
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            if (kafkaConsumerOffset.isFenced()) {
+                // 被epoch拒绝的offset不管备用存储有没有写入都算失败
+                if (failedSet.add(kafkaConsumerOffset)) {
+                    failedOffsets.add(kafkaConsumerOffset);
+                }
+            } else if (failedSet.contains(kafkaConsumerOffset)) {
+                storeFailed = true;
+            } else {
+                kafkaConsumerOffset.setLast_flush_offset(lastFlushOffsets.get(kafkaConsumerOffset));
+                kafkaConsumerOffset.setCount(0L);
+            }
+        }
+        // 被拒绝不是存储出了问题
+        KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(!storeFailed);
+        return failedOffsets;
+    }
+
+    // 每次只重试上一次失败的offset，被epoch拒绝的不重试，返回重试之后还失败的offset
+    private List<KafkaConsumerOffset> retryToSaveAll(String store, List<KafkaConsumerOffset> kafkaConsumerOffsets,
+                                                     Function<List<KafkaConsumerOffset>, List<KafkaConsumerOffset>> save) {
+        final AtomicReference<List<KafkaConsumerOffset>> failedOffsets = new AtomicReference<>(kafkaConsumerOffsets);
+        final List<KafkaConsumerOffset> fencedOffsets = new ArrayList<>();
         try {
-            flagMysqlStore = retryerWithResultFails.call(() -> MysqlOffsetManager.getInstance().saveOffsetInCacheToMysql(kafkaConsumerOffset));
+            retryerWithResultFails.call(() -> {
+                List<KafkaConsumerOffset> retryOffsets = new ArrayList<>();
+                for (KafkaConsumerOffset failedOffset : save.apply(failedOffsets.get())) {
+                    if (failedOffset.isFenced()) {
+                        fencedOffsets.add(failedOffset);
+                    } else {
+                        retryOffsets.add(failedOffset);
+                    }
+                }
+                failedOffsets.set(retryOffsets);
+                return retryOffsets.isEmpty();
+            });
         } catch (ExecutionException | RetryException e) {
-            logger.error("retry to save kafkaConsumerOffset to mysql and backup external store error, the error is " + CommonUtils.getStackTraceAsString(e));
-            flagMysqlStore = false;
+            logger.error("retry to save kafkaConsumerOffsets to " + store + " error, the failed size is " + failedOffsets.get().size() + ", the error is " + CommonUtils.getStackTraceAsString(e));
+        }
+        if (fencedOffsets.isEmpty()) {
+            return failedOffsets.get();
         }
+        fencedOffsets.addAll(failedOffsets.get());
+        return fencedOffsets;
+    }
 
-        Boolean flagBackupStore = false;
+    private Boolean retryToWrite(String action, Callable<Boolean> write) {
         try {
-            // 写一个存到备用存储的接口，默认是空
-            flagBackupStore = retryerWithResultFails.call(() -> MysqlOffsetManager.getInstance().getExternalStorePersist().saveOffsetInBackupExternalStore(kafkaConsumerOffset));
+            return retryerWithResultFails.call(write);
         } catch (ExecutionException | RetryException e) {
-            logger.error("retry to save kafkaConsumerOffset to mysql and backup external store error, the error is " + CommonUtils.getStackTraceAsString(e));
-            flagBackupStore = false;
+            logger.error("retry to " + action + " error, the error is " + CommonUtils.getStackTraceAsString(e));
+            return false;
+        }
+    }
+
+    public Boolean saveOffset(final KafkaConsumerOffset kafkaConsumerOffset) {
+        Date now = new Date();
+        // 更新的Update_time
+        kafkaConsumerOffset.setUpdate_time(now);
+        if (kafkaConsumerOffset.getCreate_time() == null)
+            kafkaConsumerOffset.setCreate_time(now);
+        // 得到Last_flush_offset防止consumeThread线程修改数据
+        Long last_flush_offset = kafkaConsumerOffset.getOffset();
+        Boolean saveOffsetFlag = DualStoreExecutor.getInstance().write(
+                () -> retryToWrite("save kafkaConsumerOffset to mysql", () -> OffsetManager.getInstance().saveOffsetInCacheToExternalStore(kafkaConsumerOffset)),
+                // 写一个存到备用存储的接口，默认是空
+                () -> retryToWrite("save kafkaConsumerOffset to backup external store", () -> OffsetManager.getInstance().getExternalStorePersist().saveOffsetInBackupExternalStore(kafkaConsumerOffset)));
+        if (kafkaConsumerOffset.isFenced()) {
+            // 被epoch拒绝，不管备用存储有没有写入都算失败
+            return false;
         }
-        Boolean saveOffsetFlag = flagMysqlStore || flagBackupStore;
         if (saveOffsetFlag) {
             kafkaConsumerOffset.setLast_flush_offset(last_flush_offset);
             kafkaConsumerOffset.setCount(0L);
@@ -178,35 +450,124 @@ public class MysqlOffsetPersist extends Thread implements OffsetPersist {
     }
 
     @Override
-    public synchronized Boolean flush(KafkaConsumerOffset kafkaConsumerOffset) {
-        logger.info("------- flush offset in cache to mysql ---------------------");
-        Boolean saveOffsetFlag = saveOffset(kafkaConsumerOffset);
-        if (!saveOffsetFlag) {
-            logger.error("can not flush in mysql or backup store");
-            externalStorePersist.executeWhenSaveOffsetFailInMysqlAndExternalStore(kafkaConsumerOffset);
-        }
-        TopicPartition topicPartition = new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
-        KafkaConsumerOffset kafkaConsumerOffsetInMap = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
-        if (kafkaConsumerOffsetInMap != null && kafkaConsumerOffsetInMap.equals(kafkaConsumerOffset)) {
-            KafkaCache.kafkaConsumerOffsetMaps.remove(topicPartition);
-        }
-        kafkaConsumerOffset.setOwner("");
-        updateOwner(kafkaConsumerOffset);
-        return saveOffsetFlag;
+    public Boolean flush(KafkaConsumerOffset kafkaConsumerOffset) {
+        if (offsetWriteBehind != null) {
+            // 等待包含它的那次写入完成，不能先拿partition的锁
+            return revokeAsync(Collections.singletonList(kafkaConsumerOffset)).join();
+        }
+        Lock lock = PartitionLocks.lock(kafkaConsumerOffset);
+        try {
+            logger.info("------- flush offset in cache to mysql ---------------------");
+            Boolean saveOffsetFlag = saveOffset(kafkaConsumerOffset);
+            if (kafkaConsumerOffset.isFenced()) {
+                logger.error("the partition is claimed by a newer owner, can not flush it, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+            } else if (!saveOffsetFlag) {
+                logger.error("can not flush in mysql or backup store");
+                externalStorePersist.executeWhenSaveOffsetFailInMysqlAndExternalStore(kafkaConsumerOffset);
+            }
+            TopicPartition topicPartition = new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
+            KafkaConsumerOffset kafkaConsumerOffsetInMap = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+            if (kafkaConsumerOffsetInMap != null && kafkaConsumerOffsetInMap.equals(kafkaConsumerOffset)) {
+                KafkaCache.kafkaConsumerOffsetMaps.remove(topicPartition);
+            }
+            if (kafkaConsumerOffset.isFenced()) {
+                return false;
+            }
+            kafkaConsumerOffset.setOwner("");
+            return releaseOwner(kafkaConsumerOffset) && saveOffsetFlag;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    // 没有配置offset.commit.window.ms时同步写入，返回已经完成的future
+    public CompletableFuture<Boolean> revokeAsync(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        OffsetWriteBehind writer = offsetWriteBehind;
+        if (writer == null) {
+            return CompletableFuture.completedFuture(revoke(kafkaConsumerOffsets));
+        }
+        return writer.flush(kafkaConsumerOffsets);
     }
 
-    public synchronized Boolean updateOwner(final KafkaConsumerOffset kafkaConsumerOffset) {
+    // partition被收回时一次保存所有partition的offset并清空owner，代替逐个partition的flush。
+    // 和saveDirtyOffsets一样只在取快照和写回结果时持有partition的锁
+    public Boolean revoke(final List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        logger.info("------- flush revoked offsets in cache to mysql, the size is " + kafkaConsumerOffsets.size() + " ---------------------");
+        Map<KafkaConsumerOffset, KafkaConsumerOffset> snapshots = takeSnapshots(kafkaConsumerOffsets, true);
+        final List<KafkaConsumerOffset> snapshotList = new ArrayList<>(snapshots.values());
+        Boolean saveOffsetFlag = DualStoreExecutor.getInstance().write(
+                () -> retryToWrite("revoke kafkaConsumerOffsets in mysql", () -> OffsetManager.getInstance().revokeOffsetsInExternalStore(snapshotList)),
+                () -> retryToWrite("revoke kafkaConsumerOffsets in backup external store", () -> OffsetManager.getInstance().getExternalStorePersist().revokeOffsetsInBackupExternalStore(snapshotList)));
+        boolean fenced = false;
+        for (KafkaConsumerOffset snapshot : snapshotList) {
+            fenced = fenced || snapshot.isFenced();
+        }
+        // 被epoch拒绝不是存储出了问题
+        KafkaMysqlOffsetParameter.mysqlAndBackupStoreConnState.set(saveOffsetFlag || fenced);
+        List<KafkaConsumerOffset> failedOffsets = new ArrayList<>();
+        List<Lock> locks = PartitionLocks.lockAllOffsets(kafkaConsumerOffsets);
         try {
-            Boolean flagMysqlStore = false;
-            flagMysqlStore = retryerWithResultFails.call(() -> MysqlOffsetManager.getInstance().updateOwner(kafkaConsumerOffset));
-            Boolean flagBackupStore = false;
-            flagBackupStore = retryerWithResultFails.call(() -> MysqlOffsetManager.getInstance().getExternalStorePersist().updateOwner(kafkaConsumerOffset));
-            Boolean flag = flagMysqlStore || flagBackupStore;
-            return flag;
-        } catch (ExecutionException | RetryException e) {
-            logger.error("retry to updateOwner from mysql error, the error is " + CommonUtils.getStackTraceAsString(e));
-            return false;
+            for (Map.Entry<KafkaConsumerOffset, KafkaConsumerOffset> entry : snapshots.entrySet()) {
+                KafkaConsumerOffset kafkaConsumerOffset = entry.getKey();
+                if (!applySnapshot(kafkaConsumerOffset, entry.getValue(), saveOffsetFlag)) {
+                    // 已经被重新认领，缓存里的offset属于新的owner
+                    continue;
+                }
+                if (kafkaConsumerOffset.isFenced()) {
+                    // 已经被新的owner认领，offset以新的owner为准
+                    logger.error("the partition is claimed by a newer owner, can not flush it, the kafkaConsumerOffset is " + kafkaConsumerOffset);
+                } else if (!saveOffsetFlag) {
+                    failedOffsets.add(kafkaConsumerOffset);
+                }
+                TopicPartition topicPartition = new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
+                KafkaConsumerOffset kafkaConsumerOffsetInMap = KafkaCache.kafkaConsumerOffsetMaps.get(topicPartition);
+                if (kafkaConsumerOffsetInMap != null && kafkaConsumerOffsetInMap.equals(kafkaConsumerOffset)) {
+                    KafkaCache.kafkaConsumerOffsetMaps.remove(topicPartition);
+                }
+            }
+        } finally {
+            PartitionLocks.unlockAll(locks);
+        }
+        for (KafkaConsumerOffset failedOffset : failedOffsets) {
+            logger.error("can not flush in mysql or backup store, the kafkaConsumerOffset is " + failedOffset);
+            externalStorePersist.executeWhenSaveOffsetFailInMysqlAndExternalStore(failedOffset);
+        }
+        return saveOffsetFlag && !fenced;
+    }
+
+    // 分配到partition时一次更新所有partition的owner
+    public Boolean updateOwners(final List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        List<Lock> locks = PartitionLocks.lockAllOffsets(kafkaConsumerOffsets);
+        try {
+            return DualStoreExecutor.getInstance().write(
+                    () -> retryToWrite("updateOwners in mysql", () -> OffsetManager.getInstance().updateOwners(kafkaConsumerOffsets)),
+                    () -> retryToWrite("updateOwners in backup external store", () -> OffsetManager.getInstance().getExternalStorePersist().updateOwners(kafkaConsumerOffsets)));
+        } finally {
+            PartitionLocks.unlockAll(locks);
+        }
+    }
+
+    public Boolean updateOwner(final KafkaConsumerOffset kafkaConsumerOffset) {
+        Lock lock = PartitionLocks.lock(kafkaConsumerOffset);
+        try {
+            return DualStoreExecutor.getInstance().write(
+                    () -> retryToWrite("updateOwner in mysql", () -> OffsetManager.getInstance().updateOwner(kafkaConsumerOffset)),
+                    () -> retryToWrite("updateOwner in backup external store", () -> OffsetManager.getInstance().getExternalStorePersist().updateOwner(kafkaConsumerOffset)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 交出partition时清空owner，和updateOwner不同，开启offset.fencing时不会认领partition
+    public Boolean releaseOwner(final KafkaConsumerOffset kafkaConsumerOffset) {
+        Lock lock = PartitionLocks.lock(kafkaConsumerOffset);
+        try {
+            Boolean releaseFlag = DualStoreExecutor.getInstance().write(
+                    () -> kafkaConsumerOffset.isFenced() ? false : retryToWrite("releaseOwner in mysql", () -> OffsetManager.getInstance().releaseOwner(kafkaConsumerOffset)),
+                    () -> retryToWrite("releaseOwner in backup external store", () -> OffsetManager.getInstance().getExternalStorePersist().updateOwner(kafkaConsumerOffset)));
+            return releaseFlag && !kafkaConsumerOffset.isFenced();
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,173 @@
+package cn.thinkingdata.kafka.consumer.persist;
+
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import cn.thinkingdata.kafka.util.CommonUtils;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 异步写offset。同一个partition在一个窗口里的多次更新只保留最后一次，每个窗口把所有partition一起写一次，offset最多落后一个窗口。
+ * flush的offset（rebalance、关闭）会马上触发一次写入，每次flush有自己的future，由取走它的offset的那次写入完成。
+ */
+public class OffsetWriteBehind extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffsetWriteBehind.class);
+
+    private final long commitWindowMs;
+    // 定时保存的offset，只写有变化的
+    private final Map<TopicPartition, KafkaConsumerOffset> pendingSaves = new ConcurrentHashMap<>();
+    // flush的offset，不管有没有变化都写入，并且清空owner。和flushFutures一样只在commitLock里读写
+    private final Map<TopicPartition, KafkaConsumerOffset> pendingFlushes = new HashMap<>();
+    // 还没有完成的flush，和它们的offset在同一次写入里完成
+    private final List<CompletableFuture<Boolean>> flushFutures = new ArrayList<>();
+    // 写入线程和关闭之后调用方自己的写入互斥，flush放入offset时也要拿到它
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition commitRequested = lock.newCondition();
+    private boolean commitNow = false;
+    private volatile boolean closed = false;
+    // 定时保存和flush实际的写入，默认是MysqlOffsetPersist的saveDirtyOffsets和revoke
+    private final Consumer<List<KafkaConsumerOffset>> saveAction;
+    private final Predicate<List<KafkaConsumerOffset>> flushAction;
+
+    public OffsetWriteBehind(long commitWindowMs) {
+        this(commitWindowMs,
+                kafkaConsumerOffsets -> MysqlOffsetPersist.getInstance().saveDirtyOffsets(kafkaConsumerOffsets),
+                kafkaConsumerOffsets -> MysqlOffsetPersist.getInstance().revoke(kafkaConsumerOffsets));
+    }
+
+    OffsetWriteBehind(long commitWindowMs, Consumer<List<KafkaConsumerOffset>> saveAction, Predicate<List<KafkaConsumerOffset>> flushAction) {
+        super("offset write behind");
+        setDaemon(true);
+        this.commitWindowMs = commitWindowMs;
+        this.saveAction = saveAction;
+        this.flushAction = flushAction;
+    }
+
+    public void save(KafkaConsumerOffset kafkaConsumerOffset) {
+        pendingSaves.put(topicPartitionOf(kafkaConsumerOffset), kafkaConsumerOffset);
+    }
+
+    // 所有offset都写入成功时future的结果为true。
+    // offset和future在commitLock里一起登记，取走这些offset的写入一定也会完成这个future
+    public CompletableFuture<Boolean> flush(Collection<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        CompletableFuture<Boolean> flushFuture = new CompletableFuture<>();
+        commitLock.lock();
+        try {
+            for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+                pendingFlushes.put(topicPartitionOf(kafkaConsumerOffset), kafkaConsumerOffset);
+            }
+            flushFutures.add(flushFuture);
+        } finally {
+            commitLock.unlock();
+        }
+        if (closed) {
+            commit();
+        } else {
+            requestCommit();
+        }
+        return flushFuture;
+    }
+
+    private void requestCommit() {
+        lock.lock();
+        try {
+            commitNow = true;
+            commitRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (!commitNow) {
+                    commitRequested.await(commitWindowMs, TimeUnit.MILLISECONDS);
+                }
+                commitNow = false;
+            } catch (InterruptedException e) {
+                logger.error("------- offset write behind thread is interrupted ---------------------" + e.toString());
+            } finally {
+                lock.unlock();
+            }
+            commit();
+        }
+        logger.info("offset write behind stop");
+    }
+
+    private void commit() {
+        commitLock.lock();
+        try {
+            // 同一个partition flush了多次时只写最后一次的offset，所有这些flush都按这次写入的结果完成
+            List<KafkaConsumerOffset> flushes = new ArrayList<>(pendingFlushes.values());
+            pendingFlushes.clear();
+            List<CompletableFuture<Boolean>> completing = new ArrayList<>(flushFutures);
+            flushFutures.clear();
+            for (KafkaConsumerOffset kafkaConsumerOffset : flushes) {
+                // flush会写入最新的offset，不用再保存一次
+                pendingSaves.remove(topicPartitionOf(kafkaConsumerOffset));
+            }
+            List<KafkaConsumerOffset> saves = drain(pendingSaves);
+            boolean flushed = false;
+            try {
+                if (!saves.isEmpty()) {
+                    saveAction.accept(saves);
+                }
+                flushed = flushes.isEmpty() || flushAction.test(flushes);
+            } catch (Exception e) {
+                logger.error("offset write behind commit error, the error is " + CommonUtils.getStackTraceAsString(e));
+            }
+            // revoke在一个事务里写入，失败时这次所有的flush都算失败
+            for (CompletableFuture<Boolean> flushFuture : completing) {
+                flushFuture.complete(flushed);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // 被替换掉的offset留到下一次写入
+    private List<KafkaConsumerOffset> drain(Map<TopicPartition, KafkaConsumerOffset> pending) {
+        List<KafkaConsumerOffset> drained = new ArrayList<>();
+        for (Map.Entry<TopicPartition, KafkaConsumerOffset> entry : pending.entrySet()) {
+            if (pending.remove(entry.getKey(), entry.getValue())) {
+                drained.add(entry.getValue());
+            }
+        }
+        return drained;
+    }
+
+    // 停止写入线程，并把剩下的offset写完
+    public void shutdown() {
+        closed = true;
+        requestCommit();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            logger.error("------- wait for offset write behind thread interrupted ---------------------" + e.toString());
+        }
+        commit();
+    }
+
+    private static TopicPartition topicPartitionOf(KafkaConsumerOffset kafkaConsumerOffset) {
+        return new TopicPartition(kafkaConsumerOffset.getTopic(), kafkaConsumerOffset.getPartition());
+    }
+
+}
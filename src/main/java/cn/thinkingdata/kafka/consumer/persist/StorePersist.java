@@ -3,6 +3,12 @@ package cn.thinkingdata.kafka.consumer.persist;
 import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
 import cn.thinkingdata.kafka.consumer.exception.ExceptionHandler;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public interface StorePersist extends ExceptionHandler {
 
     // 从另一个备用存储读取的接口如果读取成功，则把它删除，默认是空
@@ -11,8 +17,53 @@ public interface StorePersist extends ExceptionHandler {
     // 写一个存到备用存储的接口，默认是空
     Boolean saveOffsetInBackupExternalStore(KafkaConsumerOffset kafkaConsumerOffset);
 
+    // 批量存到备用存储，返回保存失败的offset，默认逐条调用saveOffsetInBackupExternalStore
+    default List<KafkaConsumerOffset> saveOffsetsInBackupExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        List<KafkaConsumerOffset> failedOffsets = new ArrayList<>();
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            Boolean flag;
+            try {
+                flag = saveOffsetInBackupExternalStore(kafkaConsumerOffset);
+            } catch (Exception e) {
+                flag = false;
+            }
+            if (!Boolean.TRUE.equals(flag)) {
+                failedOffsets.add(kafkaConsumerOffset);
+            }
+        }
+        return failedOffsets;
+    }
+
     Boolean backupStoreStateCheck();
 
     Boolean updateOwner(KafkaConsumerOffset kafkaConsumerOffset);
 
+    // 批量读取一个topic的多个partition，默认逐个调用readOffsetFromBackupExternalStore，读取失败的partition不放进结果
+    default Map<Integer, KafkaConsumerOffset> readOffsetsFromBackupExternalStore(String topic, Collection<Integer> partitions) {
+        Map<Integer, KafkaConsumerOffset> kafkaConsumerOffsets = new HashMap<>();
+        for (Integer partition : partitions) {
+            KafkaConsumerOffset kafkaConsumerOffset = readOffsetFromBackupExternalStore(topic, partition);
+            if (kafkaConsumerOffset != null) {
+                kafkaConsumerOffsets.put(partition, kafkaConsumerOffset);
+            }
+        }
+        return kafkaConsumerOffsets;
+    }
+
+    // partition被收回时保存offset并清空owner，默认先批量保存offset再批量更新owner
+    default Boolean revokeOffsetsInBackupExternalStore(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        return saveOffsetsInBackupExternalStore(kafkaConsumerOffsets).isEmpty() && updateOwners(kafkaConsumerOffsets);
+    }
+
+    // 批量更新owner，默认逐条调用updateOwner
+    default Boolean updateOwners(List<KafkaConsumerOffset> kafkaConsumerOffsets) {
+        Boolean flag = true;
+        for (KafkaConsumerOffset kafkaConsumerOffset : kafkaConsumerOffsets) {
+            if (!Boolean.TRUE.equals(updateOwner(kafkaConsumerOffset))) {
+                flag = false;
+            }
+        }
+        return flag;
+    }
+
 }
@@ -0,0 +1,12 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+/**
+ * 一直空转，延迟最低，但是会占满一个核
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public void idle(int idleCount) {
+    }
+
+}
@@ -0,0 +1,74 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 限制已经交给processor、还没处理完的record数。没有在处理的record时，一批超过上限也允许放行。
+ * 用ReentrantLock而不是synchronized，处理线程是虚拟线程时等待不会占住载体线程
+ */
+public class InFlightLimiter {
+
+    private final int maxRecords;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int inFlightRecords = 0;
+
+    public InFlightLimiter(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    public void acquire(int records) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlightRecords > 0 && inFlightRecords + records > maxRecords) {
+                changed.await();
+            }
+            inFlightRecords += records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(int records) {
+        lock.lock();
+        try {
+            inFlightRecords -= records;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 等待所有在处理的record完成，超时返回false
+    public Boolean awaitEmpty(long timeoutMs) throws InterruptedException {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lockInterruptibly();
+        try {
+            while (inFlightRecords > 0) {
+                if (remainingNanos <= 0L) {
+                    return false;
+                }
+                remainingNanos = changed.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlightRecords() {
+        lock.lock();
+        try {
+            return inFlightRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InFlightLimiter [maxRecords=" + maxRecords + ", inFlightRecords=" + getInFlightRecords() + "]";
+    }
+}
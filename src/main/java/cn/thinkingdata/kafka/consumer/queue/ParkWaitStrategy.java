@@ -0,0 +1,37 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 先空转、再yield，之后按指数退避park，最长park maxParkNanos
+ */
+public class ParkWaitStrategy implements WaitStrategy {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    private static final long MIN_PARK_NANOS = 1000L;
+
+    private final long maxParkNanos;
+
+    public ParkWaitStrategy() {
+        this(1000000L);
+    }
+
+    public ParkWaitStrategy(long maxParkNanos) {
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    @Override
+    public void idle(int idleCount) {
+        if (idleCount < SPIN_TRIES) {
+            return;
+        }
+        if (idleCount < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+            return;
+        }
+        int shift = Math.min(idleCount - SPIN_TRIES - YIELD_TRIES, 20);
+        LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << shift, maxParkNanos));
+    }
+
+}
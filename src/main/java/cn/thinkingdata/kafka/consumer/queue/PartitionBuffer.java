@@ -0,0 +1,204 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import cn.thinkingdata.kafka.cache.KafkaCache;
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.offset.ProcessedOffsetTracker;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 每个partition的缓冲额度。poll到的record先进pending，再交给processDataWorker；
+ * bufferedRecords和bufferedBytes包括pending、队列里和正在处理的record，处理完才释放。
+ * 每次分配到partition都会新建一个PartitionBuffer，processedOffsetTracker记录这次分配之后处理完的offset。
+ */
+public class PartitionBuffer<K, V> {
+
+    private final TopicPartition topicPartition;
+    // 已经拉到、还没有放进processDataWorker队列的record，只有consume线程读写
+    private final Deque<ConsumerRecord<K, V>> pending = new ArrayDeque<>();
+    private final AtomicInteger bufferedRecords = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final ProcessedOffsetTracker processedOffsetTracker;
+    private final InFlightLimiter inFlightLimiter = new InFlightLimiter(KafkaMysqlOffsetParameter.asyncPartitionInFlightRecords);
+    // 只有consume线程读写
+    private boolean paused = false;
+    // partition被收回、还不知道会不会分配回来时设置，processDataWorker先留着属于它的record，不处理也不推进watermark
+    private volatile boolean suspended = false;
+    // partition确定移走之后设置，processDataWorker跳过队列里属于它的record，不用从队列里逐个找出来删除
+    private volatile boolean revoked = false;
+    // 有一批record处理失败之后设置，watermark停在失败的record之前，之后的record不再处理，partition一直暂停到重新分配
+    private volatile boolean failed = false;
+    // consume线程关闭时等待交出去的record处理完，只有在等待时release才通知，平时不用拿锁
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Condition drained = drainLock.newCondition();
+    private volatile boolean awaitingDrain = false;
+
+    public PartitionBuffer(TopicPartition topicPartition) {
+        this(topicPartition, -1L);
+    }
+
+    public PartitionBuffer(TopicPartition topicPartition, long startOffset) {
+        this.topicPartition = topicPartition;
+        this.processedOffsetTracker = new ProcessedOffsetTracker(startOffset);
+    }
+
+    public static long sizeOf(ConsumerRecord<?, ?> consumerRecord) {
+        return Math.max(consumerRecord.serializedKeySize(), 0) + Math.max(consumerRecord.serializedValueSize(), 0);
+    }
+
+    // 返回record的字节数
+    public long add(ConsumerRecord<K, V> consumerRecord) {
+        long size = sizeOf(consumerRecord);
+        processedOffsetTracker.dispatch(consumerRecord.offset());
+        pending.add(consumerRecord);
+        bufferedRecords.incrementAndGet();
+        bufferedBytes.addAndGet(size);
+        KafkaCache.bufferedBytes.addAndGet(size);
+        return size;
+    }
+
+    // processDataWorker处理完之后调用，推进watermark并归还额度
+    public void complete(List<ConsumerRecord<K, V>> consumerRecords) {
+        processedOffsetTracker.complete(consumerRecords);
+        release(consumerRecords);
+    }
+
+    // 丢弃还在pending里的record，它们没有处理，也不会被算进watermark
+    public void clearPending() {
+        release(pending);
+        pending.clear();
+    }
+
+    // partition被收回时由consume线程调用，等分配结果出来再resume或者revoke
+    public void suspend() {
+        suspended = true;
+    }
+
+    // partition分配回来时由consume线程调用，processDataWorker接着处理留下的record
+    public void resume() {
+        suspended = false;
+    }
+
+    // partition确定移走时由consume线程调用，pending直接丢弃，已经在processDataWorker队列里的record取出来时再跳过。
+    // 先设置revoked再清除suspended，processDataWorker看到不再suspended时一定能看到revoked
+    public void revoke() {
+        revoked = true;
+        suspended = false;
+        KafkaCache.skippedRevokedRecords.addAndGet(pending.size());
+        clearPending();
+    }
+
+    // processDataWorker取到已经收回的partition的record时调用，只归还额度，不推进watermark
+    public void skip(List<ConsumerRecord<K, V>> consumerRecords) {
+        KafkaCache.skippedRevokedRecords.addAndGet(consumerRecords.size());
+        release(consumerRecords);
+    }
+
+    // 处理失败时由processDataWorker调用，只归还额度，不推进watermark，保存的offset不会越过这些record
+    public void fail(List<ConsumerRecord<K, V>> consumerRecords) {
+        failed = true;
+        release(consumerRecords);
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    public boolean isRevoked() {
+        return revoked;
+    }
+
+    // 等待已经交给processDataWorker的record都处理完或者跳过，pending里的不算，到deadline返回false。只由consume线程调用
+    public boolean awaitDispatchedRecords(long deadlineNanos) throws InterruptedException {
+        drainLock.lockInterruptibly();
+        try {
+            // 先设置awaitingDrain再检查，release先减计数再检查awaitingDrain，两边至少有一边能看到对方
+            awaitingDrain = true;
+            while (bufferedRecords.get() - pending.size() > 0) {
+                long remainingNanos = deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0L) {
+                    return false;
+                }
+                drained.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            awaitingDrain = false;
+            drainLock.unlock();
+        }
+    }
+
+    private void release(Collection<ConsumerRecord<K, V>> consumerRecords) {
+        long bytes = 0L;
+        for (ConsumerRecord<K, V> consumerRecord : consumerRecords) {
+            bytes += sizeOf(consumerRecord);
+        }
+        bufferedRecords.addAndGet(-consumerRecords.size());
+        bufferedBytes.addAndGet(-bytes);
+        KafkaCache.bufferedBytes.addAndGet(-bytes);
+        if (awaitingDrain) {
+            drainLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+    }
+
+    public Boolean isOverBudget(int maxRecords) {
+        return bufferedRecords.get() >= maxRecords;
+    }
+
+    public Deque<ConsumerRecord<K, V>> getPending() {
+        return pending;
+    }
+
+    public InFlightLimiter getInFlightLimiter() {
+        return inFlightLimiter;
+    }
+
+    public ProcessedOffsetTracker getProcessedOffsetTracker() {
+        return processedOffsetTracker;
+    }
+
+    public TopicPartition getTopicPartition() {
+        return topicPartition;
+    }
+
+    public int getBufferedRecords() {
+        return bufferedRecords.get();
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionBuffer [topicPartition=" + topicPartition + ", pending=" + pending.size()
+                + ", bufferedRecords=" + bufferedRecords + ", bufferedBytes=" + bufferedBytes
+                + ", paused=" + paused + ", suspended=" + suspended + ", revoked=" + revoked + ", failed=" + failed + ", processedOffsetTracker=" + processedOffsetTracker + "]";
+    }
+}
@@ -0,0 +1,133 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者的环形队列，数组预先分配，放入和取出都不加锁、不分配节点。
+ * 只能有一个线程调用offer，一个线程调用poll/drainTo，size和isEmpty可以在任意线程调用。
+ */
+public class SpscRingBuffer<E> {
+
+    private final Object[] buffer;
+    private final int capacity;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    // 消费者下一个要读的位置
+    private final AtomicLong head = new AtomicLong();
+    // 生产者下一个要写的位置
+    private final AtomicLong tail = new AtomicLong();
+    // 生产者缓存的head，消费者缓存的tail，减少对另一方计数器的读取
+    private long producerCachedHead;
+    private long consumerCachedTail;
+
+    public SpscRingBuffer(int requestedCapacity, WaitStrategy waitStrategy) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, the capacity is " + requestedCapacity);
+        }
+        int capacity = 1;
+        while (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.buffer = new Object[capacity];
+        this.waitStrategy = waitStrategy;
+    }
+
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long currentTail = tail.get();
+        if (currentTail - producerCachedHead >= capacity) {
+            producerCachedHead = head.get();
+            if (currentTail - producerCachedHead >= capacity) {
+                return false;
+            }
+        }
+        buffer[(int) currentTail & mask] = e;
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idleCount = 0;
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            waitStrategy.idle(idleCount++);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long currentHead = head.get();
+        if (currentHead >= consumerCachedTail) {
+            consumerCachedTail = tail.get();
+            if (currentHead >= consumerCachedTail) {
+                return null;
+            }
+        }
+        int index = (int) currentHead & mask;
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(currentHead + 1);
+        return e;
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idleCount = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            waitStrategy.idle(idleCount++);
+        }
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        long currentHead = head.get();
+        consumerCachedTail = tail.get();
+        int count = (int) Math.min(consumerCachedTail - currentHead, maxElements);
+        for (int i = 0; i < count; i++) {
+            int index = (int) (currentHead + i) & mask;
+            c.add((E) buffer[index]);
+            buffer[index] = null;
+        }
+        if (count > 0) {
+            head.lazySet(currentHead + count);
+        }
+        return Math.max(count, 0);
+    }
+
+    public int size() {
+        // 先读head再读tail，保证结果不会是负数
+        long currentHead = head.get();
+        long currentTail = tail.get();
+        return (int) (currentTail - currentHead);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,23 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import cn.thinkingdata.kafka.consumer.exception.TaKafkaCommonException;
+
+public class WaitStrategies {
+
+    public static final String BUSY_SPIN = "busy-spin";
+    public static final String YIELD = "yield";
+    public static final String PARK = "park";
+
+    public static WaitStrategy create(String name) {
+        if (BUSY_SPIN.equals(name)) {
+            return new BusySpinWaitStrategy();
+        } else if (YIELD.equals(name)) {
+            return new YieldWaitStrategy();
+        } else if (PARK.equals(name)) {
+            return new ParkWaitStrategy();
+        }
+        throw new TaKafkaCommonException("unknown wait strategy " + name + ", it should be one of "
+                + BUSY_SPIN + ", " + YIELD + ", " + PARK);
+    }
+
+}
@@ -0,0 +1,8 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+public interface WaitStrategy {
+
+    // idleCount是连续空转的次数，拿到数据或者放入成功之后从0重新计数
+    void idle(int idleCount);
+
+}
@@ -0,0 +1,17 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+/**
+ * 空转一段时间后让出cpu
+ */
+public class YieldWaitStrategy implements WaitStrategy {
+
+    private static final int SPIN_TRIES = 100;
+
+    @Override
+    public void idle(int idleCount) {
+        if (idleCount >= SPIN_TRIES) {
+            Thread.yield();
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package cn.thinkingdata.kafka.consumer.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 保存kafka里的原始字节，第一次调用toString时才按UTF-8解码，只转发字节的processor不需要解码。
+ * equals和hashCode按字节内容比较，可以作为record的key按key分配processDataWorker
+ */
+public final class LazyString {
+
+    private final byte[] bytes;
+    private String decoded;
+
+    public LazyString(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    // 返回的是原始数组，不要修改
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public int byteLength() {
+        return bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        // 多个线程同时解码时结果一样，不需要加锁
+        String result = decoded;
+        if (result == null) {
+            result = new String(bytes, StandardCharsets.UTF_8);
+            decoded = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return Arrays.equals(bytes, ((LazyString) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+}
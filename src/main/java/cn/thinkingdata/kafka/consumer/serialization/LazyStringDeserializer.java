@@ -0,0 +1,27 @@
+package cn.thinkingdata.kafka.consumer.serialization;
+
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.util.Map;
+
+/**
+ * 不复制也不解码，直接把fetch得到的字节包装成LazyString
+ */
+public class LazyStringDeserializer implements Deserializer<LazyString> {
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+    }
+
+    @Override
+    public LazyString deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return new LazyString(data);
+    }
+
+    @Override
+    public void close() {
+    }
+}
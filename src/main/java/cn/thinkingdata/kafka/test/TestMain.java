@@ -3,8 +3,9 @@ package cn.thinkingdata.kafka.test;
 
 import cn.thinkingdata.kafka.close.ScanTermMethod;
 import cn.thinkingdata.kafka.consumer.KafkaSubscribeConsumer;
-import cn.thinkingdata.kafka.consumer.NewIDataLineProcessor;
+import cn.thinkingdata.kafka.consumer.NewIDataAsyncProcessor;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.log4j.PropertyConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,7 +13,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -43,7 +46,8 @@ public class TestMain {
         PropertyConfigurator.configure(url);
 
 
-        NewIDataLineProcessor dataProcessor = new NewIDataLineProcessor() {
+        // 异步处理，future完成之后offset才会被保存
+        NewIDataAsyncProcessor<String, String> dataProcessor = new NewIDataAsyncProcessor<String, String>() {
 
             ThreadPoolExecutor executorService = new ThreadPoolExecutor(Integer.parseInt(dataProcessNum), Integer.parseInt(dataProcessNum),
                     0L, TimeUnit.MILLISECONDS,
@@ -52,8 +56,12 @@ public class TestMain {
             }
 
             @Override
-            public void processData(ConsumerRecord<String, String> consumerRecord) {
-                executorService.submit(new ProcessDataThread(consumerRecord.key(), consumerRecord.value()));
+            public CompletableFuture<?> processBatchAsync(TopicPartition topicPartition, List<ConsumerRecord<String, String>> consumerRecords) {
+                return CompletableFuture.runAsync(() -> {
+                    for (ConsumerRecord<String, String> consumerRecord : consumerRecords) {
+                        new ProcessDataThread(consumerRecord.key(), consumerRecord.value()).run();
+                    }
+                }, executorService);
             }
 
             @Override
@@ -0,0 +1,43 @@
+package cn.thinkingdata.kafka.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadFactoryUtil {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadFactoryUtil.class);
+
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    public static ThreadFactory createThreadFactory(String threadType, String namePrefix) {
+        if (VIRTUAL.equals(threadType)) {
+            return createVirtualThreadFactory(namePrefix);
+        }
+        return createPlatformThreadFactory(namePrefix);
+    }
+
+    public static ThreadFactory createPlatformThreadFactory(String namePrefix) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return runnable -> new Thread(runnable, namePrefix + "-" + threadIndex.getAndIncrement());
+    }
+
+    // 编译目标是1.8，通过反射调用Thread.ofVirtual()，jdk21以下退回到普通线程
+    public static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix + "-", 0L);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            logger.warn("virtual thread is not supported by the current jdk " + System.getProperty("java.version")
+                    + ", use platform thread instead, the error is " + e.toString());
+            return createPlatformThreadFactory(namePrefix);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cn.thinkingdata.kafka.consumer;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.exception.ExceptionHandler;
+import cn.thinkingdata.kafka.consumer.queue.InFlightLimiter;
+import cn.thinkingdata.kafka.consumer.queue.PartitionBuffer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessDataWorkerTest {
+
+    private final TopicPartition topicPartition = new TopicPartition("worker", 0);
+    private final TopicPartition otherTopicPartition = new TopicPartition("worker", 1);
+    private final Integer processBatchSize = KafkaMysqlOffsetParameter.processBatchSize;
+    private final Long processBatchLingerMs = KafkaMysqlOffsetParameter.processBatchLingerMs;
+    private final List<Long> processedOffsets = Collections.synchronizedList(new ArrayList<>());
+    // 包含这个offset的batch返回异常完成的future
+    private volatile long failingOffset = -1L;
+    private final List<TopicPartition> failedTopicPartitions = Collections.synchronizedList(new ArrayList<>());
+    private ProcessDataWorker<String, String> worker;
+    private Thread workerThread;
+
+    @Before
+    public void setUp() {
+        NewIDataAsyncProcessor<String, String> processor = new NewIDataAsyncProcessor<String, String>() {
+            @Override
+            public CompletableFuture<?> processBatchAsync(TopicPartition topicPartition, List<ConsumerRecord<String, String>> consumerRecords) {
+                CompletableFuture<Object> future = new CompletableFuture<>();
+                for (ConsumerRecord<String, String> consumerRecord : consumerRecords) {
+                    if (consumerRecord.offset() == failingOffset) {
+                        future.completeExceptionally(new IllegalStateException("process failed"));
+                        return future;
+                    }
+                }
+                for (ConsumerRecord<String, String> consumerRecord : consumerRecords) {
+                    processedOffsets.add(consumerRecord.offset());
+                }
+                future.complete(null);
+                return future;
+            }
+
+            @Override
+            public void finishProcess() {
+            }
+        };
+        ExceptionHandler exceptionHandler = (ExceptionHandler) Proxy.newProxyInstance(ExceptionHandler.class.getClassLoader(),
+                new Class<?>[]{ExceptionHandler.class}, (proxy, method, args) -> {
+                    if ("executeWhenProcessBatchFail".equals(method.getName())) {
+                        failedTopicPartitions.add((TopicPartition) args[0]);
+                    }
+                    return null;
+                });
+        worker = new ProcessDataWorker<>(processor, Arrays.asList(new InFlightLimiter(1000), new InFlightLimiter(1000)), exceptionHandler);
+        workerThread = new Thread(worker, "process data worker test");
+        workerThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        worker.stop();
+        workerThread.join(5000L);
+        KafkaMysqlOffsetParameter.processBatchSize = processBatchSize;
+        KafkaMysqlOffsetParameter.processBatchLingerMs = processBatchLingerMs;
+    }
+
+    @Test
+    public void suspendedPartitionIsHeldUntilResumed() throws InterruptedException {
+        PartitionBuffer<String, String> partitionBuffer = new PartitionBuffer<>(topicPartition, 0L);
+        partitionBuffer.suspend();
+        offer(partitionBuffer, 0L, 1L);
+        Thread.sleep(200L);
+        // 暂停期间不处理，watermark不前进，额度也不归还
+        assertTrue(processedOffsets.isEmpty());
+        assertEquals(0L, partitionBuffer.getProcessedOffsetTracker().getWatermark());
+        assertEquals(2, partitionBuffer.getBufferedRecords());
+
+        partitionBuffer.resume();
+        offer(partitionBuffer, 2L);
+        await(() -> processedOffsets.size() == 3);
+        // 留着的record先处理，顺序不变
+        assertEquals(Arrays.asList(0L, 1L, 2L), processedOffsets);
+        await(() -> partitionBuffer.getBufferedRecords() == 0);
+        assertEquals(3L, partitionBuffer.getProcessedOffsetTracker().getWatermark());
+    }
+
+    @Test
+    public void suspendedPartitionIsSkippedWhenRevoked() throws InterruptedException {
+        PartitionBuffer<String, String> partitionBuffer = new PartitionBuffer<>(topicPartition, 0L);
+        partitionBuffer.suspend();
+        offer(partitionBuffer, 0L, 1L);
+        Thread.sleep(200L);
+        partitionBuffer.revoke();
+        await(() -> partitionBuffer.getBufferedRecords() == 0);
+        assertTrue(processedOffsets.isEmpty());
+        assertEquals(0L, partitionBuffer.getProcessedOffsetTracker().getWatermark());
+    }
+
+    @Test
+    public void failedBatchHoldsTheWatermark() throws InterruptedException {
+        PartitionBuffer<String, String> partitionBuffer = new PartitionBuffer<>(topicPartition, 0L);
+        offer(partitionBuffer, 0L);
+        await(() -> partitionBuffer.getProcessedOffsetTracker().getWatermark() == 1L);
+        failingOffset = 1L;
+        offer(partitionBuffer, 1L);
+        await(partitionBuffer::isFailed);
+        failingOffset = -1L;
+        offer(partitionBuffer, 2L);
+        await(() -> partitionBuffer.getBufferedRecords() == 0);
+        // 失败之后的record也不处理，额度全部归还，watermark停在失败的record之前
+        assertEquals(Collections.singletonList(0L), processedOffsets);
+        assertEquals(1L, partitionBuffer.getProcessedOffsetTracker().getWatermark());
+        assertEquals(Collections.singletonList(topicPartition), failedTopicPartitions);
+    }
+
+    @Test
+    public void lingerDrainsEveryInbox() throws InterruptedException {
+        // 一个标记加一个record占两个位置，两个队列各放一条正好凑满
+        KafkaMysqlOffsetParameter.processBatchSize = 4;
+        KafkaMysqlOffsetParameter.processBatchLingerMs = 60000L;
+        PartitionBuffer<String, String> partitionBuffer = new PartitionBuffer<>(topicPartition, 0L);
+        PartitionBuffer<String, String> otherPartitionBuffer = new PartitionBuffer<>(otherTopicPartition, 0L);
+        offer(0, partitionBuffer, 0L);
+        offer(1, otherPartitionBuffer, 0L);
+        // 不会阻塞在第一个队列上等到linger结束
+        await(() -> processedOffsets.size() == 2);
+        assertEquals(1L, partitionBuffer.getProcessedOffsetTracker().getWatermark());
+        assertEquals(1L, otherPartitionBuffer.getProcessedOffsetTracker().getWatermark());
+    }
+
+    private void offer(PartitionBuffer<String, String> partitionBuffer, long... offsets) throws InterruptedException {
+        offer(0, partitionBuffer, offsets);
+    }
+
+    // 和consume线程一样：先放进pending，再交给processDataWorker
+    private void offer(int index, PartitionBuffer<String, String> partitionBuffer, long... offsets) throws InterruptedException {
+        TopicPartition bufferTopicPartition = partitionBuffer.getTopicPartition();
+        for (long offset : offsets) {
+            ConsumerRecord<String, String> consumerRecord = new ConsumerRecord<>(bufferTopicPartition.topic(), bufferTopicPartition.partition(), offset, "key", "value");
+            partitionBuffer.add(consumerRecord);
+            assertTrue(worker.offer(index, partitionBuffer, consumerRecord, 1000L));
+            partitionBuffer.getPending().poll();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package cn.thinkingdata.kafka.consumer.assignor;
+
+import org.apache.kafka.clients.consumer.internals.PartitionAssignor.Assignment;
+import org.apache.kafka.clients.consumer.internals.PartitionAssignor.Subscription;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadAwareStickyAssignorTest {
+
+    private final LoadAwareStickyAssignor assignor = new LoadAwareStickyAssignor();
+
+    @Test
+    public void withoutStatsPartitionsAreSpreadByCount() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("a", new Subscription(Collections.singletonList("t")));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t")));
+        Map<String, List<TopicPartition>> assignment = assignor.assign(Collections.singletonMap("t", 4), subscriptions);
+        assertEquals(2, assignment.get("a").size());
+        assertEquals(2, assignment.get("b").size());
+        assertAllAssignedOnce(assignment, 4);
+    }
+
+    @Test
+    public void balancedPartitionsStayWithTheirPreviousOwner() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"),
+                userData(rates(tp(0), 100.0, tp(3), 100.0))));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t"),
+                userData(rates(tp(1), 100.0, tp(2), 100.0))));
+        Map<String, List<TopicPartition>> assignment = assignor.assign(Collections.singletonMap("t", 4), subscriptions);
+        assertEquals(new HashSet<>(Arrays.asList(tp(0), tp(3))), new HashSet<>(assignment.get("a")));
+        assertEquals(new HashSet<>(Arrays.asList(tp(1), tp(2))), new HashSet<>(assignment.get("b")));
+    }
+
+    @Test
+    public void overloadedOwnerGivesUpPartitionsByLoad() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        // a原来拥有所有partition，其中一个负载很大
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"),
+                userData(rates(tp(0), 900.0, tp(1), 100.0, tp(2), 100.0, tp(3), 100.0))));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t")));
+        Map<String, List<TopicPartition>> assignment = assignor.assign(Collections.singletonMap("t", 4), subscriptions);
+        // 平均负载600，上限660：负载900的partition超过上限，移给b，其余的留在a
+        assertEquals(new HashSet<>(Arrays.asList(tp(1), tp(2), tp(3))), new HashSet<>(assignment.get("a")));
+        assertEquals(Collections.singletonList(tp(0)), assignment.get("b"));
+        assertAllAssignedOnce(assignment, 4);
+    }
+
+    @Test
+    public void partitionsWithoutRateStayWithTheirPreviousOwner() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        // a刚拿到partition 0、1不到1秒，还没有每秒字节数
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"),
+                userData(rates(tp(0), Double.NaN, tp(1), Double.NaN))));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t"),
+                userData(rates(tp(2), 100.0, tp(3), 100.0))));
+        Map<String, List<TopicPartition>> assignment = assignor.assign(Collections.singletonMap("t", 4), subscriptions);
+        assertEquals(new HashSet<>(Arrays.asList(tp(0), tp(1))), new HashSet<>(assignment.get("a")));
+        assertEquals(new HashSet<>(Arrays.asList(tp(2), tp(3))), new HashSet<>(assignment.get("b")));
+    }
+
+    @Test
+    public void subscriptionIncludesPartitionsWithoutRate() {
+        LoadAwareStickyAssignor owner = new LoadAwareStickyAssignor();
+        owner.onAssignment(new Assignment(Arrays.asList(new TopicPartition("stats-new", 0), new TopicPartition("stats-new", 1))));
+        ByteBuffer userData = owner.subscription(Collections.singleton("stats-new")).userData();
+        assertEquals(1, userData.getShort());
+        assertEquals(2, userData.getInt());
+        for (int i = 0; i < 2; i++) {
+            userData.position(userData.position() + 2 + "stats-new".length() + 4);
+            assertTrue(Double.isNaN(userData.getDouble()));
+        }
+        owner.onAssignment(new Assignment(Collections.<TopicPartition>emptyList()));
+    }
+
+    @Test
+    public void partitionsOfADepartedOwnerAreReassigned() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"),
+                userData(rates(tp(0), 10.0, tp(1), 10.0))));
+        subscriptions.put("c", new Subscription(Collections.singletonList("t")));
+        // 原来拥有partition 2、3的b已经离开
+        Map<String, List<TopicPartition>> assignment = assignor.assign(Collections.singletonMap("t", 4), subscriptions);
+        assertTrue(assignment.get("a").containsAll(Arrays.asList(tp(0), tp(1))));
+        assertTrue(assignment.get("c").containsAll(Arrays.asList(tp(2), tp(3))));
+    }
+
+    @Test
+    public void partitionsOnlyGoToMembersSubscribedToTheirTopic() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("a", new Subscription(Collections.singletonList("t")));
+        subscriptions.put("b", new Subscription(Collections.singletonList("other")));
+        Map<String, Integer> partitionsPerTopic = new HashMap<>();
+        partitionsPerTopic.put("t", 3);
+        partitionsPerTopic.put("other", 2);
+        Map<String, List<TopicPartition>> assignment = assignor.assign(partitionsPerTopic, subscriptions);
+        assertEquals(3, assignment.get("a").size());
+        assertEquals(2, assignment.get("b").size());
+        for (TopicPartition topicPartition : assignment.get("b")) {
+            assertEquals("other", topicPartition.topic());
+        }
+    }
+
+    @Test
+    public void malformedUserDataIsIgnored() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        ByteBuffer truncated = userData(rates(tp(0), 100.0, tp(1), 100.0));
+        truncated.limit(truncated.limit() - 3);
+        ByteBuffer unknownVersion = ByteBuffer.allocate(6);
+        unknownVersion.putShort((short) 99).putInt(0).flip();
+        ByteBuffer garbage = ByteBuffer.wrap(new byte[]{1});
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"), truncated));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t"), unknownVersion));
+        subscriptions.put("c", new Subscription(Collections.singletonList("t"), garbage));
+        Map<String, List<TopicPartition>> assignment = assignor.assign(Collections.singletonMap("t", 6), subscriptions);
+        assertAllAssignedOnce(assignment, 6);
+        for (List<TopicPartition> partitions : assignment.values()) {
+            assertEquals(2, partitions.size());
+        }
+    }
+
+    @Test
+    public void truncatedUserDataLeavesNoPartialStats() {
+        ByteBuffer truncated = userData(rates(tp(0), 3000.0, tp(1), 1.0, tp(2), 1.0));
+        truncated.limit(truncated.limit() - 3);
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"), truncated));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t")));
+        Map<String, Subscription> withoutUserData = new HashMap<>();
+        withoutUserData.put("a", new Subscription(Collections.singletonList("t")));
+        withoutUserData.put("b", new Subscription(Collections.singletonList("t")));
+        // 解析到一半的partition 0、1不能算作a原来拥有的partition，也不能影响负载
+        assertEquals(assignor.assign(Collections.singletonMap("t", 4), withoutUserData),
+                assignor.assign(Collections.singletonMap("t", 4), subscriptions));
+    }
+
+    @Test
+    public void assignmentIsTheSameForTheSameInput() {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        subscriptions.put("a", new Subscription(Collections.singletonList("t"), userData(rates(tp(0), 50.0))));
+        subscriptions.put("b", new Subscription(Collections.singletonList("t")));
+        subscriptions.put("c", new Subscription(Collections.singletonList("t")));
+        Map<String, List<TopicPartition>> first = assignor.assign(Collections.singletonMap("t", 7), subscriptions);
+        Map<String, List<TopicPartition>> second = new LoadAwareStickyAssignor().assign(Collections.singletonMap("t", 7), subscriptions);
+        assertEquals(first, second);
+    }
+
+    private static void assertAllAssignedOnce(Map<String, List<TopicPartition>> assignment, int partitions) {
+        List<TopicPartition> all = new ArrayList<>();
+        for (List<TopicPartition> assigned : assignment.values()) {
+            all.addAll(assigned);
+        }
+        assertEquals(partitions, all.size());
+        assertEquals(partitions, new HashSet<>(all).size());
+    }
+
+    private static TopicPartition tp(int partition) {
+        return new TopicPartition("t", partition);
+    }
+
+    private static Map<TopicPartition, Double> rates(Object... topicPartitionsAndRates) {
+        Map<TopicPartition, Double> rates = new LinkedHashMap<>();
+        for (int i = 0; i < topicPartitionsAndRates.length; i += 2) {
+            rates.put((TopicPartition) topicPartitionsAndRates[i], (Double) topicPartitionsAndRates[i + 1]);
+        }
+        return rates;
+    }
+
+    // 和LoadAwareStickyAssignor.subscription写出的格式一样
+    private static ByteBuffer userData(Map<TopicPartition, Double> rates) {
+        ByteBuffer userData = ByteBuffer.allocate(1024);
+        userData.putShort((short) 1);
+        userData.putInt(rates.size());
+        for (Map.Entry<TopicPartition, Double> entry : rates.entrySet()) {
+            byte[] topic = entry.getKey().topic().getBytes(StandardCharsets.UTF_8);
+            userData.putShort((short) topic.length);
+            userData.put(topic);
+            userData.putInt(entry.getKey().partition());
+            userData.putDouble(entry.getValue());
+        }
+        userData.flip();
+        return userData;
+    }
+
+}
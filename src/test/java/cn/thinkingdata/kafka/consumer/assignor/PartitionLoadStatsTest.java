@@ -0,0 +1,53 @@
+package cn.thinkingdata.kafka.consumer.assignor;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PartitionLoadStatsTest {
+
+    private final Object owner = new Object();
+    private final Object otherOwner = new Object();
+
+    @Test
+    public void rateIsBytesPerSecondOfTheWindow() {
+        TopicPartition topicPartition = new TopicPartition("stats-rate", 0);
+        long now = System.currentTimeMillis();
+        PartitionLoadStats.track(topicPartition, now - 2000L, owner);
+        PartitionLoadStats.record(topicPartition, 4000L);
+        assertEquals(2000.0, PartitionLoadStats.rollWindow(topicPartition, now), 0.001);
+        // 不到1秒的窗口保留上一次的值
+        PartitionLoadStats.record(topicPartition, 1000000L);
+        assertEquals(2000.0, PartitionLoadStats.rollWindow(topicPartition, now + 10L), 0.001);
+        PartitionLoadStats.remove(topicPartition, owner);
+    }
+
+    @Test
+    public void recordAfterRemoveStartsANewCounter() {
+        TopicPartition topicPartition = new TopicPartition("stats-record", 0);
+        PartitionLoadStats.track(topicPartition, System.currentTimeMillis(), owner);
+        PartitionLoadStats.remove(topicPartition, owner);
+        // remove之后还有缓冲的record，不能抛出NullPointerException
+        PartitionLoadStats.record(topicPartition, 100L);
+        PartitionLoadStats.track(topicPartition, System.currentTimeMillis(), owner);
+        PartitionLoadStats.remove(topicPartition, owner);
+    }
+
+    @Test
+    public void removeByAPreviousOwnerKeepsTheStats() {
+        TopicPartition topicPartition = new TopicPartition("stats-owner", 0);
+        long now = System.currentTimeMillis();
+        PartitionLoadStats.track(topicPartition, now - 2000L, owner);
+        PartitionLoadStats.record(topicPartition, 2000L);
+        // 同一个进程里的另一个consumer先拿到了partition，原来的consumer之后才收回它
+        PartitionLoadStats.track(topicPartition, now, otherOwner);
+        PartitionLoadStats.remove(topicPartition, owner);
+        assertNotNull(PartitionLoadStats.rollWindow(topicPartition, now));
+        PartitionLoadStats.remove(topicPartition, otherOwner);
+        assertNull(PartitionLoadStats.rollWindow(topicPartition, now));
+    }
+
+}
@@ -0,0 +1,89 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirtyOffsetTrackerTest {
+
+    private static final TopicPartition TP0 = new TopicPartition("topic", 0);
+    private static final TopicPartition TP1 = new TopicPartition("topic", 1);
+
+    @Test
+    public void markDirtyKeepsEachPartitionOnce() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.markDirty(TP0);
+        tracker.markDirty(TP1);
+        tracker.markDirty(TP0);
+        assertEquals(Arrays.asList(TP0, TP1), tracker.drainDirty());
+        assertTrue(tracker.drainDirty().isEmpty());
+        // 取出之后的变化重新放入
+        tracker.markDirty(TP0);
+        assertEquals(Collections.singletonList(TP0), tracker.drainDirty());
+    }
+
+    @Test
+    public void scheduledPartitionIsDueAtItsDeadline() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.advance(100L);
+        tracker.schedule(TP0, 105L);
+        assertTrue(tracker.advance(104L).isEmpty());
+        assertEquals(Collections.singletonList(TP0), tracker.advance(105L));
+        assertEquals(0, tracker.getScheduledCount());
+        assertTrue(tracker.advance(106L).isEmpty());
+    }
+
+    @Test
+    public void schedulingTwiceKeepsTheFirstDeadline() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.advance(100L);
+        tracker.schedule(TP0, 102L);
+        tracker.schedule(TP0, 110L);
+        assertEquals(1, tracker.getScheduledCount());
+        assertEquals(Collections.singletonList(TP0), tracker.advance(102L));
+    }
+
+    @Test
+    public void pastDeadlineIsDueOnTheNextTick() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.advance(100L);
+        tracker.schedule(TP0, 50L);
+        assertEquals(Collections.singletonList(TP0), tracker.advance(101L));
+    }
+
+    @Test
+    public void deadlineMoreThanOneRoundAwayStaysInTheWheel() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.advance(0L);
+        tracker.schedule(TP0, 70L);
+        // 第6个tick和第70个tick在同一个槽里
+        assertTrue(tracker.advance(6L).isEmpty());
+        assertTrue(tracker.advance(69L).isEmpty());
+        assertEquals(Collections.singletonList(TP0), tracker.advance(70L));
+    }
+
+    @Test
+    public void advancingMoreThanOneRoundAtOnceReturnsEveryDuePartition() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.advance(0L);
+        tracker.schedule(TP0, 3L);
+        tracker.schedule(TP1, 40L);
+        assertEquals(2, tracker.advance(1000L).size());
+        assertEquals(0, tracker.getScheduledCount());
+    }
+
+    @Test
+    public void partitionScheduledBeforeTheFirstAdvanceIsNotLost() {
+        DirtyOffsetTracker tracker = new DirtyOffsetTracker();
+        tracker.schedule(TP0, 1000L);
+        tracker.schedule(TP1, 5L);
+        assertEquals(Collections.singletonList(TP1), tracker.advance(999L));
+        assertEquals(Collections.singletonList(TP0), tracker.advance(1000L));
+    }
+
+}
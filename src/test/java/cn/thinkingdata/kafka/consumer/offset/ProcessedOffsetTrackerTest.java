@@ -0,0 +1,121 @@
+package cn.thinkingdata.kafka.consumer.offset;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProcessedOffsetTrackerTest {
+
+    @Test
+    public void watermarkWaitsForTheOldestPendingOffset() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(10L);
+        tracker.dispatch(10L);
+        tracker.dispatch(11L);
+        tracker.dispatch(12L);
+
+        tracker.complete(12L);
+        assertEquals(10L, tracker.getWatermark());
+        tracker.complete(11L);
+        assertEquals(10L, tracker.getWatermark());
+        tracker.complete(10L);
+        assertEquals(13L, tracker.getWatermark());
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void skippedOffsetsBeforeTheFirstDispatchCountAsProcessed() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(5L);
+        tracker.dispatch(20L);
+        assertEquals(20L, tracker.getWatermark());
+        tracker.dispatch(25L);
+        tracker.complete(20L);
+        // 20和25之间的offset没有交给处理线程，watermark直接到25
+        assertEquals(25L, tracker.getWatermark());
+        tracker.complete(25L);
+        assertEquals(26L, tracker.getWatermark());
+    }
+
+    @Test
+    public void completingUnknownOffsetIsIgnored() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(0L);
+        tracker.dispatch(0L);
+        tracker.complete(7L);
+        assertEquals(0L, tracker.getWatermark());
+        assertEquals(1, tracker.getPendingCount());
+    }
+
+    @Test
+    public void completesConsumerRecordBatchOutOfOrder() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(0L);
+        for (long offset = 0; offset < 4; offset++) {
+            tracker.dispatch(offset);
+        }
+        tracker.complete(Arrays.asList(record(3L), record(1L)));
+        assertEquals(0L, tracker.getWatermark());
+        tracker.complete(Arrays.asList(record(2L), record(0L)));
+        assertEquals(4L, tracker.getWatermark());
+    }
+
+    @Test
+    public void watermarkIsCorrectAfterTheRingWraps() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(0L);
+        // head走到数组末尾附近，之后的offset绕回数组开头
+        for (long offset = 0; offset < 60; offset++) {
+            tracker.dispatch(offset);
+            tracker.complete(offset);
+        }
+        assertEquals(60L, tracker.getWatermark());
+        for (long offset = 60; offset < 100; offset++) {
+            tracker.dispatch(offset);
+        }
+        // 倒着完成，只有最后完成的60让watermark前进
+        for (long offset = 99; offset > 60; offset--) {
+            tracker.complete(offset);
+            assertEquals(60L, tracker.getWatermark());
+        }
+        tracker.complete(60L);
+        assertEquals(100L, tracker.getWatermark());
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void growKeepsPendingOffsetsWhenTheRingHasWrapped() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(0L);
+        for (long offset = 0; offset < 50; offset++) {
+            tracker.dispatch(offset);
+            tracker.complete(offset);
+        }
+        // 数组已经绕回开头，再放满64个之后扩容
+        for (long offset = 50; offset < 250; offset++) {
+            tracker.dispatch(offset);
+        }
+        assertEquals(200, tracker.getPendingCount());
+        for (long offset = 51; offset < 250; offset += 2) {
+            tracker.complete(offset);
+        }
+        assertEquals(50L, tracker.getWatermark());
+        for (long offset = 50; offset < 250; offset += 2) {
+            tracker.complete(offset);
+        }
+        assertEquals(250L, tracker.getWatermark());
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void safeOffsetUsesPositionOnlyWhenNothingIsPending() {
+        ProcessedOffsetTracker tracker = new ProcessedOffsetTracker(0L);
+        assertEquals(30L, tracker.getSafeOffset(30L));
+        tracker.dispatch(30L);
+        assertEquals(30L, tracker.getSafeOffset(40L));
+        tracker.complete(30L);
+        assertEquals(40L, tracker.getSafeOffset(40L));
+    }
+
+    private static ConsumerRecord<String, String> record(long offset) {
+        return new ConsumerRecord<>("topic", 0, offset, null, "value");
+    }
+
+}
@@ -0,0 +1,167 @@
+package cn.thinkingdata.kafka.consumer.persist;
+
+import cn.thinkingdata.kafka.constant.KafkaMysqlOffsetParameter;
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MmapOffsetLogStorePersistTest {
+
+    // topic是"topic"、没有owner时每条记录的长度：8字节记录头 + 29字节payload
+    private static final int RECORD_SIZE = 8 + 29;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String clusterName;
+    private String consumerGroup;
+    private MmapOffsetLogStorePersist store;
+
+    @Before
+    public void setUp() {
+        clusterName = KafkaMysqlOffsetParameter.kafkaClusterName;
+        consumerGroup = KafkaMysqlOffsetParameter.consumerGroup;
+        KafkaMysqlOffsetParameter.kafkaClusterName = "cluster";
+        KafkaMysqlOffsetParameter.consumerGroup = "group";
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        KafkaMysqlOffsetParameter.kafkaClusterName = clusterName;
+        KafkaMysqlOffsetParameter.consumerGroup = consumerGroup;
+    }
+
+    @Test
+    public void reloadsTheLatestOffsetOfEachPartition() {
+        store = open(4096);
+        assertTrue(store.saveOffsetInBackupExternalStore(offset(0, 1L, null)));
+        assertTrue(store.saveOffsetInBackupExternalStore(offset(1, 5L, null)));
+        assertTrue(store.updateOwner(offset(0, 2L, "owner-a")));
+        reopen(4096);
+        KafkaConsumerOffset partition0 = store.readOffsetFromBackupExternalStore("topic", 0);
+        assertEquals(Long.valueOf(2L), partition0.getOffset());
+        assertEquals("owner-a", partition0.getOwner());
+        assertEquals(Long.valueOf(5L), store.readOffsetFromBackupExternalStore("topic", 1).getOffset());
+        // 没有记录的partition返回空的offset
+        assertNull(store.readOffsetFromBackupExternalStore("topic", 2).getTopic());
+    }
+
+    @Test
+    public void stopsAtATornRecordAndKeepsTheRecordsBeforeIt() throws Exception {
+        store = open(4096);
+        store.saveOffsetInBackupExternalStore(offset(0, 1L, null));
+        store.saveOffsetInBackupExternalStore(offset(0, 2L, null));
+        store.close();
+        // 第二条记录写到一半崩溃：长度还没写入
+        writeInt(RECORD_SIZE, 0);
+        reopen(4096);
+        assertEquals(Long.valueOf(1L), store.readOffsetFromBackupExternalStore("topic", 0).getOffset());
+        store.saveOffsetInBackupExternalStore(offset(0, 3L, null));
+        reopen(4096);
+        assertEquals(Long.valueOf(3L), store.readOffsetFromBackupExternalStore("topic", 0).getOffset());
+    }
+
+    @Test
+    public void recordsAfterACorruptRecordAreNotReplayedOverNewerWrites() throws Exception {
+        store = open(4096);
+        store.saveOffsetInBackupExternalStore(offset(0, 1L, null));
+        store.saveOffsetInBackupExternalStore(offset(1, 5L, null));
+        store.saveOffsetInBackupExternalStore(offset(0, 2L, null));
+        store.saveOffsetInBackupExternalStore(offset(0, 3L, null));
+        store.close();
+        // 第二条记录的payload损坏，crc对不上，读到这里停下
+        flipByte(RECORD_SIZE + 8 + 10);
+        reopen(4096);
+        assertEquals(Long.valueOf(1L), store.readOffsetFromBackupExternalStore("topic", 0).getOffset());
+        assertNull(store.readOffsetFromBackupExternalStore("topic", 1).getTopic());
+        // 新记录覆盖损坏的记录，后面旧的记录不能在下次读取时覆盖新的offset
+        store.saveOffsetInBackupExternalStore(offset(0, 10L, null));
+        reopen(4096);
+        assertEquals(Long.valueOf(10L), store.readOffsetFromBackupExternalStore("topic", 0).getOffset());
+    }
+
+    @Test
+    public void compactionKeepsTheLatestOffsets() {
+        store = open(512);
+        for (long offset = 0; offset < 100; offset++) {
+            assertTrue(store.saveOffsetInBackupExternalStore(offset((int) (offset % 3), offset, null)));
+        }
+        // 512字节放不下100条记录，已经compaction过，文件大小不变
+        assertEquals(512L, logFile().length());
+        reopen(512);
+        assertEquals(Long.valueOf(99L), store.readOffsetFromBackupExternalStore("topic", 0).getOffset());
+        assertEquals(Long.valueOf(97L), store.readOffsetFromBackupExternalStore("topic", 1).getOffset());
+        assertEquals(Long.valueOf(98L), store.readOffsetFromBackupExternalStore("topic", 2).getOffset());
+    }
+
+    @Test
+    public void fileGrowsWhenTheLatestOffsetsDoNotFit() {
+        store = open(256);
+        for (int partition = 0; partition < 20; partition++) {
+            assertTrue(store.saveOffsetInBackupExternalStore(offset(partition, partition * 10L, null)));
+        }
+        assertTrue(logFile().length() > 256L);
+        store.revokeOffsetsInBackupExternalStore(Collections.singletonList(offset(19, 1000L, null)));
+        // 用更小的默认大小打开时沿用文件现在的大小
+        reopen(256);
+        for (int partition = 0; partition < 19; partition++) {
+            assertEquals(Long.valueOf(partition * 10L), store.readOffsetFromBackupExternalStore("topic", partition).getOffset());
+        }
+        assertEquals(Long.valueOf(1000L), store.readOffsetFromBackupExternalStore("topic", 19).getOffset());
+    }
+
+    private MmapOffsetLogStorePersist open(int fileSize) {
+        return new MmapOffsetLogStorePersist(folder.getRoot().getAbsolutePath(), fileSize);
+    }
+
+    private void reopen(int fileSize) {
+        store.close();
+        store = open(fileSize);
+    }
+
+    private File logFile() {
+        return new File(folder.getRoot(), "cluster-group.offsets");
+    }
+
+    private void writeInt(long position, int value) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(logFile(), "rw")) {
+            file.seek(position);
+            file.writeInt(value);
+        }
+    }
+
+    private void flipByte(long position) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(logFile(), "rw")) {
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        }
+    }
+
+    private static KafkaConsumerOffset offset(int partition, long offset, String owner) {
+        KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+        kafkaConsumerOffset.setTopic("topic");
+        kafkaConsumerOffset.setPartition(partition);
+        kafkaConsumerOffset.setOffset(offset);
+        kafkaConsumerOffset.setOwner(owner);
+        kafkaConsumerOffset.setUpdate_time(new Date());
+        return kafkaConsumerOffset;
+    }
+
+}
@@ -0,0 +1,174 @@
+package cn.thinkingdata.kafka.consumer.persist;
+
+import cn.thinkingdata.kafka.consumer.dao.KafkaConsumerOffset;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OffsetWriteBehindTest {
+
+    // 窗口足够长，测试里只有flush和shutdown会触发写入
+    private static final long COMMIT_WINDOW_MS = 60000L;
+
+    private OffsetWriteBehind writer;
+
+    @After
+    public void tearDown() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void flushCompletesWithTheResultOfItsWrite() throws Exception {
+        List<List<KafkaConsumerOffset>> flushed = new CopyOnWriteArrayList<>();
+        writer = new OffsetWriteBehind(COMMIT_WINDOW_MS, saves -> {
+        }, flushes -> {
+            flushed.add(new ArrayList<>(flushes));
+            return false;
+        });
+        writer.start();
+        KafkaConsumerOffset offset = offset(0, 10L);
+        assertFalse(writer.flush(Collections.singletonList(offset)).get(5, TimeUnit.SECONDS));
+        assertEquals(1, flushed.size());
+        assertSame(offset, flushed.get(0).get(0));
+    }
+
+    @Test
+    public void flushDuringAnotherWriteIsCompletedByTheNextWrite() throws Exception {
+        CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+        AtomicInteger writes = new AtomicInteger();
+        writer = new OffsetWriteBehind(COMMIT_WINDOW_MS, saves -> {
+        }, flushes -> {
+            if (writes.incrementAndGet() == 1) {
+                firstWriteStarted.countDown();
+                try {
+                    releaseFirstWrite.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // 第一次写入失败，第二次成功
+                return false;
+            }
+            return true;
+        });
+        writer.start();
+        CompletableFuture<Boolean> first = writer.flush(Collections.singletonList(offset(0, 10L)));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        // 同一个partition在第一次写入过程中再flush一次，要等第一次写入结束才能登记，不能拿到第一次写入的结果
+        CompletableFuture<Boolean> second = new CompletableFuture<>();
+        Thread flushThread = new Thread(() -> writer.flush(Collections.singletonList(offset(0, 20L)))
+                .whenComplete((result, e) -> second.complete(result)));
+        flushThread.start();
+        flushThread.join(100);
+        assertFalse(second.isDone());
+        releaseFirstWrite.countDown();
+        assertFalse(first.get(5, TimeUnit.SECONDS));
+        assertTrue(second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, writes.get());
+    }
+
+    @Test
+    public void repeatedFlushesOfOnePartitionEndWithTheNewestOffset() throws Exception {
+        CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+        List<List<KafkaConsumerOffset>> flushed = new CopyOnWriteArrayList<>();
+        writer = new OffsetWriteBehind(COMMIT_WINDOW_MS, saves -> {
+        }, flushes -> {
+            flushed.add(new ArrayList<>(flushes));
+            if (flushed.size() == 1) {
+                firstWriteStarted.countDown();
+                try {
+                    releaseFirstWrite.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return true;
+        });
+        writer.start();
+        CompletableFuture<Boolean> blocking = writer.flush(Collections.singletonList(offset(1, 1L)));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        List<CompletableFuture<Boolean>> futures = new CopyOnWriteArrayList<>();
+        Thread flushThread = new Thread(() -> {
+            futures.add(writer.flush(Collections.singletonList(offset(0, 10L))));
+            futures.add(writer.flush(Collections.singletonList(offset(0, 20L))));
+        });
+        flushThread.start();
+        releaseFirstWrite.countDown();
+        flushThread.join(5000);
+        assertTrue(blocking.get(5, TimeUnit.SECONDS));
+        assertEquals(2, futures.size());
+        for (CompletableFuture<Boolean> future : futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+        // 两次flush可能在一次写入里合并，也可能分两次写入，最后写入的一定是最新的offset
+        List<KafkaConsumerOffset> lastWrite = flushed.get(flushed.size() - 1);
+        assertEquals(1, lastWrite.size());
+        assertEquals(Long.valueOf(20L), lastWrite.get(0).getOffset());
+    }
+
+    @Test
+    public void flushFailsWhenTheWriteThrows() throws Exception {
+        writer = new OffsetWriteBehind(COMMIT_WINDOW_MS, saves -> {
+            throw new IllegalStateException("save failed");
+        }, flushes -> true);
+        writer.start();
+        writer.save(offset(1, 5L));
+        assertFalse(writer.flush(Collections.singletonList(offset(0, 10L))).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void savesKeepOnlyTheLatestOffsetAndAreWrittenOnShutdown() {
+        List<KafkaConsumerOffset> saved = new CopyOnWriteArrayList<>();
+        writer = new OffsetWriteBehind(COMMIT_WINDOW_MS, saved::addAll, flushes -> true);
+        writer.start();
+        writer.save(offset(0, 1L));
+        writer.save(offset(0, 2L));
+        writer.save(offset(1, 3L));
+        writer.shutdown();
+        writer = null;
+        assertEquals(2, saved.size());
+        for (KafkaConsumerOffset kafkaConsumerOffset : saved) {
+            if (kafkaConsumerOffset.getPartition() == 0) {
+                assertEquals(Long.valueOf(2L), kafkaConsumerOffset.getOffset());
+            }
+        }
+    }
+
+    @Test
+    public void flushAfterShutdownWritesInTheCallerThread() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        OffsetWriteBehind closedWriter = new OffsetWriteBehind(COMMIT_WINDOW_MS, saves -> {
+        }, flushes -> writes.incrementAndGet() > 0);
+        closedWriter.start();
+        closedWriter.shutdown();
+        CompletableFuture<Boolean> future = closedWriter.flush(Collections.singletonList(offset(0, 10L)));
+        assertTrue(future.isDone());
+        assertTrue(future.get());
+        assertEquals(1, writes.get());
+    }
+
+    private static KafkaConsumerOffset offset(int partition, long offset) {
+        KafkaConsumerOffset kafkaConsumerOffset = new KafkaConsumerOffset();
+        kafkaConsumerOffset.setTopic("topic");
+        kafkaConsumerOffset.setPartition(partition);
+        kafkaConsumerOffset.setOffset(offset);
+        return kafkaConsumerOffset;
+    }
+
+}
@@ -0,0 +1,120 @@
+package cn.thinkingdata.kafka.consumer.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscRingBufferTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(1, new SpscRingBuffer<Integer>(1, new YieldWaitStrategy()).capacity());
+        assertEquals(8, new SpscRingBuffer<Integer>(5, new YieldWaitStrategy()).capacity());
+        assertEquals(16, new SpscRingBuffer<Integer>(16, new YieldWaitStrategy()).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveCapacity() {
+        new SpscRingBuffer<Integer>(0, new YieldWaitStrategy());
+    }
+
+    @Test
+    public void offerFailsWhenFullAndPollReturnsNullWhenEmpty() {
+        SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(4, new YieldWaitStrategy());
+        assertTrue(ringBuffer.isEmpty());
+        assertNull(ringBuffer.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        assertFalse(ringBuffer.offer(4));
+        assertEquals(4, ringBuffer.size());
+
+        assertEquals(Integer.valueOf(0), ringBuffer.poll());
+        assertTrue(ringBuffer.offer(4));
+        assertFalse(ringBuffer.offer(5));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+        }
+        assertNull(ringBuffer.poll());
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    public void keepsOrderAcrossManyWraps() {
+        SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(4, new YieldWaitStrategy());
+        int next = 0;
+        int expected = 0;
+        // 每轮放3个取3个，head和tail绕过数组很多圈
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ringBuffer.offer(next++));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), ringBuffer.poll());
+            }
+        }
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    public void drainToWrapsAndRespectsMaxElements() {
+        SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(4, new YieldWaitStrategy());
+        for (int i = 0; i < 3; i++) {
+            ringBuffer.offer(i);
+        }
+        ringBuffer.poll();
+        ringBuffer.poll();
+        // 现在head在2，再放3个会绕回数组开头
+        for (int i = 3; i < 6; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, ringBuffer.drainTo(drained, 3));
+        assertEquals(3, drained.size());
+        assertEquals(Integer.valueOf(2), drained.get(0));
+        assertEquals(Integer.valueOf(4), drained.get(2));
+        assertEquals(1, ringBuffer.drainTo(drained, 10));
+        assertEquals(Integer.valueOf(5), drained.get(3));
+        assertEquals(0, ringBuffer.drainTo(drained, 10));
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    public void timedOfferAndPollGiveUpAfterTimeout() throws InterruptedException {
+        SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(1, new ParkWaitStrategy());
+        assertNull(ringBuffer.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(ringBuffer.offer(1, 10, TimeUnit.MILLISECONDS));
+        assertFalse(ringBuffer.offer(2, 10, TimeUnit.MILLISECONDS));
+        assertEquals(Integer.valueOf(1), ringBuffer.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void producerAndConsumerThreadsSeeEveryElementInOrder() throws Exception {
+        final int count = 200000;
+        final SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(64, new YieldWaitStrategy());
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    ringBuffer.offer(i, 10, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            Integer value = ringBuffer.poll(10, TimeUnit.SECONDS);
+            assertEquals(Integer.valueOf(i), value);
+        }
+        producer.join();
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+}